@@ -33,10 +33,12 @@ import java.net.*;
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
+import java.util.logging.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Main {
+    private static final Logger LOG = Logging.LOG();
     public static final String PEERGOS_PATH = "PEERGOS_PATH";
     public static final Path DEFAULT_PEERGOS_DIR_PATH =
             Paths.get(System.getProperty("user.home"), ".peergos");
@@ -340,7 +342,8 @@ public class Main {
                     new Command.Arg("username", "Peergos username", true),
                     new Command.Arg("password", "Peergos password", true),
                     new Command.Arg("webport", "Peergos service address port", false, "8000"),
-                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos")
+                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos"),
+                    new Command.Arg("tree-bit-width", "The bit width of new file trees, only raise this once all clients support it", false)
             ).collect(Collectors.toList())
     );
     public static final Command<Boolean> SHELL = new Command<>("shell",
@@ -482,7 +485,8 @@ public class Main {
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
             PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht, hasher);
             MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht), blacklist);
-            MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
+            MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers,
+                    new AsyncWatchingMutablePointersProxy(proxingMutable));
 
             SocialNetworkProxy httpSocial = new HttpSocialNetwork(ipfsGateway, ipfsGateway);
 
@@ -585,6 +589,8 @@ public class Main {
         System.out.println("\n\nPeergos mounted at " + path + "\n\n");
         try {
             NetworkAccess network = NetworkAccess.buildJava(webPort).get();
+            if (a.hasArg("tree-bit-width"))
+                network = network.withTreeBitWidth(a.getInt("tree-bit-width"));
             Crypto crypto = Main.initCrypto();
             UserContext userContext = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
             PeergosFS peergosFS = new PeergosFS(userContext);
@@ -592,6 +598,27 @@ public class Main {
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> fuseProcess.close(), "Fuse shutdown"));
 
+            // keep cached pointers, and thus what the mount shows, current with changes made elsewhere
+            Thread pointerWatcher = new Thread(() -> {
+                while (! Thread.currentThread().isInterrupted()) {
+                    try {
+                        if (! userContext.network.awaitPointerChanges().join())
+                            Thread.sleep(30_000);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                        try {
+                            Thread.sleep(5_000);
+                        } catch (InterruptedException f) {
+                            return;
+                        }
+                    }
+                }
+            }, "Pointer watcher");
+            pointerWatcher.setDaemon(true);
+            pointerWatcher.start();
+
             fuseProcess.start();
             return fuseProcess;
         } catch (Exception ex) {
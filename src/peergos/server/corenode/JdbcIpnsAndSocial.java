@@ -1,6 +1,7 @@
 package peergos.server.corenode;
 import java.util.logging.*;
 
+import peergos.server.mutable.*;
 import peergos.server.sql.*;
 import peergos.server.util.Logging;
 
@@ -29,11 +30,45 @@ public class JdbcIpnsAndSocial {
     private static final String DELETE_FOLLOW_REQUEST = "DELETE FROM followrequests WHERE name = ? AND followrequest = ?;";
 
     private static final String IPNS_TARGET_NAME = "hash";
-    private static final String IPNS_CREATE = "INSERT INTO metadatablobs (writingkey, hash) VALUES(?, ?)";
-    private static final String IPNS_UPDATE = "UPDATE metadatablobs SET hash=? WHERE writingkey = ? AND hash = ?";
-    private static final String IPNS_GET = "SELECT * FROM metadatablobs WHERE writingKey = ? LIMIT 1;";
+    private static final String IPNS_CREATE = "INSERT INTO pointers (writingkey, hash) VALUES(?, ?)";
+    private static final String IPNS_UPDATE = "UPDATE pointers SET hash=? WHERE writingkey = ? AND hash = ?";
+    private static final String IPNS_GET = "SELECT hash FROM pointers WHERE writingkey = ? LIMIT 1;";
+    private static final int MAX_KEYS_PER_QUERY = 500; // sqlite has a limit of 999 parameters per statement
+    private static final int MAX_UPDATES_PER_COMMIT = 500;
+    private static final int MIGRATION_BATCH_SIZE = 500;
+    private static final long MIGRATION_IDLE_MILLIS = 100;
 
     private Connection conn;
+    // The committer runs multi-statement transactions on the shared connection, so every use of it holds this lock.
+    // Otherwise other statements would join an open transaction, seeing uncommitted pointers, or being rolled back.
+    private final Object connLock = new Object();
+    private final String legacyTable;
+    // whether some pointers are still in the legacy text table
+    private volatile boolean migrating;
+    private final PointerCache pointerCache = new PointerCache();
+    // guarded by itself, as is committing
+    private final Queue<PendingUpdate> pendingUpdates = new ArrayDeque<>();
+    // whether a caller or the committer is committing the pending updates
+    private boolean committing;
+    private volatile ScheduledFuture<?> migration;
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Mutable pointer group committer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class PendingUpdate {
+        public final PublicKeyHash writer;
+        public final Optional<byte[]> existing;
+        public final byte[] updated;
+        public final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingUpdate(PublicKeyHash writer, Optional<byte[]> existing, byte[] updated) {
+            this.writer = writer;
+            this.existing = existing;
+            this.updated = updated;
+        }
+    }
 
     private class FollowRequestData {
         public final String name;
@@ -59,44 +94,49 @@ public class JdbcIpnsAndSocial {
         }
 
         public boolean insert() {
-            try (PreparedStatement insert = conn.prepareStatement(INSERT_FOLLOW_REQUEST)) {
-                insert.setString(1,this.name);
-                insert.setString(2,this.b64string);
-                insert.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return false;
+            synchronized (connLock) {
+                try (PreparedStatement insert = conn.prepareStatement(INSERT_FOLLOW_REQUEST)) {
+                    insert.setString(1, this.name);
+                    insert.setString(2, this.b64string);
+                    insert.executeUpdate();
+                    return true;
+                } catch (SQLException sqe) {
+                    LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                    return false;
+                }
             }
         }
 
         public FollowRequestData[] select() {
-            try (PreparedStatement select = conn.prepareStatement(SELECT_FOLLOW_REQUESTS)) {
-                select.setString(1, name);
-                ResultSet rs = select.executeQuery();
-                List<FollowRequestData> list = new ArrayList<>();
-                while (rs.next())
-                {
-                    String username = rs.getString(FOLLOW_REQUEST_USER_NAME);
-                    String b64string = rs.getString(FOLLOW_REQUEST_DATA_NAME);
-                    list.add(new FollowRequestData(username, b64string));
+            synchronized (connLock) {
+                try (PreparedStatement select = conn.prepareStatement(SELECT_FOLLOW_REQUESTS)) {
+                    select.setString(1, name);
+                    ResultSet rs = select.executeQuery();
+                    List<FollowRequestData> list = new ArrayList<>();
+                    while (rs.next()) {
+                        String username = rs.getString(FOLLOW_REQUEST_USER_NAME);
+                        String b64string = rs.getString(FOLLOW_REQUEST_DATA_NAME);
+                        list.add(new FollowRequestData(username, b64string));
+                    }
+                    return list.toArray(new FollowRequestData[0]);
+                } catch (SQLException sqe) {
+                    LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                    return null;
                 }
-                return list.toArray(new FollowRequestData[0]);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return null;
             }
         }
 
         public boolean delete() {
-            try (PreparedStatement delete = conn.prepareStatement(DELETE_FOLLOW_REQUEST)) {
-                delete.setString(1, name);
-                delete.setString(2, b64string);
-                delete.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return false;
+            synchronized (connLock) {
+                try (PreparedStatement delete = conn.prepareStatement(DELETE_FOLLOW_REQUEST)) {
+                    delete.setString(1, name);
+                    delete.setString(2, b64string);
+                    delete.executeUpdate();
+                    return true;
+                } catch (SQLException sqe) {
+                    LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                    return false;
+                }
             }
         }
     }
@@ -105,7 +145,11 @@ public class JdbcIpnsAndSocial {
 
     public JdbcIpnsAndSocial(Connection conn, SqlSupplier commands) {
         this.conn = conn;
+        this.legacyTable = commands.legacyMutablePointersTableName();
         init(commands);
+        if (migrating)
+            migration = committer.scheduleWithFixedDelay(this::migrateLegacyPointers, MIGRATION_IDLE_MILLIS, MIGRATION_IDLE_MILLIS,
+                    TimeUnit.MILLISECONDS);
     }
 
     private synchronized void init(SqlSupplier commands) {
@@ -115,11 +159,33 @@ public class JdbcIpnsAndSocial {
         try {
             commands.createTable(commands.createFollowRequestsTableCommand(), conn);
             commands.createTable(commands.createMutablePointersTableCommand(), conn);
+            if (commands.tableExists(legacyTable, conn)) {
+                if (countRows(legacyTable) == 0)
+                    commands.createTable("DROP TABLE " + legacyTable + ";", conn);
+                else
+                    migrating = true;
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private long countRows(String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + table + ";")) {
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static byte[] legacyKey(PublicKeyHash writingKey) {
+        return Base64.getEncoder().encode(writingKey.serialize());
+    }
+
+    private static PublicKeyHash fromLegacyKey(String key) {
+        return PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(key)));
+    }
+
     public CompletableFuture<Boolean> addFollowRequest(PublicKeyHash owner, byte[] encryptedPermission) {
         byte[] dummy = null;
         FollowRequestData selector = new FollowRequestData(owner, dummy);
@@ -150,78 +216,373 @@ public class JdbcIpnsAndSocial {
         return CompletableFuture.completedFuture(resp.serialize());
     }
 
+    /** Updates are group committed. If no commit is in progress the caller commits its update itself, so it is visible
+     *  when this returns. Updates which arrive during a commit are queued, and then validated against the latest values
+     *  in memory, including earlier updates in the same group, and written in a single database transaction. Each
+     *  update is still a compare-and-swap in the database.
+     *
+     * @param writingKey
+     * @param existingCas
+     * @param newCas
+     * @return whether this update was applied
+     */
     public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
-        if (existingCas.isPresent()) {
-            try (PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
-                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-                String key = new String(Base64.getEncoder().encode(writingKey.serialize()));
-
-                insert.setString(1, new String(Base64.getEncoder().encode(newCas)));
-                insert.setString(2, key);
-                insert.setString(3, new String(Base64.getEncoder().encode(existingCas.get())));
-                int changed = insert.executeUpdate();
-                return CompletableFuture.completedFuture(changed > 0);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
-            }
-        } else {
-            try (PreparedStatement stmt = conn.prepareStatement(IPNS_CREATE)) {
-                stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-                stmt.setString(2, new String(Base64.getEncoder().encode(newCas)));
-                stmt.executeUpdate();
-                return CompletableFuture.completedFuture(true);
+        PendingUpdate update = new PendingUpdate(writingKey, existingCas, newCas);
+        boolean leader;
+        synchronized (pendingUpdates) {
+            if (isClosed)
+                return Futures.errored(new IllegalStateException("Mutable pointer store has been closed"));
+            pendingUpdates.add(update);
+            leader = ! committing;
+            committing = true;
+        }
+        if (! leader) // don't run dependent actions on the thread committing the group
+            return update.result.thenApplyAsync(x -> x);
+        commitPending(false);
+        return update.result;
+    }
+
+    /** Commit the next group of pending updates. The caller which starts a commit only commits the first group, which
+     *  contains its update. Any later updates are left to the committer thread, so the caller isn't held up by a
+     *  continuous stream of updates.
+     */
+    private void commitPending(boolean untilEmpty) {
+        while (true) {
+            List<PendingUpdate> group = new ArrayList<>();
+            synchronized (pendingUpdates) {
+                while (group.size() < MAX_UPDATES_PER_COMMIT && ! pendingUpdates.isEmpty())
+                    group.add(pendingUpdates.poll());
+            }
+            try {
+                commitGroup(group);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            } finally {
+                for (PendingUpdate update : group)
+                    update.result.complete(false);
+            }
+            synchronized (pendingUpdates) {
+                if (pendingUpdates.isEmpty() || isClosed) {
+                    committing = false;
+                    return;
+                }
+            }
+            if (! untilEmpty) {
+                try {
+                    committer.execute(() -> commitPending(true));
+                } catch (RejectedExecutionException e) {
+                    // we have been closed, which failed the remaining updates
+                    synchronized (pendingUpdates) {
+                        committing = false;
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void commitGroup(List<PendingUpdate> group) {
+        Map<PublicKeyHash, Optional<byte[]>> latest = new HashMap<>();
+        List<PendingUpdate> valid = new ArrayList<>();
+        for (PendingUpdate update : group) {
+            try {
+                Optional<byte[]> current = latest.containsKey(update.writer) ?
+                        latest.get(update.writer) :
+                        pointerCache.get(update.writer, this::getPointerFromDb);
+                if (! PointerCache.equal(current, update.existing)) {
+                    update.result.complete(false);
+                    continue;
+                }
+                latest.put(update.writer, Optional.of(update.updated));
+                valid.add(update);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+                update.result.complete(false);
+            }
+        }
+        if (valid.isEmpty())
+            return;
+
+        List<Boolean> results;
+        try {
+            results = setPointersInDb(valid);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            // fall back to individual updates, readers may have seen values from the rolled back transaction
+            for (PendingUpdate update : valid)
+                pointerCache.invalidate(update.writer);
+            results = valid.size() == 1 ?
+                    Collections.singletonList(false) :
+                    valid.stream()
+                            .map(this::setPointerInDb)
+                            .collect(Collectors.toList());
+        }
+        for (int i = 0; i < valid.size(); i++) {
+            PendingUpdate update = valid.get(i);
+            if (results.get(i))
+                pointerCache.casSucceeded(update.writer, update.existing, update.updated);
+            else
+                pointerCache.invalidate(update.writer);
+            update.result.complete(results.get(i));
+        }
+    }
+
+    private List<Boolean> setPointersInDb(List<PendingUpdate> updates) throws SQLException {
+        synchronized (connLock) {
+            return setPointersInTransaction(updates);
+        }
+    }
+
+    private List<Boolean> setPointersInTransaction(List<PendingUpdate> updates) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        conn.setAutoCommit(false);
+        try (PreparedStatement update = conn.prepareStatement(IPNS_UPDATE);
+             PreparedStatement create = conn.prepareStatement(IPNS_CREATE)) {
+            List<Boolean> results = new ArrayList<>();
+            for (PendingUpdate pending : updates) {
+                byte[] key = pending.writer.toBytes();
+                if (pending.existing.isPresent()) {
+                    if (migrating)
+                        migrateLegacyPointer(pending.writer);
+                    update.setBytes(1, pending.updated);
+                    update.setBytes(2, key);
+                    update.setBytes(3, pending.existing.get());
+                    results.add(update.executeUpdate() > 0);
+                } else {
+                    create.setBytes(1, key);
+                    create.setBytes(2, pending.updated);
+                    create.executeUpdate();
+                    results.add(true);
+                }
+            }
+            conn.commit();
+            return results;
+        } catch (SQLException sqe) {
+            conn.rollback();
+            throw sqe;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private boolean setPointerInDb(PendingUpdate update) {
+        try {
+            return setPointersInDb(Collections.singletonList(update)).get(0);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            return false;
+        }
+    }
+
+    /** Move a single pointer from the legacy text table to the binary table. Must be called within a transaction,
+     *  holding the connection lock.
+     */
+    private void migrateLegacyPointer(PublicKeyHash writingKey) throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement("SELECT hash FROM " + legacyTable + " WHERE writingkey = ?;");
+             PreparedStatement insert = conn.prepareStatement(IPNS_CREATE);
+             PreparedStatement delete = conn.prepareStatement("DELETE FROM " + legacyTable + " WHERE writingkey = ?;")) {
+            String key = new String(legacyKey(writingKey));
+            select.setString(1, key);
+            ResultSet rs = select.executeQuery();
+            if (! rs.next())
+                return;
+            insert.setBytes(1, writingKey.toBytes());
+            insert.setBytes(2, Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME)));
+            rs.close();
+            insert.executeUpdate();
+            delete.setString(1, key);
+            delete.executeUpdate();
+        }
+    }
+
+    /** Move a batch of pointers from the legacy text table to the binary table. This runs periodically on the committer
+     *  thread, and holds the connection lock, so it never interleaves with an update or a read.
+     */
+    private void migrateLegacyPointers() {
+        if (! migrating || isClosed)
+            return;
+        synchronized (connLock) {
+            migrateLegacyPointerBatch();
+        }
+    }
+
+    private void migrateLegacyPointerBatch() {
+        try {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement("SELECT writingkey, hash FROM " + legacyTable +
+                    " LIMIT " + MIGRATION_BATCH_SIZE + ";");
+                 PreparedStatement insert = conn.prepareStatement(IPNS_CREATE);
+                 PreparedStatement delete = conn.prepareStatement("DELETE FROM " + legacyTable + " WHERE writingkey = ?;")) {
+                ResultSet rs = select.executeQuery();
+                List<Pair<String, String>> batch = new ArrayList<>();
+                while (rs.next())
+                    batch.add(new Pair<>(rs.getString("writingkey"), rs.getString(IPNS_TARGET_NAME)));
+                rs.close();
+                for (Pair<String, String> row : batch) {
+                    insert.setBytes(1, fromLegacyKey(row.left).toBytes());
+                    insert.setBytes(2, Base64.getDecoder().decode(row.right));
+                    insert.executeUpdate();
+                    delete.setString(1, row.left);
+                    delete.executeUpdate();
+                }
+                conn.commit();
+                if (batch.size() < MIGRATION_BATCH_SIZE) {
+                    // the empty legacy table is dropped on the next start
+                    migrating = false;
+                    LOG.info("Finished migrating mutable pointers to binary table");
+                    migration.cancel(false);
+                }
             } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
+                conn.rollback();
+                throw sqe;
+            } finally {
+                conn.setAutoCommit(autoCommit);
             }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
         }
     }
 
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
+        try {
+            return CompletableFuture.completedFuture(pointerCache.get(writingKey, this::getPointerFromDb));
+        } catch (RuntimeException e) {
+            return Futures.errored(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    private Optional<byte[]> getPointerFromDb(PublicKeyHash writingKey) {
+        synchronized (connLock) {
+            return getPointerFromDbLocked(writingKey);
+        }
+    }
+
+    private Optional<byte[]> getPointerFromDbLocked(PublicKeyHash writingKey) {
+        // A pointer is only ever moved from the legacy table to the binary table, and only updated once it is there,
+        // so reading the legacy table first can't miss it, and any value found there is current.
+        Optional<byte[]> legacy = migrating ? getLegacyPointerFromDb(writingKey) : Optional.empty();
         try (PreparedStatement stmt = conn.prepareStatement(IPNS_GET)) {
-            stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
+            stmt.setBytes(1, writingKey.toBytes());
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return CompletableFuture.completedFuture(Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))));
+                return Optional.of(rs.getBytes(IPNS_TARGET_NAME));
             }
 
-            return CompletableFuture.completedFuture(Optional.empty());
+            return legacy;
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            return Futures.errored(sqe);
+            throw new RuntimeException(sqe);
         }
     }
 
-    public List<Multihash> getAllTargets(ContentAddressedStorage ipfs) {
-        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM metadatablobs")) {
+    private Optional<byte[]> getLegacyPointerFromDb(PublicKeyHash writingKey) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT hash FROM " + legacyTable + " WHERE writingkey = ? LIMIT 1;")) {
+            stmt.setString(1, new String(legacyKey(writingKey)));
             ResultSet rs = stmt.executeQuery();
-            List<Multihash> results = new ArrayList<>();
-            while (rs.next()) {
-                PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString("writingKey"))));
-                PublicSigningKey writer = ipfs.getSigningKey(writerHash).join().get();
-                byte[] signedRawCas = Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME));
-                byte[] bothHashes = writer.unsignMessage(signedRawCas);
-                HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
-                results.add(cas.updated.get());
-            }
-
-            return results;
+            if (rs.next())
+                return Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME)));
+            return Optional.empty();
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            return Collections.emptyList();
+            throw new RuntimeException(sqe);
         }
     }
 
+    public CompletableFuture<Map<PublicKeyHash, Optional<byte[]>>> getPointers(List<PublicKeyHash> writingKeys) {
+        try {
+            return CompletableFuture.completedFuture(pointerCache.getAll(writingKeys, this::getPointersFromDb));
+        } catch (RuntimeException e) {
+            return Futures.errored(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    private Map<PublicKeyHash, Optional<byte[]>> getPointersFromDb(List<PublicKeyHash> writingKeys) {
+        synchronized (connLock) {
+            return getPointersFromDbLocked(writingKeys);
+        }
+    }
+
+    private Map<PublicKeyHash, Optional<byte[]>> getPointersFromDbLocked(List<PublicKeyHash> writingKeys) {
+        Map<PublicKeyHash, Optional<byte[]>> results = new HashMap<>();
+        for (int start = 0; start < writingKeys.size(); start += MAX_KEYS_PER_QUERY) {
+            List<PublicKeyHash> batch = writingKeys.subList(start, Math.min(writingKeys.size(), start + MAX_KEYS_PER_QUERY));
+            for (PublicKeyHash writingKey : batch)
+                results.put(writingKey, Optional.empty());
+            String params = batch.stream().map(x -> "?").collect(Collectors.joining(", "));
+            // as for single reads, check the legacy table first so a concurrently migrated pointer isn't missed
+            if (migrating) {
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT writingkey, hash FROM " + legacyTable +
+                        " WHERE writingkey IN (" + params + ");")) {
+                    Map<String, PublicKeyHash> byLegacyKey = new HashMap<>();
+                    int index = 1;
+                    for (PublicKeyHash writingKey : batch) {
+                        String key = new String(legacyKey(writingKey));
+                        byLegacyKey.put(key, writingKey);
+                        stmt.setString(index++, key);
+                    }
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next())
+                        results.put(byLegacyKey.get(rs.getString("writingkey")),
+                                Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))));
+                } catch (SQLException sqe) {
+                    LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                    throw new RuntimeException(sqe);
+                }
+            }
+            Map<ByteArrayWrapper, PublicKeyHash> byKey = new HashMap<>();
+            for (PublicKeyHash writingKey : batch)
+                byKey.put(new ByteArrayWrapper(writingKey.toBytes()), writingKey);
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT writingkey, hash FROM pointers WHERE writingkey IN (" + params + ");")) {
+                int index = 1;
+                for (PublicKeyHash writingKey : batch)
+                    stmt.setBytes(index++, writingKey.toBytes());
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next())
+                    results.put(byKey.get(new ByteArrayWrapper(rs.getBytes("writingkey"))), Optional.of(rs.getBytes(IPNS_TARGET_NAME)));
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
+        }
+        return results;
+    }
+
+    public List<Multihash> getAllTargets(ContentAddressedStorage ipfs) {
+        List<Multihash> results = new ArrayList<>();
+        for (Map.Entry<PublicKeyHash, byte[]> e : getAllEntries().entrySet()) {
+            PublicSigningKey writer = ipfs.getSigningKey(e.getKey()).join().get();
+            byte[] bothHashes = writer.unsignMessage(e.getValue());
+            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
+            results.add(cas.updated.get());
+        }
+        return results;
+    }
+
     public Map<PublicKeyHash, byte[]> getAllEntries() {
-        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM metadatablobs")) {
-            ResultSet rs = stmt.executeQuery();
-            Map<PublicKeyHash, byte[]> results = new HashMap<>();
-            while (rs.next()) {
-                PublicKeyHash writerHash = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString("writingKey"))));
-                byte[] signedRawCas = Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME));
-                results.put(writerHash, signedRawCas);
+        synchronized (connLock) {
+            return getAllEntriesLocked();
+        }
+    }
+
+    private Map<PublicKeyHash, byte[]> getAllEntriesLocked() {
+        Map<PublicKeyHash, byte[]> results = new HashMap<>();
+        if (migrating) {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT writingkey, hash FROM " + legacyTable)) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next())
+                    results.put(fromLegacyKey(rs.getString("writingkey")),
+                            Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME)));
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                return Collections.emptyMap();
             }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT writingkey, hash FROM pointers")) {
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+                results.put(PublicKeyHash.decode(rs.getBytes("writingkey")), rs.getBytes(IPNS_TARGET_NAME));
 
             return results;
         } catch (SQLException sqe) {
@@ -233,12 +594,23 @@ public class JdbcIpnsAndSocial {
     public synchronized void close() {
         if (isClosed)
             return;
-        try {
-            if (conn != null)
-                conn.close();
+        List<PendingUpdate> remaining;
+        synchronized (pendingUpdates) {
             isClosed = true;
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
+            remaining = new ArrayList<>(pendingUpdates);
+            pendingUpdates.clear();
+        }
+        committer.shutdownNow();
+        // fail any updates which won't be committed now
+        for (PendingUpdate update : remaining)
+            update.result.completeExceptionally(new IllegalStateException("Mutable pointer store has been closed"));
+        synchronized (connLock) {
+            try {
+                if (conn != null)
+                    conn.close();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
         }
     }
 }
@@ -16,6 +16,7 @@ import peergos.shared.util.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class UserRepository implements SocialNetwork, MutablePointers {
 
@@ -55,6 +56,17 @@ public class UserRepository implements SocialNetwork, MutablePointers {
         return store.getPointer(writer);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        List<PublicKeyHash> writers = ownerWriterPairs.stream()
+                .map(p -> p.right)
+                .collect(Collectors.toList());
+        return store.getPointers(writers)
+                .thenApply(res -> writers.stream()
+                        .map(res::get)
+                        .collect(Collectors.toList()));
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         return getPointer(owner, writer)
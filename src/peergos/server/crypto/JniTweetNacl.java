@@ -2,6 +2,7 @@ package peergos.server.crypto;
 
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.curve25519.*;
+import peergos.shared.crypto.symmetric.PlainText;
 import peergos.shared.util.*;
 
 import java.io.*;
@@ -118,6 +119,27 @@ public class JniTweetNacl {
             return Arrays.copyOfRange(message, 32, message.length);
         }
 
+        /** The fragments are copied straight into the zero padded cipher text the native call needs, and the plain text
+         *  is read from the zero padded message it writes, without separately recombining or trimming them.
+         */
+        @Override
+        public PlainText secretbox_open(List<byte[]> cipherFragments, byte[] nonce, byte[] key) {
+            int length = 0;
+            for (byte[] fragment : cipherFragments)
+                length += fragment.length;
+            byte[] expandedCipher = new byte[length + TweetNaCl.SECRETBOX_OVERHEAD_BYTES];
+            int pos = TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+            for (byte[] fragment : cipherFragments) {
+                System.arraycopy(fragment, 0, expandedCipher, pos, fragment.length);
+                pos += fragment.length;
+            }
+            byte[] message = new byte[expandedCipher.length];
+            int res = JniTweetNacl.crypto_secretbox_open(message, expandedCipher, expandedCipher.length, nonce, key);
+            if (res != 0)
+                throw new TweetNaCl.InvalidCipherTextException();
+            return new PlainText.ArrayBacked(message, 32, message.length - 32);
+        }
+
         @Override
         public CompletableFuture<byte[]> secretboxAsync(byte[] data, byte[] nonce, byte[] key) {
             byte[] encrypted = secretbox(data, nonce, key);
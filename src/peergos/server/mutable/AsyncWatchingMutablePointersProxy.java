@@ -0,0 +1,67 @@
+package peergos.server.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Runs watches on other servers on their own threads, because a blocking poster would otherwise make a watch of
+ *  several servers wait for each server's watch in turn
+ */
+public class AsyncWatchingMutablePointersProxy implements MutablePointersProxy {
+
+    private final MutablePointersProxy target;
+    private final ExecutorService watchers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Remote mutable pointer watch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public AsyncWatchingMutablePointersProxy(MutablePointersProxy target) {
+        this.target = target;
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(Multihash targetServerId, List<WatchedPointer> watched) {
+        return CompletableFuture.supplyAsync(() -> target.watchPointers(targetServerId, watched), watchers)
+                .thenCompose(x -> x);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> setPointer(Multihash targetServerId, PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        return target.setPointer(targetServerId, owner, writer, writerSignedBtreeRootHash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getPointer(Multihash targetServerId, PublicKeyHash owner, PublicKeyHash writer) {
+        return target.getPointer(targetServerId, owner, writer);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(Multihash targetServerId, List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return target.getPointers(targetServerId, ownerWriterPairs);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        return target.setPointer(owner, writer, writerSignedBtreeRootHash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+        return target.getPointer(owner, writer);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return target.getPointers(ownerWriterPairs);
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        return target.watchPointers(watched);
+    }
+}
@@ -2,6 +2,7 @@ package peergos.server.mutable;
 
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -32,4 +33,22 @@ public class BlockingMutablePointers implements MutablePointers {
         res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
         return res;
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        if (ownerWriterPairs.stream().allMatch(p -> blacklist.isAllowed(p.right)))
+            return source.getPointers(ownerWriterPairs);
+        CompletableFuture<List<Optional<byte[]>>> res = new CompletableFuture<>();
+        res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        if (watched.stream().allMatch(w -> blacklist.isAllowed(w.writer)))
+            return source.watchPointers(watched);
+        CompletableFuture<List<WatchedPointer>> res = new CompletableFuture<>();
+        res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
+        return res;
+    }
 }
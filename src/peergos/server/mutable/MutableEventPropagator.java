@@ -2,6 +2,7 @@ package peergos.server.mutable;
 
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -9,11 +10,27 @@ import java.util.function.*;
 
 public class MutableEventPropagator implements MutablePointers {
 
+    private static final long WATCH_TIMEOUT_MILLIS = 25_000;
+
     private final MutablePointers target;
+    private final long watchTimeoutMillis;
     private final List<Consumer<? super MutableEvent>> listeners = new ArrayList<>();
+    private final Map<PublicKeyHash, Set<CompletableFuture<List<WatchedPointer>>>> watchers = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Mutable pointer watch timeouts");
+        t.setDaemon(true);
+        return t;
+    });
 
-    public MutableEventPropagator(MutablePointers target) {
+    public MutableEventPropagator(MutablePointers target, long watchTimeoutMillis) {
         this.target = target;
+        this.watchTimeoutMillis = watchTimeoutMillis;
+        // most watches complete early, so don't keep their cancelled timeouts queued
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    public MutableEventPropagator(MutablePointers target) {
+        this(target, WATCH_TIMEOUT_MILLIS);
     }
 
     public void addListener(Consumer<? super MutableEvent> listener) {
@@ -29,6 +46,7 @@ public class MutableEventPropagator implements MutablePointers {
                         for (Consumer<? super MutableEvent> listener : listeners) {
                             listener.accept(event);
                         }
+                        notifyWatchers(event);
                     }
                     return res;
                 });
@@ -38,4 +56,61 @@ public class MutableEventPropagator implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return target.getPointers(ownerWriterPairs);
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        CompletableFuture<List<WatchedPointer>> res = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = timeouts.schedule(() -> res.complete(Collections.emptyList()),
+                    watchTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException closed) {
+            return MutablePointers.super.watchPointers(watched);
+        }
+        for (WatchedPointer w : watched)
+            watchers.computeIfAbsent(w.writer, x -> ConcurrentHashMap.newKeySet()).add(res);
+        res.whenComplete((changed, t) -> {
+            timeout.cancel(false);
+            for (WatchedPointer w : watched)
+                watchers.computeIfPresent(w.writer, (x, waiting) -> {
+                    waiting.remove(res);
+                    return waiting.isEmpty() ? null : waiting;
+                });
+        });
+
+        // Only check the current values after registering, so no update can be missed
+        MutablePointers.super.watchPointers(watched)
+                .thenAccept(changed -> {
+                    if (! changed.isEmpty())
+                        res.complete(changed);
+                }).exceptionally(t -> {
+                    res.completeExceptionally(t);
+                    return null;
+                });
+        return res;
+    }
+
+    /** Complete all outstanding watches without changes, and stop waiting in future watches
+     */
+    public void close() {
+        timeouts.shutdownNow();
+        for (Set<CompletableFuture<List<WatchedPointer>>> waiting : new ArrayList<>(watchers.values()))
+            for (CompletableFuture<List<WatchedPointer>> watcher : new ArrayList<>(waiting))
+                watcher.complete(Collections.emptyList());
+    }
+
+    private void notifyWatchers(MutableEvent event) {
+        Set<CompletableFuture<List<WatchedPointer>>> waiting = watchers.get(event.writer);
+        if (waiting == null)
+            return;
+        List<WatchedPointer> changed = Collections.singletonList(
+                new WatchedPointer(event.owner, event.writer, Optional.of(event.writerSignedBtreeRootHash)));
+        for (CompletableFuture<List<WatchedPointer>> watcher : new ArrayList<>(waiting))
+            watcher.complete(changed);
+    }
 }
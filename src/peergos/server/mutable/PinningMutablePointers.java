@@ -10,6 +10,7 @@ import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -70,4 +71,14 @@ public class PinningMutablePointers implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return target.getPointers(ownerWriterPairs);
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        return target.watchPointers(watched);
+    }
 }
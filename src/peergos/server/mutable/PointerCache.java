@@ -0,0 +1,112 @@
+package peergos.server.mutable;
+
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** An authoritative in-memory cache of the mutable pointers stored on this server.
+ *
+ *  This server is the only writer of its pointers, so entries never expire. They are loaded lazily on first read and
+ *  replaced after every successful compare-and-swap. An update whose original value doesn't match the cached value
+ *  (because concurrent updates completed out of order) evicts the entry, so the next read reloads it from the store.
+ *
+ *  The number of entries is bounded. When it is exceeded arbitrary entries are evicted, which is always safe because
+ *  they are reloaded from the store on the next read. Keys are hashes, so this is close to random eviction.
+ */
+public class PointerCache {
+    // a signed pointer is a few hundred bytes, so this is tens of MiB at most
+    public static final int DEFAULT_MAX_SIZE = 100_000;
+
+    private final ConcurrentHashMap<PublicKeyHash, Optional<byte[]>> cache = new ConcurrentHashMap<>();
+    private final int maxSize;
+    // incremented before every cache update, so bulk loads can detect updates that raced with them
+    private final AtomicLong updates = new AtomicLong(0);
+
+    public PointerCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public PointerCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public Optional<byte[]> get(PublicKeyHash writer, Function<PublicKeyHash, Optional<byte[]>> loader) {
+        Optional<byte[]> cached = cache.get(writer);
+        if (cached != null)
+            return cached;
+        Optional<byte[]> res = cache.computeIfAbsent(writer, loader);
+        evictIfFull();
+        return res;
+    }
+
+    /** Get the pointers for many writers, loading all the missing ones with a single call to the loader
+     *
+     * @param writers
+     * @param loader must return an entry for every writer it is given
+     * @return
+     */
+    public Map<PublicKeyHash, Optional<byte[]>> getAll(Collection<PublicKeyHash> writers,
+                                                       Function<List<PublicKeyHash>, Map<PublicKeyHash, Optional<byte[]>>> loader) {
+        Map<PublicKeyHash, Optional<byte[]>> res = new HashMap<>();
+        Set<PublicKeyHash> missing = new LinkedHashSet<>();
+        for (PublicKeyHash writer : writers) {
+            Optional<byte[]> cached = cache.get(writer);
+            if (cached != null)
+                res.put(writer, cached);
+            else
+                missing.add(writer);
+        }
+        if (missing.isEmpty())
+            return res;
+
+        long before = updates.get();
+        Map<PublicKeyHash, Optional<byte[]>> loaded = loader.apply(new ArrayList<>(missing));
+        for (PublicKeyHash writer : missing) {
+            Optional<byte[]> value = loaded.get(writer);
+            // Only cache values if no update could have completed after we read them
+            cache.compute(writer, (w, current) -> current != null ? current : updates.get() == before ? value : null);
+            res.put(writer, value);
+        }
+        evictIfFull();
+        return res;
+    }
+
+    private void evictIfFull() {
+        if (cache.size() <= maxSize)
+            return;
+        Iterator<PublicKeyHash> keys = cache.keySet().iterator();
+        while (cache.size() > maxSize && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /** Must be called after the store has successfully committed the update from existing to updated
+     *
+     * @param writer
+     * @param existing the value the store compared against
+     * @param updated the new value in the store
+     */
+    public void casSucceeded(PublicKeyHash writer, Optional<byte[]> existing, byte[] updated) {
+        updates.incrementAndGet();
+        cache.computeIfPresent(writer, (w, current) -> equal(current, existing) ? Optional.of(updated) : null);
+    }
+
+    public void invalidate(PublicKeyHash writer) {
+        updates.incrementAndGet();
+        cache.remove(writer);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public static boolean equal(Optional<byte[]> a, Optional<byte[]> b) {
+        if (a.isPresent() != b.isPresent())
+            return false;
+        return ! a.isPresent() || Arrays.equals(a.get(), b.get());
+    }
+}
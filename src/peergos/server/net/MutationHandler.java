@@ -4,6 +4,7 @@ import com.sun.net.httpserver.*;
 import peergos.server.*;
 import peergos.server.mutable.*;
 import peergos.server.util.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.util.*;
@@ -11,7 +12,9 @@ import peergos.shared.util.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
 /** This is the http endpoint for MutablePointer calls
  *
@@ -19,6 +22,8 @@ import java.util.logging.*;
 public class MutationHandler implements HttpHandler {
     private static final Logger LOG = Logging.LOG();
 
+    private static final int MAX_POINTERS_REQUEST_SIZE = 1024 * 1024;
+
     private final MutablePointers mutable;
 
     public MutationHandler(MutablePointers mutable) {
@@ -40,22 +45,39 @@ public class MutationHandler implements HttpHandler {
         String method = subComponents[0];
 //            LOG.info("core method "+ method +" from path "+ path);
 
+        if (method.equals("watchPointers")) {
+            watchPointers(exchange, din, t1);
+            return;
+        }
+
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
-        PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
-        PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
+        Supplier<PublicKeyHash> owner = () -> PublicKeyHash.fromString(params.get("owner").get(0));
+        Supplier<PublicKeyHash> writer = () -> PublicKeyHash.fromString(params.get("writer").get(0));
         try {
             switch (method) {
                 case "setPointer":
                     AggregatedMetrics.MUTABLE_POINTERS_SET.inc();
                     byte[] signedPayload = Serialize.readFully(din, 1024);
-                    boolean isAdded = mutable.setPointer(owner, writer, signedPayload).get();
+                    boolean isAdded = mutable.setPointer(owner.get(), writer.get(), signedPayload).get();
                     dout.writeBoolean(isAdded);
                     break;
                 case "getPointer":
                     AggregatedMetrics.MUTABLE_POINTERS_GET.inc();
-                    byte[] metadataBlob = mutable.getPointer(owner, writer).get().orElse(new byte[0]);
+                    byte[] metadataBlob = mutable.getPointer(owner.get(), writer.get()).get().orElse(new byte[0]);
                     dout.write(metadataBlob);
                     break;
+                case "getPointers":
+                    AggregatedMetrics.MUTABLE_POINTERS_GET.inc();
+                    CborObject.CborList request = (CborObject.CborList) CborObject.fromByteArray(Serialize.readFully(din, MAX_POINTERS_REQUEST_SIZE));
+                    List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs = request.map(c -> {
+                        CborObject.CborList pair = (CborObject.CborList) c;
+                        return new Pair<>(pair.get(0, PublicKeyHash::fromCbor), pair.get(1, PublicKeyHash::fromCbor));
+                    });
+                    List<Optional<byte[]>> pointers = mutable.getPointers(ownerWriterPairs).get();
+                    dout.write(new CborObject.CborList(pointers.stream()
+                            .map(p -> new CborObject.CborByteArray(p.orElse(new byte[0])))
+                            .collect(Collectors.toList())).serialize());
+                    break;
                 default:
                     throw new IOException("Unknown method in mutable pointers!");
             }
@@ -71,4 +93,35 @@ public class MutationHandler implements HttpHandler {
             LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
         }
     }
+
+    /** Reply once any of the watched pointers change, without holding a handler thread while waiting
+     *
+     */
+    private void watchPointers(HttpExchange exchange, DataInputStream din, long t1) {
+        try {
+            AggregatedMetrics.MUTABLE_POINTERS_GET.inc();
+            CborObject.CborList request = (CborObject.CborList) CborObject.fromByteArray(Serialize.readFully(din, MAX_POINTERS_REQUEST_SIZE));
+            List<WatchedPointer> watched = request.map(WatchedPointer::fromCbor);
+            mutable.watchPointers(watched).whenComplete((changed, err) -> {
+                try {
+                    if (err != null) {
+                        HttpUtil.replyError(exchange, err);
+                        return;
+                    }
+                    byte[] b = new CborObject.CborList(changed).serialize();
+                    exchange.sendResponseHeaders(200, b.length);
+                    exchange.getResponseBody().write(b);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                } finally {
+                    exchange.close();
+                    long t2 = System.currentTimeMillis();
+                    LOG.info("Mutable pointers server handled watchPointers request in: " + (t2 - t1) + " mS");
+                }
+            });
+        } catch (Exception e) {
+            HttpUtil.replyError(exchange, e);
+            exchange.close();
+        }
+    }
 }
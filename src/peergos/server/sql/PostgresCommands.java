@@ -16,6 +16,11 @@ public class PostgresCommands implements SqlSupplier {
 
     @Override
     public String insertTransactionCommand() {
-        return "INSERT INTO transactions (tid, owner, hash) VALUES(?, ?, ?) ON CONFLICT DO NOTHING;";
+        return "INSERT INTO transactionblocks (tid, owner, hash) VALUES(?, ?, ?) ON CONFLICT DO NOTHING;";
+    }
+
+    @Override
+    public String sqlByteArrayType() {
+        return "bytea";
     }
 }
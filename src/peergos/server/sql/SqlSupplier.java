@@ -10,9 +10,28 @@ public interface SqlSupplier {
 
     String insertTransactionCommand();
 
+    String sqlByteArrayType();
+
+    default boolean tableExists(String table, Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(listTablesCommand())) {
+            while (rs.next())
+                if (rs.getString(1).equalsIgnoreCase(table))
+                    return true;
+            return false;
+        }
+    }
+
     default String createMutablePointersTableCommand() {
-        return "CREATE TABLE IF NOT EXISTS metadatablobs (writingkey text primary key not null, hash text not null); " +
-                "CREATE UNIQUE INDEX IF NOT EXISTS index_name ON metadatablobs (writingkey);";
+        return "CREATE TABLE IF NOT EXISTS pointers (writingkey " + sqlByteArrayType() + " primary key not null, " +
+                "hash " + sqlByteArrayType() + " not null);";
+    }
+
+    /** The original pointers table, which stored keys and values as base64 text. It is only read while its entries
+     *  are migrated to the binary table.
+     */
+    default String legacyMutablePointersTableName() {
+        return "metadatablobs";
     }
 
     default String createSpaceRequestsTableCommand() {
@@ -20,8 +39,15 @@ public interface SqlSupplier {
     }
 
     default String createTransactionsTableCommand() {
-        return "CREATE TABLE IF NOT EXISTS transactions (" +
-                "tid varchar(64) not null, owner varchar(64) not null, hash varchar(64) not null);";
+        return "CREATE TABLE IF NOT EXISTS transactionblocks (tid varchar(64) not null, " +
+                "owner " + sqlByteArrayType() + " not null, hash " + sqlByteArrayType() + " not null, " +
+                "PRIMARY KEY (tid, owner, hash));";
+    }
+
+    /** The original transactions table, which stored owners and block hashes as text
+     */
+    default String legacyTransactionsTableName() {
+        return "transactions";
     }
 
     default void createTable(String sqlTableCreate, Connection conn) throws SQLException {
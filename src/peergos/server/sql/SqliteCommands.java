@@ -19,4 +19,9 @@ public class SqliteCommands implements SqlSupplier {
     public String insertTransactionCommand() {
         return JdbcTransactionStore.INSERT_TRANSACTIONS_BLOCK;
     }
+
+    @Override
+    public String sqlByteArrayType() {
+        return "blob";
+    }
 }
@@ -85,10 +85,11 @@ public class IpfsDHT implements ContentAddressedStorage {
                                                    TransactionId tid) {
         CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
         try {
-            res.complete(ipfs.block.put(blocks, Optional.of(format))
-                    .stream()
-                    .map(n -> n.hash)
-                    .collect(Collectors.toList()));
+            // IPFS only stores the first block of a multi-block put
+            List<Multihash> hashes = new ArrayList<>();
+            for (byte[] block : blocks)
+                hashes.add(ipfs.block.put(Collections.singletonList(block), Optional.of(format)).get(0).hash);
+            res.complete(hashes);
         } catch (Exception e) {
             res.completeExceptionally(e);
         }
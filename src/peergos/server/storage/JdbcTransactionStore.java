@@ -17,9 +17,9 @@ import java.util.stream.*;
 public class JdbcTransactionStore implements TransactionStore {
 	private static final Logger LOG = Logging.LOG();
 
-    public static final String INSERT_TRANSACTIONS_BLOCK = "INSERT OR IGNORE INTO transactions (tid, owner, hash) VALUES (?, ?, ?);";
-    private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash FROM transactions;";
-    private static final String DELETE_TRANSACTION = "DELETE FROM transactions WHERE tid = ? AND owner = ?;";
+    public static final String INSERT_TRANSACTIONS_BLOCK = "INSERT OR IGNORE INTO transactionblocks (tid, owner, hash) VALUES (?, ?, ?);";
+    private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash FROM transactionblocks;";
+    private static final String DELETE_TRANSACTION = "DELETE FROM transactionblocks WHERE tid = ? AND owner = ?;";
 
     private Connection conn;
     private final SqlSupplier commands;
@@ -45,11 +45,43 @@ public class JdbcTransactionStore implements TransactionStore {
 
         try {
             commands.createTable(commands.createTransactionsTableCommand(), conn);
+            if (commands.tableExists(commands.legacyTransactionsTableName(), conn))
+                migrateLegacyTransactions(commands);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /** Open transactions only last as long as an upload, so the text table is small enough to migrate in one go
+     */
+    private void migrateLegacyTransactions(SqlSupplier commands) throws SQLException {
+        String legacy = commands.legacyTransactionsTableName();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement select = conn.prepareStatement("SELECT tid, owner, hash FROM " + legacy + ";");
+             PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand());
+             Statement drop = conn.createStatement()) {
+            ResultSet rs = select.executeQuery();
+            int migrated = 0;
+            while (rs.next()) {
+                insert.setString(1, rs.getString("tid"));
+                insert.setBytes(2, PublicKeyHash.fromString(rs.getString("owner")).toBytes());
+                insert.setBytes(3, Cid.decode(rs.getString("hash")).toBytes());
+                insert.executeUpdate();
+                migrated++;
+            }
+            rs.close();
+            drop.executeUpdate("DROP TABLE " + legacy + ";");
+            conn.commit();
+            LOG.info("Migrated " + migrated + " open transaction blocks to binary table");
+        } catch (SQLException sqe) {
+            conn.rollback();
+            throw sqe;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
     @Override
     public TransactionId startTransaction(PublicKeyHash owner) {
         return new TransactionId(UUID.randomUUID().toString());
@@ -61,8 +93,8 @@ public class JdbcTransactionStore implements TransactionStore {
         try {
             insert.clearParameters();
             insert.setString(1, tid.toString());
-            insert.setString(2, owner.toString());
-            insert.setString(3, hash.toString());
+            insert.setBytes(2, owner.toBytes());
+            insert.setBytes(3, hash.toBytes());
             insert.executeUpdate();
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
@@ -73,7 +105,7 @@ public class JdbcTransactionStore implements TransactionStore {
     public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
         try (PreparedStatement delete = conn.prepareStatement(DELETE_TRANSACTION)) {
             delete.setString(1, tid.toString());
-            delete.setString(2, owner.toString());
+            delete.setBytes(2, owner.toBytes());
             delete.executeUpdate();
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
@@ -86,12 +118,7 @@ public class JdbcTransactionStore implements TransactionStore {
             ResultSet rs = select.executeQuery();
             List<Multihash> results = new ArrayList<>();
             while (rs.next())
-            {
-                String tid = rs.getString("tid");
-                String owner = rs.getString("owner");
-                String hash = rs.getString("hash");
-                results.add(Cid.decode(hash));
-            }
+                results.add(Cid.cast(rs.getBytes("hash")));
             return results;
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
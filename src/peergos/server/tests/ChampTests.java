@@ -9,6 +9,7 @@ import peergos.server.sql.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
@@ -18,6 +19,7 @@ import peergos.shared.util.*;
 
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -244,6 +246,83 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void parallelDiffMatchesSequential() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        int bitWidth = 3;
+        int maxCollisions = 2;
+        Pair<Champ, Multihash> original = randomTree(user, r, 0, 32, 2000, bitWidth, maxCollisions, hasher,
+                randomHash, storage);
+        List<Pair<ByteArrayWrapper, MaybeMultihash>> mappings = new ArrayList<>();
+        original.left.applyToAllMappings(mappings, (all, m) -> {
+            all.add(m);
+            return Futures.of(all);
+        }, storage).get();
+
+        // change mappings all over the tree, so many subtrees differ
+        Set<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> expected = new HashSet<>();
+        Champ current = original.left;
+        Multihash currentHash = original.right;
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        for (int i = 0; i < 300; i++) {
+            ByteArrayWrapper key;
+            MaybeMultihash existing, updated;
+            if (i % 3 == 0) {
+                key = new ByteArrayWrapper(randomKey(new byte[0], 32, r));
+                existing = MaybeMultihash.empty();
+                updated = MaybeMultihash.of(randomHash.get());
+            } else {
+                Pair<ByteArrayWrapper, MaybeMultihash> mapping = mappings.remove(r.nextInt(mappings.size()));
+                key = mapping.left;
+                existing = mapping.right;
+                updated = i % 3 == 1 ? MaybeMultihash.of(randomHash.get()) : MaybeMultihash.empty();
+            }
+            Pair<Champ, Multihash> next = current.put(user.publicKeyHash, user, key, hasher.apply(key), 0, existing,
+                    updated, bitWidth, maxCollisions, hasher, tid, storage, writeHasher, currentHash).get();
+            current = next.left;
+            currentHash = next.right;
+            expected.add(new Triple<>(key, existing, updated));
+        }
+
+        // RAM storage completes every fetch immediately, so the diff is computed sequentially
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> sequential = new ArrayList<>();
+        Champ.applyToDiff(MaybeMultihash.of(original.right), MaybeMultihash.of(currentHash), 0, hasher,
+                Collections.emptyList(), Collections.emptyList(), sequential::add, bitWidth, storage).join();
+        Assert.assertEquals(expected.size(), sequential.size());
+        Assert.assertEquals(expected, new HashSet<>(sequential));
+
+        // complete fetches concurrently and out of order
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            ContentAddressedStorage slow = new WriteFilter(storage, (w, s) -> true) {
+                @Override
+                public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                    return CompletableFuture.supplyAsync(() -> {
+                        try {
+                            Thread.sleep(r.nextInt(3));
+                        } catch (InterruptedException e) {}
+                        return super.get(hash).join();
+                    }, pool);
+                }
+            };
+            List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> parallel = new ArrayList<>();
+            Champ.applyToDiff(MaybeMultihash.of(original.right), MaybeMultihash.of(currentHash), 0, hasher,
+                    Collections.emptyList(), Collections.emptyList(), parallel::add, bitWidth, slow).join();
+            Assert.assertEquals(sequential.size(), parallel.size());
+            Assert.assertEquals(new HashSet<>(sequential), new HashSet<>(parallel));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     @Test
     public void canonicalDelete() throws Exception {
         RAMStorage storage = new RAMStorage();
@@ -345,6 +424,176 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void putAllMatchesSequentialPuts() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        int bitWidth = 5;
+        int maxCollisions = 3;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Pair<Champ, Multihash> root = randomTree(user, r, 0, 32, 500, bitWidth, maxCollisions, hasher, randomHash, storage);
+
+        // a mixture of inserts, and updates and removals of keys inserted earlier in the batch
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> mutations = new ArrayList<>();
+        Map<ByteArrayWrapper, MaybeMultihash> state = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomKey(new byte[0], 32, r));
+            MaybeMultihash value = MaybeMultihash.of(randomHash.get());
+            mutations.add(new Triple<>(key, MaybeMultihash.empty(), value));
+            state.put(key, value);
+            if (i % 10 == 0) {
+                MaybeMultihash updated = i % 20 == 0 ? MaybeMultihash.empty() : MaybeMultihash.of(randomHash.get());
+                mutations.add(new Triple<>(key, value, updated));
+                state.put(key, updated);
+            }
+        }
+
+        Pair<Champ, Multihash> sequential = root;
+        for (Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash> m : mutations)
+            sequential = sequential.left.put(user.publicKeyHash, user, m.left, hasher.apply(m.left), 0, m.middle, m.right,
+                    bitWidth, maxCollisions, hasher, tid, storage, writeHasher, sequential.right).get();
+
+        Pair<Champ, Multihash> bulk = root.left.putAll(user.publicKeyHash, user, mutations, bitWidth, maxCollisions,
+                hasher, tid, storage, writeHasher, root.right).get();
+        if (! bulk.right.equals(sequential.right))
+            throw new IllegalStateException("Bulk mutation resulted in a different tree!");
+
+        Champ stored = Champ.fromCbor(storage.get(bulk.right).get().get());
+        for (Map.Entry<ByteArrayWrapper, MaybeMultihash> e : state.entrySet()) {
+            MaybeMultihash res = stored.get(e.getKey(), hasher.apply(e.getKey()), 0, bitWidth, storage).get();
+            if (! res.equals(e.getValue()))
+                throw new IllegalStateException("Incorrect state!");
+        }
+    }
+
+    @Test
+    public void bulkBuildMatchesIncremental() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        for (int bitWidth : new int[]{3, 5}) {
+            for (int prefixLen : new int[]{0, 1, 2}) {
+                for (int nKeys : new int[]{0, 1, 3, 4, 100, 1000}) {
+                    // a shared prefix forces deep collisions with the identity hash
+                    byte[] prefix = new byte[prefixLen];
+                    r.nextBytes(prefix);
+                    Pair<Champ, Multihash> incremental = new Pair<>(Champ.empty(),
+                            storage.put(user.publicKeyHash, user, Champ.empty().serialize(), writeHasher, tid).get());
+                    List<Pair<ByteArrayWrapper, Multihash>> mappings = new ArrayList<>();
+                    for (int i = 0; i < nKeys; i++) {
+                        ByteArrayWrapper key = new ByteArrayWrapper(randomKey(prefix, 32, r));
+                        Multihash value = randomHash.get();
+                        mappings.add(new Pair<>(key, value));
+                        incremental = incremental.left.put(user.publicKeyHash, user, key, hasher.apply(key), 0,
+                                MaybeMultihash.empty(), MaybeMultihash.of(value), bitWidth, 3, hasher, tid, storage,
+                                writeHasher, incremental.right).get();
+                    }
+
+                    Pair<Champ, Multihash> built = Champ.build(user.publicKeyHash, user, mappings.stream(), bitWidth, 3,
+                            hasher, tid, storage, writeHasher).get();
+                    if (! built.right.equals(incremental.right))
+                        throw new IllegalStateException("Bulk built tree differs from incrementally built tree! "
+                                + bitWidth + " bits, " + nKeys + " keys");
+                    for (Pair<ByteArrayWrapper, Multihash> m : mappings) {
+                        MaybeMultihash res = built.left.get(m.left, hasher.apply(m.left), 0, bitWidth, storage).get();
+                        if (! res.equals(MaybeMultihash.of(m.right)))
+                            throw new IllegalStateException("Incorrect state!");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void getAllMatchesGet() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        for (int bitWidth : new int[]{3, 5}) {
+            for (int prefixLen : new int[]{0, 1, 2}) {
+                Pair<Champ, Multihash> tree = randomTree(user, r, prefixLen, 32, 300, bitWidth, 3, hasher,
+                        randomHash, storage);
+                List<ByteArrayWrapper> present = new ArrayList<>();
+                tree.left.applyToAllMappings(present, (all, m) -> {
+                    all.add(m.left);
+                    return Futures.of(all);
+                }, storage).get();
+                for (int nKeys : new int[]{0, 1, 10, 200}) {
+                    // a mix of present and absent keys
+                    List<Pair<ByteArrayWrapper, byte[]>> keys = new ArrayList<>();
+                    for (int i = 0; i < nKeys; i++) {
+                        ByteArrayWrapper key = i % 3 == 0 ?
+                                new ByteArrayWrapper(randomKey(new byte[0], prefixLen + 32, r)) :
+                                present.get(r.nextInt(present.size()));
+                        keys.add(new Pair<>(key, hasher.apply(key)));
+                    }
+                    Map<ByteArrayWrapper, MaybeMultihash> all = tree.left.getAll(keys, 0, bitWidth, storage).get();
+                    for (Pair<ByteArrayWrapper, byte[]> key : keys) {
+                        MaybeMultihash single = tree.left.get(key.left, key.right, 0, bitWidth, storage).get();
+                        Assert.assertEquals(single, all.get(key.left));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void decodedNodesAreCachedPerStorage() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        CachingStorage caching = new CachingStorage(storage, 100, 50 * 1024);
+        Random r = new Random(28);
+
+        // a node which only exists in an unflushed buffer is never seen through other storage
+        BufferedStorage buffer = new BufferedStorage(storage);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        ByteArrayWrapper key = new ByteArrayWrapper(randomKey(new byte[0], 32, r));
+        Multihash value = new Multihash(Multihash.Type.sha2_256, randomKey(new byte[0], 32, r));
+        Champ single = Champ.empty().put(user.publicKeyHash, user, key, hasher.apply(key), 0, MaybeMultihash.empty(),
+                MaybeMultihash.of(value), 5, 3, hasher, tid, buffer, writeHasher, null).get().left;
+        Multihash buffered = buffer.put(user.publicKeyHash, user, single.serialize(), writeHasher, tid).get();
+        Assert.assertTrue(Champ.load(buffered, buffer).get().isPresent());
+        Assert.assertFalse(Champ.load(buffered, caching).get().isPresent());
+        Assert.assertFalse(Champ.load(buffered, storage).get().isPresent());
+
+        // once it is durable the decoded node is cached by the caching storage only
+        Multihash durable = storage.put(user.publicKeyHash, user, single.serialize(), writeHasher, tid).get();
+        Assert.assertEquals(buffered, durable);
+        Champ first = Champ.load(durable, caching).get().get();
+        Assert.assertSame(first, Champ.load(durable, caching).get().get());
+        Assert.assertNotSame(first, Champ.load(durable, storage).get().get());
+        Assert.assertEquals(single.serialize().length, first.serialize().length);
+
+        // mutations load through a write-back buffer, which uses the cache behind it for nodes it doesn't hold
+        BufferedStorage writeBack = new BufferedStorage(caching);
+        Assert.assertSame(first, Champ.load(durable, writeBack).get().get());
+        Champ other = Champ.empty().put(user.publicKeyHash, user, key, hasher.apply(key), 0, MaybeMultihash.empty(),
+                MaybeMultihash.of(durable), 5, 3, hasher, tid, writeBack, writeHasher, null).get().left;
+        Multihash otherHash = writeBack.put(user.publicKeyHash, user, other.serialize(), writeHasher, tid).get();
+        Assert.assertTrue(Champ.load(otherHash, writeBack).get().isPresent());
+        Assert.assertFalse("Buffered nodes aren't cached", Champ.load(otherHash, caching).get().isPresent());
+    }
+
     private static byte[] randomKey(byte[] startingWith, int extraBytes, Random r) {
         byte[] suffix = new byte[extraBytes];
         r.nextBytes(suffix);
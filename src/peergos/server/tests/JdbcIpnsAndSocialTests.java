@@ -0,0 +1,172 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.net.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class JdbcIpnsAndSocialTests {
+    private static final Random random = new Random(42);
+
+    @Test
+    public void migrateLegacyPointers() throws Exception {
+        Connection conn = Sqlite.build(":memory:");
+        SqliteCommands commands = new SqliteCommands();
+        // write pointers the way they used to be written, as base64 text
+        commands.createTable("CREATE TABLE metadatablobs (writingkey text primary key not null, hash text not null);", conn);
+        Map<PublicKeyHash, byte[]> pointers = new LinkedHashMap<>();
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO metadatablobs (writingkey, hash) VALUES(?, ?)")) {
+            for (int i = 0; i < 1200; i++) {
+                PublicKeyHash writer = randomWriter();
+                byte[] value = randomBytes(100);
+                pointers.put(writer, value);
+                insert.setString(1, new String(Base64.getEncoder().encode(writer.serialize())));
+                insert.setString(2, new String(Base64.getEncoder().encode(value)));
+                insert.executeUpdate();
+            }
+        }
+
+        JdbcIpnsAndSocial store = new JdbcIpnsAndSocial(conn, commands);
+        List<PublicKeyHash> writers = new ArrayList<>(pointers.keySet());
+
+        // update a pointer which is still in the legacy table, and add a new one
+        PublicKeyHash updated = writers.get(writers.size() - 1);
+        byte[] newValue = randomBytes(100);
+        Assert.assertTrue(store.setPointer(updated, Optional.of(pointers.get(updated)), newValue).join());
+        Assert.assertFalse("Stale update is rejected",
+                store.setPointer(updated, Optional.of(pointers.get(updated)), randomBytes(100)).join());
+        pointers.put(updated, newValue);
+        PublicKeyHash added = randomWriter();
+        byte[] addedValue = randomBytes(100);
+        Assert.assertTrue(store.setPointer(added, Optional.empty(), addedValue).join());
+        pointers.put(added, addedValue);
+
+        // read back while the pointers are being migrated
+        checkPointers(store, pointers);
+        long start = System.currentTimeMillis();
+        while (legacyRows(conn) > 0) {
+            Assert.assertTrue("Migration finished", System.currentTimeMillis() - start < 30_000);
+            Thread.sleep(100);
+        }
+
+        // a restart drops the empty legacy table and reads the binary one
+        JdbcIpnsAndSocial restarted = new JdbcIpnsAndSocial(conn, commands);
+        Assert.assertFalse(commands.tableExists("metadatablobs", conn));
+        checkPointers(restarted, pointers);
+        Assert.assertEquals(pointers.keySet(), restarted.getAllEntries().keySet());
+        store.close();
+    }
+
+    @Test
+    public void getPointersFromDb() throws Exception {
+        JdbcIpnsAndSocial store = new JdbcIpnsAndSocial(Sqlite.build(":memory:"), new SqliteCommands());
+        Map<PublicKeyHash, byte[]> pointers = setRandomPointers(store, 1200);
+
+        // more keys than fit in one query, with missing and repeated keys
+        List<PublicKeyHash> request = new ArrayList<>(pointers.keySet());
+        for (int i = 0; i < 300; i++)
+            request.add(randomWriter());
+        request.add(request.get(0));
+        Collections.shuffle(request, random);
+
+        // cache some of them first, so the rest are loaded from the db
+        for (PublicKeyHash writer : request.subList(0, 100))
+            store.getPointer(writer).join();
+
+        Map<PublicKeyHash, Optional<byte[]>> res = store.getPointers(request).join();
+        Assert.assertEquals(new HashSet<>(request), res.keySet());
+        for (PublicKeyHash writer : request) {
+            if (pointers.containsKey(writer))
+                Assert.assertArrayEquals(pointers.get(writer), res.get(writer).get());
+            else
+                Assert.assertFalse(res.get(writer).isPresent());
+        }
+        store.close();
+    }
+
+    @Test
+    public void getPointersOverHttp() throws Exception {
+        JdbcIpnsAndSocial store = new JdbcIpnsAndSocial(Sqlite.build(":memory:"), new SqliteCommands());
+        Map<PublicKeyHash, byte[]> pointers = setRandomPointers(store, 50);
+        int port = 5680;
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 10);
+        server.createContext("/" + Constants.MUTABLE_POINTERS_URL, new MutationHandler(new UserRepository(new RAMStorage(), store)));
+        server.setExecutor(Executors.newFixedThreadPool(2));
+        server.start();
+        try {
+            JavaPoster poster = new JavaPoster(new URL("http://localhost:" + port + "/"));
+            MutablePointers mutable = new HttpMutablePointers(poster, poster);
+            PublicKeyHash owner = randomWriter();
+            List<PublicKeyHash> writers = new ArrayList<>(pointers.keySet());
+            writers.add(10, randomWriter());
+            List<Optional<byte[]>> res = mutable.getPointers(writers.stream()
+                    .map(w -> new Pair<>(owner, w))
+                    .collect(Collectors.toList())).join();
+
+            Assert.assertEquals(writers.size(), res.size());
+            for (int i = 0; i < writers.size(); i++) {
+                Optional<byte[]> single = mutable.getPointer(owner, writers.get(i)).join();
+                Assert.assertEquals(single.isPresent(), res.get(i).isPresent());
+                if (pointers.containsKey(writers.get(i)))
+                    Assert.assertArrayEquals(pointers.get(writers.get(i)), res.get(i).get());
+            }
+            Assert.assertFalse(res.get(10).isPresent());
+        } finally {
+            server.stop(0);
+            store.close();
+        }
+    }
+
+    private static Map<PublicKeyHash, byte[]> setRandomPointers(JdbcIpnsAndSocial store, int count) {
+        Map<PublicKeyHash, byte[]> pointers = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            PublicKeyHash writer = randomWriter();
+            byte[] value = randomBytes(100);
+            Assert.assertTrue(store.setPointer(writer, Optional.empty(), value).join());
+            pointers.put(writer, value);
+        }
+        return pointers;
+    }
+
+    private static void checkPointers(JdbcIpnsAndSocial store, Map<PublicKeyHash, byte[]> expected) {
+        List<PublicKeyHash> writers = new ArrayList<>(expected.keySet());
+        Map<PublicKeyHash, Optional<byte[]>> all = store.getPointers(writers).join();
+        for (PublicKeyHash writer : writers) {
+            Assert.assertArrayEquals(expected.get(writer), all.get(writer).get());
+            Assert.assertArrayEquals(expected.get(writer), store.getPointer(writer).join().get());
+        }
+    }
+
+    private static long legacyRows(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM metadatablobs;")) {
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    static PublicKeyHash randomWriter() {
+        return new PublicKeyHash(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, randomBytes(32)));
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] res = new byte[length];
+        random.nextBytes(res);
+        return res;
+    }
+}
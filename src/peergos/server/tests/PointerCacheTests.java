@@ -0,0 +1,112 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class PointerCacheTests {
+
+    @Test
+    public void loadOnMiss() {
+        PointerCache cache = new PointerCache();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        byte[] value = JdbcIpnsAndSocialTests.randomBytes(100);
+        AtomicInteger loads = new AtomicInteger(0);
+
+        for (int i = 0; i < 3; i++) {
+            Optional<byte[]> res = cache.get(writer, w -> {
+                loads.incrementAndGet();
+                return Optional.of(value);
+            });
+            Assert.assertArrayEquals(value, res.get());
+        }
+        Assert.assertEquals("Only loaded on the first miss", 1, loads.get());
+
+        // absent pointers are cached too
+        PublicKeyHash absent = JdbcIpnsAndSocialTests.randomWriter();
+        cache.get(absent, w -> {
+            loads.incrementAndGet();
+            return Optional.empty();
+        });
+        Assert.assertFalse(cache.get(absent, w -> {
+            throw new IllegalStateException("Should be cached!");
+        }).isPresent());
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void updateOnCasSuccess() {
+        PointerCache cache = new PointerCache();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        byte[] original = JdbcIpnsAndSocialTests.randomBytes(100);
+        cache.get(writer, w -> Optional.of(original));
+
+        byte[] updated = JdbcIpnsAndSocialTests.randomBytes(100);
+        cache.casSucceeded(writer, Optional.of(original), updated);
+        Assert.assertArrayEquals(updated, cache.get(writer, w -> {
+            throw new IllegalStateException("Should be cached!");
+        }).get());
+
+        // an update from a value we haven't cached evicts the entry so it is reloaded
+        byte[] later = JdbcIpnsAndSocialTests.randomBytes(100);
+        cache.casSucceeded(writer, Optional.of(original), later);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertArrayEquals(later, cache.get(writer, w -> Optional.of(later)).get());
+
+        // updating an uncached writer doesn't cache it
+        PublicKeyHash other = JdbcIpnsAndSocialTests.randomWriter();
+        cache.casSucceeded(other, Optional.empty(), updated);
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void getAllLoadsMissingTogether() {
+        PointerCache cache = new PointerCache();
+        Map<PublicKeyHash, Optional<byte[]>> stored = new HashMap<>();
+        List<PublicKeyHash> writers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+            writers.add(writer);
+            stored.put(writer, i % 4 == 0 ? Optional.empty() : Optional.of(JdbcIpnsAndSocialTests.randomBytes(100)));
+        }
+        for (PublicKeyHash writer : writers.subList(0, 5))
+            cache.get(writer, stored::get);
+
+        List<List<PublicKeyHash>> loads = new ArrayList<>();
+        Map<PublicKeyHash, Optional<byte[]>> all = cache.getAll(writers, missing -> {
+            loads.add(missing);
+            return missing.stream().collect(Collectors.toMap(w -> w, stored::get));
+        });
+        Assert.assertEquals(1, loads.size());
+        Assert.assertEquals(writers.subList(5, writers.size()), loads.get(0));
+        for (PublicKeyHash writer : writers)
+            Assert.assertTrue(PointerCache.equal(stored.get(writer), all.get(writer)));
+
+        // now everything is cached
+        cache.getAll(writers, missing -> {
+            throw new IllegalStateException("Should be cached!");
+        });
+        Assert.assertEquals(writers.size(), cache.size());
+    }
+
+    @Test
+    public void bounded() {
+        int maxSize = 100;
+        PointerCache cache = new PointerCache(maxSize);
+        List<PublicKeyHash> writers = new ArrayList<>();
+        for (int i = 0; i < 3 * maxSize; i++) {
+            PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+            writers.add(writer);
+            byte[] value = writer.toBytes();
+            Assert.assertArrayEquals(value, cache.get(writer, w -> Optional.of(value)).get());
+            Assert.assertTrue(cache.size() <= maxSize);
+        }
+        // evicted entries are reloaded
+        for (PublicKeyHash writer : writers)
+            Assert.assertArrayEquals(writer.toBytes(), cache.get(writer, w -> Optional.of(w.toBytes())).get());
+    }
+}
@@ -0,0 +1,210 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PointerWatchTests {
+    private static final long WATCH_TIMEOUT = 300;
+
+    /** Stores pointers without checking signatures, and can't wait for changes
+     */
+    private static class RamPointers implements MutablePointers {
+        private final Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            pointers.put(writer, writerSignedBtreeRootHash);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            return CompletableFuture.completedFuture(Optional.ofNullable(pointers.get(writer)));
+        }
+    }
+
+    private static void setLater(MutablePointers target, PublicKeyHash owner, PublicKeyHash writer, byte[] value) {
+        new Thread(() -> {
+            try {
+                Thread.sleep(WATCH_TIMEOUT / 3);
+            } catch (InterruptedException e) {}
+            target.setPointer(owner, writer, value).join();
+        }).start();
+    }
+
+    @Test
+    public void watchTimesOutWithoutChanges() {
+        MutableEventPropagator pointers = new MutableEventPropagator(new RamPointers(), WATCH_TIMEOUT);
+        PublicKeyHash owner = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        byte[] value = JdbcIpnsAndSocialTests.randomBytes(100);
+        pointers.setPointer(owner, writer, value).join();
+
+        long start = System.currentTimeMillis();
+        List<WatchedPointer> changed = pointers.watchPointers(
+                Collections.singletonList(new WatchedPointer(owner, writer, Optional.of(value)))).join();
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertTrue(changed.isEmpty());
+        Assert.assertTrue("Waited for the timeout", duration >= WATCH_TIMEOUT);
+    }
+
+    @Test
+    public void watchCompletesOnChange() {
+        MutableEventPropagator pointers = new MutableEventPropagator(new RamPointers(), 10 * WATCH_TIMEOUT);
+        PublicKeyHash owner = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash other = JdbcIpnsAndSocialTests.randomWriter();
+        byte[] value = JdbcIpnsAndSocialTests.randomBytes(100);
+        pointers.setPointer(owner, writer, value).join();
+
+        byte[] updated = JdbcIpnsAndSocialTests.randomBytes(100);
+        setLater(pointers, owner, writer, updated);
+        long start = System.currentTimeMillis();
+        List<WatchedPointer> changed = pointers.watchPointers(Arrays.asList(
+                new WatchedPointer(owner, writer, Optional.of(value)),
+                new WatchedPointer(owner, other, Optional.empty()))).join();
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertTrue("Completed before the timeout", duration < 10 * WATCH_TIMEOUT);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertEquals(writer, changed.get(0).writer);
+        Assert.assertArrayEquals(updated, changed.get(0).value.get());
+    }
+
+    @Test
+    public void staleWatchCompletesImmediately() throws Exception {
+        MutableEventPropagator pointers = new MutableEventPropagator(new RamPointers(), 10 * WATCH_TIMEOUT);
+        PublicKeyHash owner = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        byte[] value = JdbcIpnsAndSocialTests.randomBytes(100);
+        pointers.setPointer(owner, writer, value).join();
+
+        List<WatchedPointer> changed = pointers.watchPointers(
+                Collections.singletonList(new WatchedPointer(owner, writer, Optional.empty())))
+                .get(WATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertArrayEquals(value, changed.get(0).value.get());
+    }
+
+    @Test
+    public void subscriberUpdatesCacheAndNotifies() {
+        MutableEventPropagator server = new MutableEventPropagator(new RamPointers(), WATCH_TIMEOUT);
+        CachingPointers cache = new CachingPointers(server, 60_000);
+        PointerSubscriber subscriber = new PointerSubscriber(cache, WATCH_TIMEOUT / 3);
+        List<List<WatchedPointer>> notified = new ArrayList<>();
+        subscriber.addListener(notified::add);
+
+        // nothing cached so nothing to watch
+        Assert.assertFalse("Back off when there is nothing to watch", subscriber.awaitChanges().join());
+
+        PublicKeyHash owner = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        byte[] value = JdbcIpnsAndSocialTests.randomBytes(100);
+        server.setPointer(owner, writer, value).join();
+        Assert.assertArrayEquals(value, cache.getPointer(owner, writer).join().get());
+
+        // a change made elsewhere
+        byte[] updated = JdbcIpnsAndSocialTests.randomBytes(100);
+        setLater(server, owner, writer, updated);
+        Assert.assertTrue(subscriber.awaitChanges().join());
+        Assert.assertEquals(1, notified.size());
+        Assert.assertArrayEquals(updated, notified.get(0).get(0).value.get());
+        Assert.assertArrayEquals(updated, cache.getPointer(owner, writer).join().get());
+
+        // no change until the server times out the watch
+        Assert.assertTrue("Watch again straight away after a timeout", subscriber.awaitChanges().join());
+        Assert.assertEquals(1, notified.size());
+    }
+
+    @Test
+    public void subscriberBacksOffWhenServerCantWait() {
+        RamPointers server = new RamPointers();
+        CachingPointers cache = new CachingPointers(server, 60_000);
+        PointerSubscriber subscriber = new PointerSubscriber(cache, WATCH_TIMEOUT);
+
+        PublicKeyHash owner = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        server.setPointer(owner, writer, JdbcIpnsAndSocialTests.randomBytes(100)).join();
+        cache.getPointer(owner, writer).join();
+
+        Assert.assertFalse("Back off when the watch returns straight away", subscriber.awaitChanges().join());
+    }
+
+    @Test
+    public void closeCompletesOutstandingWatches() throws Exception {
+        MutableEventPropagator pointers = new MutableEventPropagator(new RamPointers(), 100 * WATCH_TIMEOUT);
+        PublicKeyHash owner = JdbcIpnsAndSocialTests.randomWriter();
+        PublicKeyHash writer = JdbcIpnsAndSocialTests.randomWriter();
+        CompletableFuture<List<WatchedPointer>> watch = pointers.watchPointers(
+                Collections.singletonList(new WatchedPointer(owner, writer, Optional.empty())));
+        pointers.close();
+        Assert.assertTrue(watch.get(WATCH_TIMEOUT, TimeUnit.MILLISECONDS).isEmpty());
+
+        // later watches can't wait, but still report changes
+        byte[] value = JdbcIpnsAndSocialTests.randomBytes(100);
+        pointers.setPointer(owner, writer, value).join();
+        List<WatchedPointer> changed = pointers.watchPointers(
+                Collections.singletonList(new WatchedPointer(owner, writer, Optional.empty())))
+                .get(WATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, changed.size());
+    }
+
+    /** Blocks the calling thread for each remote watch, like a synchronous poster
+     */
+    private static class BlockingRemoteWatches extends RamPointers implements MutablePointersProxy {
+        private final Map<Multihash, Long> delays;
+        private final List<WatchedPointer> changes;
+
+        public BlockingRemoteWatches(Map<Multihash, Long> delays, List<WatchedPointer> changes) {
+            this.delays = delays;
+            this.changes = changes;
+        }
+
+        @Override
+        public CompletableFuture<List<WatchedPointer>> watchPointers(Multihash targetServerId, List<WatchedPointer> watched) {
+            try {
+                Thread.sleep(delays.get(targetServerId));
+            } catch (InterruptedException e) {}
+            return CompletableFuture.completedFuture(changes);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(Multihash targetServerId, PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+            return setPointer(owner, writer, writerSignedBtreeRootHash);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(Multihash targetServerId, PublicKeyHash owner, PublicKeyHash writer) {
+            return getPointer(owner, writer);
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getPointers(Multihash targetServerId, List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+            return getPointers(ownerWriterPairs);
+        }
+    }
+
+    @Test
+    public void remoteWatchesDontBlockEachOther() throws Exception {
+        Multihash slowServer = new Multihash(Multihash.Type.sha2_256, JdbcIpnsAndSocialTests.randomBytes(32));
+        Multihash fastServer = new Multihash(Multihash.Type.sha2_256, JdbcIpnsAndSocialTests.randomBytes(32));
+        Map<Multihash, Long> delays = new HashMap<>();
+        delays.put(slowServer, 20 * WATCH_TIMEOUT);
+        delays.put(fastServer, WATCH_TIMEOUT / 3);
+        List<WatchedPointer> changes = Collections.singletonList(new WatchedPointer(JdbcIpnsAndSocialTests.randomWriter(),
+                JdbcIpnsAndSocialTests.randomWriter(), Optional.of(JdbcIpnsAndSocialTests.randomBytes(100))));
+        MutablePointersProxy proxy = new AsyncWatchingMutablePointersProxy(new BlockingRemoteWatches(delays, changes));
+
+        long start = System.currentTimeMillis();
+        proxy.watchPointers(slowServer, changes);
+        CompletableFuture<List<WatchedPointer>> fast = proxy.watchPointers(fastServer, changes);
+        Assert.assertTrue("Started without waiting for the slow watch", System.currentTimeMillis() - start < WATCH_TIMEOUT);
+        Assert.assertEquals(changes, fast.get(10 * WATCH_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+}
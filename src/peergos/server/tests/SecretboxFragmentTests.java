@@ -0,0 +1,92 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SecretboxFragmentTests {
+    private static final Random random = new Random(42);
+    private static final Salsa20Poly1305 java = new Salsa20Poly1305.Java();
+    // uses the default implementation which recombines the fragments
+    private static final Salsa20Poly1305 recombining = new Salsa20Poly1305() {
+        @Override
+        public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+            return java.secretbox(data, nonce, key);
+        }
+
+        @Override
+        public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+            return java.secretbox_open(cipher, nonce, key);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> secretboxAsync(byte[] data, byte[] nonce, byte[] key) {
+            return java.secretboxAsync(data, nonce, key);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key) {
+            return java.secretbox_openAsync(cipher, nonce, key);
+        }
+    };
+
+    @Test
+    public void decryptFragments() {
+        for (int length : Arrays.asList(0, 1, 15, 16, 17, 63, 64, 65, 1000, 4096, 100_000, 1024 * 1024 + 7)) {
+            byte[] key = randomBytes(TweetNaCl.SECRETBOX_KEY_BYTES);
+            byte[] nonce = randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES);
+            byte[] message = randomBytes(length);
+            byte[] cipher = TweetNaCl.secretbox(message, nonce, key);
+            List<byte[]> fragments = split(cipher);
+
+            for (Salsa20Poly1305 impl : Arrays.asList(java, recombining)) {
+                PlainText plainText = impl.secretbox_open(fragments, nonce, key);
+                Assert.assertEquals(length, plainText.length());
+                Assert.assertArrayEquals(message, plainText.readAll());
+
+                for (int i = 0; i < 10 && length > 0; i++) {
+                    int start = random.nextInt(length);
+                    int len = random.nextInt(length - start + 1);
+                    byte[] out = new byte[len + 3];
+                    plainText.read(start, out, 3, len);
+                    Assert.assertArrayEquals(Arrays.copyOfRange(message, start, start + len), Arrays.copyOfRange(out, 3, out.length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectModifiedFragments() {
+        byte[] key = randomBytes(TweetNaCl.SECRETBOX_KEY_BYTES);
+        byte[] nonce = randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES);
+        byte[] cipher = TweetNaCl.secretbox(randomBytes(10_000), nonce, key);
+        for (int i = 0; i < 10; i++) {
+            byte[] modified = Arrays.copyOf(cipher, cipher.length);
+            modified[random.nextInt(modified.length)] ^= 1 << random.nextInt(8);
+            try {
+                java.secretbox_open(split(modified), nonce, key);
+                Assert.fail("Modified cipher text was accepted");
+            } catch (TweetNaCl.InvalidCipherTextException expected) {}
+        }
+    }
+
+    private static List<byte[]> split(byte[] in) {
+        List<byte[]> res = new ArrayList<>();
+        int pos = 0;
+        while (pos < in.length) {
+            int len = Math.min(in.length - pos, random.nextInt(5000));
+            res.add(Arrays.copyOfRange(in, pos, pos + len));
+            pos += len;
+        }
+        return res;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] res = new byte[length];
+        random.nextBytes(res);
+        return res;
+    }
+}
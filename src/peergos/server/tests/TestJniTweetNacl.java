@@ -3,6 +3,7 @@ import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import peergos.server.crypto.JniTweetNacl;
+import peergos.shared.crypto.symmetric.*;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -96,4 +97,28 @@ public class TestJniTweetNacl {
         Assert.assertFalse(Arrays.equals(message, boxed));
         Assert.assertFalse(Arrays.equals(boxed, unboxed));
     }
+
+    @Test
+    public void testSecretboxFragmentsIdentity() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[32];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+
+        byte[] message = new byte[messageLength];
+        random.nextBytes(message);
+        byte[] boxed = symmetric.secretbox(message, nonce, key);
+        List<byte[]> fragments = new ArrayList<>();
+        for (int i = 0; i < boxed.length; i += 4096)
+            fragments.add(Arrays.copyOfRange(boxed, i, Math.min(boxed.length, i + 4096)));
+        PlainText unboxed = symmetric.secretbox_open(fragments, nonce, key);
+
+        Assert.assertEquals(messageLength, unboxed.length());
+        Assert.assertArrayEquals(message, unboxed.readAll());
+        if (messageLength > 1) {
+            byte[] middle = new byte[messageLength / 2];
+            unboxed.read(1, middle, 0, middle.length);
+            Assert.assertArrayEquals(Arrays.copyOfRange(message, 1, 1 + middle.length), middle);
+        }
+    }
 }
@@ -12,6 +12,7 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 
 import java.security.*;
+import java.sql.*;
 import java.util.*;
 
 @RunWith(Parameterized.class)
@@ -64,4 +65,33 @@ public class TransactionsStoreTests {
         List<Multihash> empty = store.getOpenTransactionBlocks();
         Assert.assertTrue("All blocks removed", empty.isEmpty());
     }
+
+    @Test
+    public void migrateLegacyTransactions() throws Exception {
+        Connection conn = Sqlite.build(":memory:");
+        SqliteCommands commands = new SqliteCommands();
+        // write open transactions the way they used to be written, as text
+        commands.createTable("CREATE TABLE transactions (tid varchar(64) not null, owner varchar(64) not null, " +
+                "hash varchar(64) not null);", conn);
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[3], true));
+        TransactionId tid = new TransactionId(UUID.randomUUID().toString());
+        List<Multihash> pending = new ArrayList<>();
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO transactions (tid, owner, hash) VALUES (?, ?, ?);")) {
+            for (int i = 0; i < 20; i++) {
+                Cid block = hashToCid(new byte[]{(byte) i, 1}, i % 2 == 0);
+                pending.add(block);
+                insert.setString(1, tid.toString());
+                insert.setString(2, owner.toString());
+                insert.setString(3, block.toString());
+                insert.executeUpdate();
+            }
+        }
+
+        TransactionStore migrated = JdbcTransactionStore.build(conn, commands);
+        Assert.assertFalse("Legacy table dropped", commands.tableExists("transactions", conn));
+        Assert.assertTrue("All blocks present", migrated.getOpenTransactionBlocks().containsAll(pending));
+
+        migrated.closeTransaction(owner, tid);
+        Assert.assertTrue("All blocks removed", migrated.getOpenTransactionBlocks().isEmpty());
+    }
 }
@@ -16,6 +16,7 @@ import peergos.shared.crypto.asymmetric.curve25519.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.server.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
@@ -436,6 +437,162 @@ public abstract class UserTests {
         checkFileContents(data, updatedFile, context);
     }
 
+    @Test
+    public void getChildByNameTag() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        String dirname = "somedir";
+        userRoot.mkdir(dirname, network, false, crypto).join();
+        // spread the children over several chunks
+        CryptreeNode.setMaxChildLinkPerBlob(10);
+
+        int nFiles = 25;
+        byte[] data = new byte[10];
+        for (int i = 0; i < nFiles; i++) {
+            FileWrapper dir = context.getByPath("/" + username + "/" + dirname).join().get();
+            dir.uploadOrOverwriteFile("file" + i, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                    context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+        }
+        FileWrapper dir = context.getByPath("/" + username + "/" + dirname).join().get();
+        Set<AbsoluteCapability> candidates = dir.getPointer().fileAccess.getChildCapabilitiesByName(
+                network.synchronizer.getValue(dir.owner(), dir.writer()).join(),
+                dir.getPointer().capability, "file13", crypto.hasher, network).join();
+        Assert.assertEquals("Only the tagged child is a candidate", 1, candidates.size());
+
+        FileWrapper file = dir.getChild("file13", crypto.hasher, network).join().get();
+        file.rename("renamed", dir, context).join();
+
+        FileWrapper updatedDir = context.getByPath("/" + username + "/" + dirname).join().get();
+        Assert.assertTrue(updatedDir.getChild("renamed", crypto.hasher, network).join().isPresent());
+        Assert.assertFalse(updatedDir.getChild("file13", crypto.hasher, network).join().isPresent());
+        for (int i = 0; i < nFiles; i++)
+            if (i != 13)
+                Assert.assertTrue(updatedDir.getChild("file" + i, crypto.hasher, network).join().isPresent());
+        Assert.assertEquals(nFiles, updatedDir.getChildren(crypto.hasher, network).join().size());
+    }
+
+    @Test
+    public void getChildWithStaleNameTag() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        String dirname = "somedir";
+        userRoot.mkdir(dirname, network, false, crypto).join();
+        String dirPath = "/" + username + "/" + dirname;
+        byte[] data = new byte[10];
+        context.getByPath(dirPath).join().get().uploadOrOverwriteFile("file.txt", new AsyncReader.ArrayBacked(data),
+                data.length, context.network, context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+
+        // changing other properties leaves the parent alone
+        FileWrapper dir = context.getByPath(dirPath).join().get();
+        FileWrapper file = dir.getChild("file.txt", crypto.hasher, network).join().get();
+        FileProperties props = file.getFileProperties();
+        file.setProperties(props.withModified(props.modified.plusSeconds(1)), crypto.hasher, network, Optional.of(dir)).join();
+        FileWrapper unchangedDir = context.getByPath(dirPath).join().get();
+        Assert.assertEquals(dir.getPointer().fileAccess.committedHash(), unchangedDir.getPointer().fileAccess.committedHash());
+
+        // renaming without the parent leaves a stale name tag
+        file = unchangedDir.getChild("file.txt", crypto.hasher, network).join().get();
+        props = file.getFileProperties();
+        FileProperties renamed = new FileProperties("renamed.txt", props.isDirectory, props.isLink, props.mimeType,
+                props.size, props.modified, props.isHidden, props.thumbnail, props.streamSecret);
+        file.setProperties(renamed, crypto.hasher, network, Optional.empty()).join();
+
+        FileWrapper updatedDir = context.getByPath(dirPath).join().get();
+        Assert.assertTrue(updatedDir.getChild("renamed.txt", crypto.hasher, network).join().isPresent());
+        Assert.assertTrue(updatedDir.getDescendentByPath("renamed.txt", crypto.hasher, network).join().isPresent());
+        Assert.assertTrue(context.getByPath(dirPath + "/renamed.txt").join().isPresent());
+        Assert.assertFalse(updatedDir.getChild("file.txt", crypto.hasher, network).join().isPresent());
+    }
+
+    @Test
+    public void streamLargeDirectory() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        String dirname = "bigdir";
+        userRoot.mkdir(dirname, network, false, crypto).join();
+        int original = CryptreeNode.getMaxChildLinksPerBlob();
+        CryptreeNode.setMaxChildLinkPerBlob(4);
+        try {
+            int nFiles = 41;
+            byte[] data = new byte[10];
+            for (int i = 0; i < nFiles; i++) {
+                FileWrapper dir = context.getByPath("/" + username + "/" + dirname).join().get();
+                dir.uploadOrOverwriteFile("file" + i, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                        context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+            }
+            FileWrapper dir = context.getByPath("/" + username + "/" + dirname).join().get();
+
+            // the chunks are stored under map keys derived from the directory's read key
+            Snapshot version = network.synchronizer.getValue(dir.owner(), dir.writer()).join();
+            AbsoluteCapability chunkCap = dir.getPointer().capability;
+            CryptreeNode chunk = dir.getPointer().fileAccess;
+            int nChunks = 1;
+            while (true) {
+                Optional<RetrievedCapability> next = chunk.getNextChunk(version, chunkCap, network, Optional.empty(), crypto.hasher).join();
+                if (! next.isPresent())
+                    break;
+                byte[] derived = CryptreeNode.nextChunkMapKey(chunkCap.rBaseKey, chunkCap.getMapKey(), crypto.hasher).join();
+                Assert.assertArrayEquals(derived, next.get().capability.getMapKey());
+                chunkCap = next.get().capability;
+                chunk = next.get().fileAccess;
+                nChunks++;
+            }
+            Assert.assertEquals(nFiles / 4 + 1, nChunks);
+
+            List<Set<FileWrapper>> streamed = Collections.synchronizedList(new ArrayList<>());
+            Assert.assertTrue(dir.streamChildren(crypto.hasher, network, streamed::add).join());
+            Assert.assertEquals(nChunks, streamed.size());
+            Set<String> names = streamed.stream()
+                    .flatMap(Set::stream)
+                    .map(FileWrapper::getName)
+                    .collect(Collectors.toSet());
+            Set<String> expected = IntStream.range(0, nFiles)
+                    .mapToObj(i -> "file" + i)
+                    .collect(Collectors.toSet());
+            Assert.assertEquals(expected, names);
+            Assert.assertEquals(nFiles, dir.getChildren(crypto.hasher, network).join().size());
+        } finally {
+            CryptreeNode.setMaxChildLinkPerBlob(original);
+        }
+    }
+
+    @Test
+    public void cachedPathResolution() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        userRoot.mkdir("a", network, false, crypto).join();
+        context.getByPath("/" + username + "/a").join().get().mkdir("b", network, false, crypto).join();
+        String path = "/" + username + "/a/b";
+
+        FileWrapper first = context.getByPath(path).join().get();
+        FileWrapper second = context.getByPath(path).join().get();
+        // served from the cache, without resolving the path again
+        Assert.assertSame(first.getVersion(), second.getVersion());
+
+        // a write under the directory invalidates it
+        byte[] data = new byte[10];
+        second.uploadOrOverwriteFile("file", new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+        FileWrapper updated = context.getByPath(path).join().get();
+        Assert.assertEquals(1, updated.getChildren(crypto.hasher, network).join().size());
+        Assert.assertTrue(context.getByPath(path + "/file").join().isPresent());
+
+        // so does renaming an ancestor
+        FileWrapper a = context.getByPath("/" + username + "/a").join().get();
+        a.rename("c", context.getUserRoot().join(), context).join();
+        Assert.assertFalse(context.getByPath(path).join().isPresent());
+        Assert.assertFalse(context.getByPath(path + "/file").join().isPresent());
+        Assert.assertTrue(context.getByPath("/" + username + "/c/b/file").join().isPresent());
+    }
+
     @Test
     public void directoryEncryptionKey() throws Exception {
         // ensure that a directory's child links are encrypted with the base key, not the parent key
@@ -712,6 +869,106 @@ public abstract class UserTests {
                     context.crypto, l -> {}, transactions).join();
     }
 
+    @Test
+    public void failedUploadCommitsCompletedChunks() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "partial.bin";
+        byte[] data = new byte[4 * Chunk.MAX_SIZE];
+        random.nextBytes(data);
+        ThrowingStream throwingReader = new ThrowingStream(data, 3 * Chunk.MAX_SIZE);
+        int prior = context.getTotalSpaceUsed(context.signer.publicKeyHash, context.signer.publicKeyHash).get().intValue();
+        try {
+            userRoot.uploadOrOverwriteFile(filename, throwingReader, data.length, context.network,
+                    context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+            Assert.fail("Upload should fail");
+        } catch (Exception e) {}
+        int during = context.getTotalSpaceUsed(context.signer.publicKeyHash, context.signer.publicKeyHash).get().intValue();
+        Assert.assertTrue("Chunks before the failure committed", during > prior + 3 * Chunk.MAX_SIZE);
+        Assert.assertTrue("Failed chunk not committed", during < prior + 4 * Chunk.MAX_SIZE);
+    }
+
+    @Test
+    public void pipelinedUploadCommitsOncePerBatch() throws Exception {
+        // complete block writes asynchronously, like a remote server, so that chunk uploads can overlap
+        ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger blockWritesInFlight = new AtomicInteger(0);
+        ContentAddressedStorage slowStorage = new WriteFilter(network.dhtClient, (w, s) -> true) {
+            @Override
+            public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                             PublicKeyHash writer,
+                                                             List<byte[]> signatures,
+                                                             List<byte[]> blocks,
+                                                             TransactionId tid) {
+                blockWritesInFlight.incrementAndGet();
+                CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
+                delayer.schedule(() -> super.putRaw(owner, writer, signatures, blocks, tid)
+                        .whenComplete((hashes, t) -> {
+                            blockWritesInFlight.decrementAndGet();
+                            if (t != null)
+                                res.completeExceptionally(t);
+                            else
+                                res.complete(hashes);
+                        }), 50, TimeUnit.MILLISECONDS);
+                return res;
+            }
+        };
+        AtomicInteger pointerUpdates = new AtomicInteger(0);
+        MutablePointers countingPointers = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signedUpdate) {
+                pointerUpdates.incrementAndGet();
+                return network.mutable.setPointer(owner, writer, signedUpdate);
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                return network.mutable.getPointer(owner, writer);
+            }
+        };
+        WriteSynchronizer synchronizer = new WriteSynchronizer(countingPointers, slowStorage, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(countingPointers, slowStorage, crypto.hasher, synchronizer);
+        NetworkAccess slowNetwork = new NetworkAccess(network.coreNode, network.social, slowStorage, countingPointers,
+                tree, synchronizer, network.instanceAdmin, network.spaceUsage, network.usernames, false);
+
+        try {
+            String username = generateUsername();
+            UserContext context = PeergosNetworkUtils.ensureSignedUp(username, "test01", slowNetwork, crypto);
+
+            byte[] small = new byte[1024];
+            random.nextBytes(small);
+            int before = pointerUpdates.get();
+            context.getUserRoot().get().uploadOrOverwriteFile("small.bin", new AsyncReader.ArrayBacked(small), small.length,
+                    context.network, context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+            int singleChunkUpdates = pointerUpdates.get() - before;
+
+            byte[] large = new byte[4 * Chunk.MAX_SIZE];
+            random.nextBytes(large);
+            List<Integer> writesInFlightAtRead = new ArrayList<>();
+            AsyncReader reader = new AsyncReader.ArrayBacked(large) {
+                @Override
+                public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
+                    writesInFlightAtRead.add(blockWritesInFlight.get());
+                    return super.readIntoArray(res, offset, length);
+                }
+            };
+            before = pointerUpdates.get();
+            context.getUserRoot().get().uploadOrOverwriteFile("large.bin", reader, large.length,
+                    context.network, context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+            int multiChunkUpdates = pointerUpdates.get() - before;
+
+            Assert.assertEquals("All chunks committed together", singleChunkUpdates, multiChunkUpdates);
+            Assert.assertTrue("Later chunks read while earlier ones upload",
+                    writesInFlightAtRead.stream().anyMatch(n -> n > 0));
+            checkFileContents(large, context.getByPath(username + "/large.bin").get().get(), context);
+        } finally {
+            delayer.shutdown();
+        }
+    }
+
     @Test
     public void javaThumbnail() throws Exception {
         String username = generateUsername();
@@ -820,6 +1077,37 @@ public abstract class UserTests {
         Assert.assertTrue("File has correct size", truncated3.getFileProperties().size == truncateLength3);
     }
 
+    @Test
+    public void mapKeyHashChain() {
+        byte[] streamSecret = crypto.random.randomBytes(32);
+        byte[] firstMapKey = crypto.random.randomBytes(32);
+        byte[] expected = firstMapKey;
+        for (int i = 0; i < 100; i++)
+            expected = FileProperties.calculateNextMapKey(streamSecret, expected, crypto.hasher).join();
+        byte[] mapKey = FileProperties.calculateMapKey(streamSecret, firstMapKey, 100L * Chunk.MAX_SIZE + 7, crypto.hasher).join();
+        Assert.assertArrayEquals(expected, mapKey);
+
+        // the generic implementation used by other hashers
+        Hasher generic = new Hasher() {
+            @Override
+            public CompletableFuture<byte[]> hashToKeyBytes(String username, String password, SecretGenerationAlgorithm algorithm) {
+                return crypto.hasher.hashToKeyBytes(username, password, algorithm);
+            }
+
+            @Override
+            public CompletableFuture<byte[]> sha256(byte[] input) {
+                return crypto.hasher.sha256(input);
+            }
+
+            @Override
+            public byte[] blake2b(byte[] input, int outputBytes) {
+                return crypto.hasher.blake2b(input, outputBytes);
+            }
+        };
+        Assert.assertArrayEquals(expected, generic.sha256Chain(streamSecret, firstMapKey, 100).join());
+        Assert.assertArrayEquals(firstMapKey, crypto.hasher.sha256Chain(streamSecret, firstMapKey, 0).join());
+    }
+
     @Test
     public void fileSeek() throws Exception {
         String username = generateUsername();
@@ -857,6 +1145,72 @@ public abstract class UserTests {
         }
     }
 
+    @Test
+    public void readAhead() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "mediumfile.bin";
+        int MB = 1024*1024;
+        byte[] data = new byte[23 * MB];
+        random.nextBytes(data);
+        uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length, context.network,
+                context.crypto, l -> {}).join();
+        byte[] buf = new byte[MB];
+
+        int original = LazyInputStreamCombiner.getReadAheadChunks();
+        LazyInputStreamCombiner.setReadAheadChunks(3);
+        try {
+            AsyncReader reader = context.getByPath(Paths.get(username, filename)).join()
+                    .get().getInputStream(network, crypto, x -> { }).join();
+            for (int mb = 0; mb < 23; mb++) {
+                reader.readIntoArray(buf, 0, buf.length).join();
+                Assert.assertTrue("Correct data at " + mb, Arrays.equals(buf, Arrays.copyOfRange(data, mb * MB, (mb + 1) * MB)));
+                if (mb == 12) {
+                    // a seek discards the read ahead chunks
+                    reader = reader.seek(2 * MB).join();
+                    reader.readIntoArray(buf, 0, buf.length).join();
+                    Assert.assertTrue(Arrays.equals(buf, Arrays.copyOfRange(data, 2 * MB, 3 * MB)));
+                    reader = reader.seek((mb + 1) * MB).join();
+                }
+            }
+            reader.close();
+        } finally {
+            LazyInputStreamCombiner.setReadAheadChunks(original);
+        }
+    }
+
+    @Test
+    public void randomAccessSeeks() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "mediumfile.bin";
+        int MB = 1024*1024;
+        byte[] data = new byte[23 * MB];
+        random.nextBytes(data);
+        uploadFileSection(userRoot, filename, new AsyncReader.ArrayBacked(data), 0, data.length, context.network,
+                context.crypto, l -> {}).join();
+        byte[] buf = new byte[256 * 1024];
+
+        AsyncReader reader = context.getByPath(Paths.get(username, filename)).join()
+                .get().getInputStream(network, crypto, x -> { }).join();
+        Random r = new Random(42);
+        // seeks in both directions, some of which cross a chunk boundary, all using the same chunk index
+        for (int i = 0; i < 40; i++) {
+            int offset = r.nextInt(data.length - buf.length);
+            reader = reader.seek(offset).join();
+            reader.readIntoArray(buf, 0, buf.length).join();
+            Assert.assertTrue("Correct data at " + offset,
+                    Arrays.equals(buf, Arrays.copyOfRange(data, offset, offset + buf.length)));
+        }
+        reader.close();
+    }
+
     @Test
     public void writeTiming() throws Exception {
         String username = generateUsername();
@@ -9,12 +9,18 @@ import peergos.server.util.*;
 import peergos.shared.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 public class WriterDataTests {
 
@@ -57,4 +63,416 @@ public class WriterDataTests {
         Assert.assertTrue(ownedByA2.size() == 2);
         Assert.assertTrue(ownedByB2.size() == 2);
     }
+
+    @Test
+    public void migrateTreeBitWidth() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers mutable = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree legacy = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer, ChampWrapper.BIT_WIDTH);
+        MutableTree wide = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer, 5);
+        synchronizer.putEmpty(owner, owner);
+
+        Random r = new Random(42);
+        Map<ByteArrayWrapper, Multihash> mappings = new HashMap<>();
+        for (int i = 0; i < 200; i++)
+            mappings.put(new ByteArrayWrapper(randomBytes(r)), new Multihash(Multihash.Type.sha2_256, randomBytes(r)));
+        List<Triple<byte[], MaybeMultihash, Multihash>> puts = mappings.entrySet().stream()
+                .map(e -> new Triple<>(e.getKey().data, MaybeMultihash.empty(), e.getValue()))
+                .collect(Collectors.toList());
+
+        WriterData legacyWd = synchronizer.applyUpdate(owner, signer,
+                (wd, tid) -> legacy.putAll(wd, owner, signer, puts, tid)).join().get(owner).props;
+        Assert.assertEquals(ChampWrapper.BIT_WIDTH, legacyWd.treeBitWidth);
+        Assert.assertFalse(legacyWd.toCbor().toString().contains("treebits"));
+
+        // the next mutation rebuilds the tree with the new bit width
+        byte[] extraKey = randomBytes(r);
+        Multihash extraValue = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+        synchronizer.applyUpdate(owner, signer,
+                (wd, tid) -> wide.put(wd, owner, signer, extraKey, MaybeMultihash.empty(), extraValue, tid)).join();
+        mappings.put(new ByteArrayWrapper(extraKey), extraValue);
+
+        WriterData migrated = synchronizer.getWriterData(owner, owner).join().get(owner).props;
+        Assert.assertEquals(5, migrated.treeBitWidth);
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : mappings.entrySet())
+            Assert.assertEquals(MaybeMultihash.of(e.getValue()), wide.get(migrated, owner, owner, e.getKey().data).join());
+
+        ChampWrapper champ = ChampWrapper.create(migrated.tree.get(), x -> x.data, dht, crypto.hasher, 5).join();
+        Assert.assertEquals(mappings.size(), (long) champ.size().join());
+    }
+
+    @Test
+    public void treeBitWidthOptIn() throws Exception {
+        ContentAddressedStorage dht = new RAMStorage();
+        MutablePointers mutable = UserRepository.build(dht, new JdbcIpnsAndSocial(Sqlite.build("::memory::"), new SqliteCommands()));
+        NetworkAccess network = NetworkAccess.buildPublicNetworkAccess(null, mutable, dht).join();
+        Assert.assertEquals(ChampWrapper.BIT_WIDTH, network.getTreeBitWidth());
+
+        NetworkAccess wide = network.withTreeBitWidth(5);
+        Assert.assertEquals(5, wide.getTreeBitWidth());
+        Assert.assertEquals("Kept when clearing", 5, wide.clear().getTreeBitWidth());
+        Assert.assertEquals("Kept when caching pointers", 5, wide.withMutablePointerCache(1_000).getTreeBitWidth());
+        try {
+            network.withTreeBitWidth(Champ.MAX_BIT_WIDTH + 1);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void rejectInvalidTreeBitWidth() {
+        PublicKeyHash controller = JdbcIpnsAndSocialTests.randomWriter();
+        Multihash root = new Multihash(Multihash.Type.sha2_256, JdbcIpnsAndSocialTests.randomBytes(32));
+        WriterData empty = new WriterData(controller, Optional.empty(), Optional.empty(), Optional.empty(),
+                Optional.empty(), Collections.emptyMap(), Optional.empty(), Optional.empty());
+        for (int bits : Arrays.asList(1, 5, Champ.MAX_BIT_WIDTH)) {
+            WriterData valid = empty.withChamp(root, bits);
+            Assert.assertEquals(bits, WriterData.fromCbor(valid.toCbor()).treeBitWidth);
+        }
+        for (int bits : Arrays.asList(0, -1, Champ.MAX_BIT_WIDTH + 1, 1_000)) {
+            WriterData invalid = empty.withChamp(root, bits);
+            try {
+                WriterData.fromCbor(invalid.toCbor());
+                Assert.fail("Accepted tree bit width " + bits);
+            } catch (IllegalStateException expected) {}
+        }
+    }
+
+    @Test
+    public void groupCommitConcurrentUpdates() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers target = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        AtomicInteger pointerUpdates = new AtomicInteger(0);
+        MutablePointers mutable = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signed) {
+                pointerUpdates.incrementAndGet();
+                return target.setPointer(owner, writer, signed);
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                return target.getPointer(owner, writer);
+            }
+        };
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer);
+        synchronizer.putEmpty(owner, owner);
+
+        // hold the lock with a first update, so the following updates queue up behind it
+        CompletableFuture<Boolean> release = new CompletableFuture<>();
+        Random r = new Random(42);
+        byte[] firstKey = randomBytes(r);
+        Multihash firstValue = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+        CompletableFuture<Snapshot> first = synchronizer.applyUpdate(owner, signer, (wd, tid) -> release
+                .thenCompose(x -> tree.put(wd, owner, signer, firstKey, MaybeMultihash.empty(), firstValue, tid)));
+
+        Map<ByteArrayWrapper, Multihash> mappings = new HashMap<>();
+        List<CompletableFuture<Snapshot>> group = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] key = randomBytes(r);
+            Multihash value = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+            if (i == 10) {
+                // a failing update doesn't affect the others in its group
+                group.add(synchronizer.applyUpdate(owner, signer, (wd, tid) -> tree.put(wd, owner, signer, key, MaybeMultihash.empty(), value, tid)
+                        .thenCompose(updated -> Futures.errored(new IllegalStateException("Failed update")))));
+                continue;
+            }
+            mappings.put(new ByteArrayWrapper(key), value);
+            group.add(synchronizer.applyUpdate(owner, signer,
+                    (wd, tid) -> tree.put(wd, owner, signer, key, MaybeMultihash.empty(), value, tid)));
+        }
+        release.complete(true);
+        first.join();
+        for (int i = 0; i < group.size(); i++) {
+            if (i == 10)
+                Assert.assertTrue(joinFails(group.get(i)));
+            else
+                group.get(i).join();
+        }
+        // one update for the first mutation, and one for the group
+        Assert.assertEquals(2, pointerUpdates.get());
+
+        mappings.put(new ByteArrayWrapper(firstKey), firstValue);
+        WriterData current = synchronizer.getWriterData(owner, owner).join().get(owner).props;
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : mappings.entrySet())
+            Assert.assertEquals(MaybeMultihash.of(e.getValue()), tree.get(current, owner, owner, e.getKey().data).join());
+        ChampWrapper champ = ChampWrapper.create(current.tree.get(), x -> x.data, dht, crypto.hasher, current.treeBitWidth).join();
+        Assert.assertEquals(mappings.size(), (long) champ.size().join());
+    }
+
+    @Test
+    public void groupHoldsUpdateTransactionsOpenUntilCommitted() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        // the order in which pointers are updated and transactions closed
+        List<Object> events = Collections.synchronizedList(new ArrayList<>());
+        ContentAddressedStorage dht = new RAMStorage() {
+            @Override
+            public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+                events.add(tid);
+                return super.closeTransaction(owner, tid);
+            }
+        };
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers target = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        String pointerUpdate = "pointer update";
+        MutablePointers mutable = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signed) {
+                return target.setPointer(owner, writer, signed)
+                        .thenApply(res -> {
+                            events.add(pointerUpdate);
+                            return res;
+                        });
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                return target.getPointer(owner, writer);
+            }
+        };
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer);
+        synchronizer.putEmpty(owner, owner);
+
+        CompletableFuture<Boolean> release = new CompletableFuture<>();
+        Random r = new Random(42);
+        CompletableFuture<Snapshot> first = synchronizer.applyUpdate(owner, signer, (wd, tid) -> release
+                .thenCompose(x -> tree.put(wd, owner, signer, randomBytes(r), MaybeMultihash.empty(),
+                        new Multihash(Multihash.Type.sha2_256, randomBytes(r)), tid)));
+
+        List<TransactionId> groupTids = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Snapshot>> group = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] key = randomBytes(r);
+            Multihash value = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+            group.add(synchronizer.applyUpdate(owner, signer, (wd, tid) -> {
+                groupTids.add(tid);
+                return tree.put(wd, owner, signer, key, MaybeMultihash.empty(), value, tid);
+            }));
+        }
+        events.clear();
+        release.complete(true);
+        first.join();
+        group.forEach(CompletableFuture::join);
+
+        // closing held transactions happens in the background after the group commits
+        long start = System.currentTimeMillis();
+        while (! events.containsAll(groupTids) && System.currentTimeMillis() - start < 5_000)
+            Thread.sleep(10);
+        Assert.assertEquals(5, groupTids.size());
+        int groupCommit = events.lastIndexOf(pointerUpdate);
+        for (TransactionId tid : groupTids) {
+            int closed = events.indexOf(tid);
+            Assert.assertTrue("Update transaction closed", closed >= 0);
+            Assert.assertTrue("Update transaction closed after the group commit", closed > groupCommit);
+        }
+    }
+
+    @Test
+    public void updateAfterFailedWriterDataRetrieval() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers target = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        IpfsTransaction.call(owner, tid -> WriterData.createEmpty(owner, signer, dht, crypto.hasher, tid)
+                .thenCompose(wd -> wd.commit(owner, signer, MaybeMultihash.empty(), target, dht, crypto.hasher, tid)), dht).join();
+
+        CompletableFuture<Boolean> release = new CompletableFuture<>();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        MutablePointers mutable = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signed) {
+                return target.setPointer(owner, writer, signed);
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                if (failing.get())
+                    return release.thenCompose(x -> Futures.errored(new IllegalStateException("Unreachable")));
+                return target.getPointer(owner, writer);
+            }
+        };
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer);
+
+        // both updates wait on the initial retrieval of the writer data, which then fails
+        Random r = new Random(42);
+        List<CompletableFuture<Snapshot>> waiting = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            byte[] key = randomBytes(r);
+            Multihash value = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+            waiting.add(synchronizer.applyUpdate(owner, signer,
+                    (wd, tid) -> tree.put(wd, owner, signer, key, MaybeMultihash.empty(), value, tid)));
+        }
+        release.complete(true);
+        for (CompletableFuture<Snapshot> update : waiting)
+            Assert.assertTrue(joinFails(update));
+
+        // later updates retrieve the writer data again
+        failing.set(false);
+        byte[] key = randomBytes(r);
+        Multihash value = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+        WriterData updated = synchronizer.applyUpdate(owner, signer,
+                (wd, tid) -> tree.put(wd, owner, signer, key, MaybeMultihash.empty(), value, tid))
+                .get(30, TimeUnit.SECONDS).get(owner).props;
+        Assert.assertEquals(MaybeMultihash.of(value), tree.get(updated, owner, owner, key).join());
+    }
+
+    @Test
+    public void writeBackFlushedOnCommit() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers mutable = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer);
+        synchronizer.putEmpty(owner, owner);
+
+        Random r = new Random(42);
+        byte[] key = randomBytes(r);
+        Multihash value = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+        CompletableFuture<TransactionId> usedTid = new CompletableFuture<>();
+        WriterData updated = synchronizer.applyUpdate(owner, signer, (wd, tid) -> {
+            usedTid.complete(tid);
+            return tree.put(wd, owner, signer, key, MaybeMultihash.empty(), value, tid);
+        }).join().get(owner).props;
+
+        Assert.assertEquals(0, synchronizer.getWriteBackStorage(owner, usedTid.join()).bufferedCount());
+        // the nodes were written to the underlying storage
+        ChampWrapper champ = ChampWrapper.create(updated.tree.get(), x -> x.data, dht, crypto.hasher, updated.treeBitWidth).join();
+        Assert.assertEquals(MaybeMultihash.of(value), champ.get(key).join());
+    }
+
+    @Test
+    public void writeBackDiscardedOnError() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers mutable = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        SigningPrivateKeyAndPublicHash other = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer);
+        synchronizer.putEmpty(owner, owner);
+        WriterData otherBase = IpfsTransaction.call(owner,
+                tid -> WriterData.createEmpty(owner, other, dht, crypto.hasher, tid), dht).join();
+
+        // an update which writes to the trees of two signers, and then fails
+        Random r = new Random(42);
+        CompletableFuture<TransactionId> usedTid = new CompletableFuture<>();
+        CompletableFuture<Snapshot> failed = synchronizer.applyUpdate(owner, signer, (wd, tid) -> {
+            usedTid.complete(tid);
+            return tree.put(otherBase, owner, other, randomBytes(r), MaybeMultihash.empty(),
+                    new Multihash(Multihash.Type.sha2_256, randomBytes(r)), tid)
+                    .thenCompose(x -> tree.put(wd, owner, signer, randomBytes(r), MaybeMultihash.empty(),
+                            new Multihash(Multihash.Type.sha2_256, randomBytes(r)), tid))
+                    .thenCompose(x -> Futures.errored(new IllegalStateException("Failed update")));
+        });
+        Assert.assertTrue(joinFails(failed));
+
+        TransactionId tid = usedTid.join();
+        Assert.assertEquals(0, synchronizer.getWriteBackStorage(owner, tid).bufferedCount());
+        Assert.assertEquals(0, synchronizer.getWriteBackStorage(other.publicKeyHash, tid).bufferedCount());
+    }
+
+    @Test
+    public void failedUpdateKeepsOtherTransactionsWriteBack() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers mutable = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree tree = new MutableTreeImpl(mutable, dht, crypto.hasher, synchronizer);
+        synchronizer.putEmpty(owner, owner);
+        WriterData base = synchronizer.getValue(owner, owner).join().get(owner).props;
+
+        // uncommitted nodes of the same writer in a transaction which is still in progress
+        Random r = new Random(42);
+        TransactionId inProgress = new TransactionId("in progress");
+        tree.put(base, owner, signer, randomBytes(r), MaybeMultihash.empty(),
+                new Multihash(Multihash.Type.sha2_256, randomBytes(r)), inProgress).join();
+        int buffered = synchronizer.getWriteBackStorage(owner, inProgress).bufferedCount();
+        Assert.assertTrue(buffered > 0);
+
+        CompletableFuture<Snapshot> failed = synchronizer.applyUpdate(owner, signer, (wd, tid) ->
+                tree.put(wd, owner, signer, randomBytes(r), MaybeMultihash.empty(),
+                        new Multihash(Multihash.Type.sha2_256, randomBytes(r)), tid)
+                        .thenCompose(x -> Futures.errored(new IllegalStateException("Failed update"))));
+        Assert.assertTrue(joinFails(failed));
+        Assert.assertEquals(buffered, synchronizer.getWriteBackStorage(owner, inProgress).bufferedCount());
+    }
+
+    @Test
+    public void externalPointerChangeSeenByGetValue() throws Exception {
+        Crypto crypto = Main.initCrypto();
+        ContentAddressedStorage dht = new RAMStorage();
+        Connection db = Sqlite.build("::memory::");
+        MutablePointers mutable = UserRepository.build(dht, new JdbcIpnsAndSocial(db, new SqliteCommands()));
+        SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(dht, crypto);
+        PublicKeyHash owner = signer.publicKeyHash;
+        // two clients of the same user
+        WriteSynchronizer writer = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree writerTree = new MutableTreeImpl(mutable, dht, crypto.hasher, writer);
+        writer.putEmpty(owner, owner);
+        WriteSynchronizer reader = new WriteSynchronizer(mutable, dht, crypto.hasher);
+        MutableTree readerTree = new MutableTreeImpl(mutable, dht, crypto.hasher, reader);
+
+        Random r = new Random(42);
+        byte[] key1 = randomBytes(r);
+        Multihash value1 = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+        CommittedWriterData v1 = writer.applyUpdate(owner, signer,
+                (wd, tid) -> writerTree.put(wd, owner, signer, key1, MaybeMultihash.empty(), value1, tid)).join().get(owner);
+        CommittedWriterData read1 = reader.getValue(owner, owner).join().get(owner);
+        Assert.assertEquals(v1.hash, read1.hash);
+        Assert.assertEquals(MaybeMultihash.of(value1), readerTree.get(read1.props, owner, owner, key1).join());
+        // an unchanged pointer returns the version we already have
+        Assert.assertSame(read1.props, reader.getValue(owner, owner).join().get(owner).props);
+
+        // the other client changes the pointer
+        byte[] key2 = randomBytes(r);
+        Multihash value2 = new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+        CommittedWriterData v2 = writer.applyUpdate(owner, signer,
+                (wd, tid) -> writerTree.put(wd, owner, signer, key2, MaybeMultihash.empty(), value2, tid)).join().get(owner);
+        Assert.assertNotEquals(v1.hash, v2.hash);
+
+        CommittedWriterData read2 = reader.getValue(owner, owner).join().get(owner);
+        Assert.assertEquals(v2.hash, read2.hash);
+        Assert.assertEquals(MaybeMultihash.of(value2), readerTree.get(read2.props, owner, owner, key2).join());
+    }
+
+    private static boolean joinFails(CompletableFuture<?> f) {
+        try {
+            f.join();
+            return false;
+        } catch (CompletionException e) {
+            return true;
+        }
+    }
+
+    private static byte[] randomBytes(Random r) {
+        byte[] res = new byte[32];
+        r.nextBytes(res);
+        return res;
+    }
 }
@@ -0,0 +1,108 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.function.*;
+
+public class ChampBenchmark {
+
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Hasher writeHasher = crypto.hasher;
+    private static final Function<ByteArrayWrapper, byte[]> hasher = ChampTests::identityHash;
+
+    // 1000 keys, bit width 3, RAM storage
+    // BitSet bitmaps:    get 2.0 - 2.4 M ops/S, put 101 - 122 ops/S, remove + put 48 - 61 ops/S
+    // long bitmaps:      get 2.2 - 2.9 M ops/S, put 100 - 114 ops/S, remove + put 52 - 60 ops/S
+    @Test
+    public void getPutRemove() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Random r = new Random(28);
+        int bitWidth = ChampWrapper.BIT_WIDTH;
+        int maxCollisions = ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL;
+        int nKeys = 1000;
+        int nReads = 1_000_000;
+        // writes are dominated by signing and hashing the new nodes
+        int nWrites = 1_000;
+
+        Champ current = Champ.empty();
+        Multihash currentHash = storage.put(user.publicKeyHash, user, current.serialize(), writeHasher, tid).get();
+        List<ByteArrayWrapper> keys = new ArrayList<>();
+        for (int i = 0; i < nKeys; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomBytes(r));
+            keys.add(key);
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, key, hasher.apply(key), 0,
+                    MaybeMultihash.empty(), MaybeMultihash.of(randomHash(r)), bitWidth, maxCollisions, hasher, tid,
+                    storage, writeHasher, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+        }
+
+        // warm up
+        for (int i = 0; i < nReads; i++) {
+            ByteArrayWrapper key = keys.get(r.nextInt(keys.size()));
+            current.get(key, hasher.apply(key), 0, bitWidth, storage).get();
+        }
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < nReads; i++) {
+            ByteArrayWrapper key = keys.get(r.nextInt(keys.size()));
+            current.get(key, hasher.apply(key), 0, bitWidth, storage).get();
+        }
+        print("get", t0, nReads);
+
+        // overwrite existing values
+        long t1 = System.currentTimeMillis();
+        for (int i = 0; i < nWrites; i++) {
+            ByteArrayWrapper key = keys.get(r.nextInt(keys.size()));
+            MaybeMultihash existing = current.get(key, hasher.apply(key), 0, bitWidth, storage).get();
+            Pair<Champ, Multihash> updated = current.put(user.publicKeyHash, user, key, hasher.apply(key), 0,
+                    existing, MaybeMultihash.of(randomHash(r)), bitWidth, maxCollisions, hasher, tid,
+                    storage, writeHasher, currentHash).get();
+            current = updated.left;
+            currentHash = updated.right;
+        }
+        print("put", t1, nWrites);
+
+        // remove and re-add each key
+        long t2 = System.currentTimeMillis();
+        for (int i = 0; i < nWrites; i++) {
+            ByteArrayWrapper key = keys.get(i % keys.size());
+            MaybeMultihash existing = current.get(key, hasher.apply(key), 0, bitWidth, storage).get();
+            Pair<Champ, Multihash> removed = current.remove(user.publicKeyHash, user, key, hasher.apply(key), 0,
+                    existing, bitWidth, maxCollisions, tid, storage, writeHasher, currentHash).get();
+            Pair<Champ, Multihash> readded = removed.left.put(user.publicKeyHash, user, key, hasher.apply(key), 0,
+                    MaybeMultihash.empty(), existing, bitWidth, maxCollisions, hasher, tid,
+                    storage, writeHasher, removed.right).get();
+            current = readded.left;
+            currentHash = readded.right;
+        }
+        print("remove", t2, nWrites);
+    }
+
+    private static void print(String op, long start, int ops) {
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        System.out.printf("%s: %d mS, %d ops/S\n", op, duration, ops * 1000L / duration);
+    }
+
+    private static byte[] randomBytes(Random r) {
+        byte[] res = new byte[32];
+        r.nextBytes(res);
+        return res;
+    }
+
+    private static Multihash randomHash(Random r) {
+        return new Multihash(Multihash.Type.sha2_256, randomBytes(r));
+    }
+}
@@ -22,6 +22,7 @@ import java.net.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 /**
@@ -29,6 +30,8 @@ import java.util.stream.*;
  */
 public class NetworkAccess {
     private static final Logger LOG = Logger.getGlobal();
+    private static final int MAX_FRAGMENTS_PER_QUERY = 16;
+    private static final int MAX_FRAGMENT_BYTES_PER_QUERY = 2 * 1024 * 1024;
 
     public final Hasher hasher;
     public final CoreNode coreNode;
@@ -44,6 +47,8 @@ public class NetworkAccess {
     public final List<String> usernames;
     private final LocalDateTime creationTime;
     private final boolean isJavascript;
+    private final AdaptiveWindow uploadWindow = new AdaptiveWindow(4, 1, 16);
+    private final Optional<PointerSubscriber> pointerSubscriber;
 
     public NetworkAccess(CoreNode coreNode,
                             SocialNetwork social,
@@ -67,6 +72,10 @@ public class NetworkAccess {
         this.usernames = usernames;
         this.creationTime = LocalDateTime.now();
         this.isJavascript = isJavascript;
+        this.pointerSubscriber = mutable instanceof CachingPointers ?
+                Optional.of(new PointerSubscriber((CachingPointers) mutable)) :
+                Optional.empty();
+        pointerSubscriber.ifPresent(s -> s.addListener(synchronizer::pointersChanged));
     }
 
     public boolean isJavascript() {
@@ -86,7 +95,7 @@ public class NetworkAccess {
 
     public NetworkAccess clear() {
         WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient, hasher);
-        MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, hasher, synchronizer);
+        MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, hasher, synchronizer, getTreeBitWidth());
         return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin,
                 spaceUsage, usernames, isJavascript);
     }
@@ -94,11 +103,43 @@ public class NetworkAccess {
     public NetworkAccess withMutablePointerCache(int ttl) {
         CachingPointers mutable = new CachingPointers(this.mutable, ttl);
         WriteSynchronizer synchronizer = new WriteSynchronizer(mutable, dhtClient, hasher);
-        MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, hasher, synchronizer);
+        MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, hasher, synchronizer, getTreeBitWidth());
         return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin,
                 spaceUsage, usernames, isJavascript);
     }
 
+    /** Write new file trees, and migrate existing ones on their next mutation, with the given bit width. Only use a
+     *  bit width other than the default once no clients which predate the "treebits" field of WriterData remain.
+     *
+     * @param treeBitWidth
+     * @return
+     */
+    @JsMethod
+    public NetworkAccess withTreeBitWidth(int treeBitWidth) {
+        MutableTree mutableTree = new MutableTreeImpl(mutable, dhtClient, hasher, synchronizer, treeBitWidth);
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, mutableTree, synchronizer, instanceAdmin,
+                spaceUsage, usernames, isJavascript);
+    }
+
+    public int getTreeBitWidth() {
+        return tree instanceof MutableTreeImpl ?
+                ((MutableTreeImpl) tree).getTreeBitWidth() :
+                MutableTreeImpl.DEFAULT_TREE_BIT_WIDTH;
+    }
+
+    /** Wait until any mutable pointer in our pointer cache changes, or a server chosen timeout elapses, and refresh
+     *  the state derived from the changed pointers. Calling this in a loop keeps the cached pointers current without
+     *  polling them.
+     *
+     * @return true if this can be called again straight away, or false if the caller should back off first, which
+     * is always the case without a pointer cache
+     */
+    @JsMethod
+    public CompletableFuture<Boolean> awaitPointerChanges() {
+        return pointerSubscriber.map(PointerSubscriber::awaitChanges)
+                .orElseGet(() -> Futures.of(false));
+    }
+
     public static CoreNode buildProxyingCorenode(HttpPoster poster, Multihash pkiServerNodeId) {
         return new HTTPCoreNode(poster, pkiServerNodeId);
     }
@@ -266,31 +307,70 @@ public class NetworkAccess {
                 .thenApply(res -> res.isEmpty() ? Optional.empty() : Optional.of(res.get(0)));
     }
 
+    /**
+     *
+     * @return the retrieved capabilities, in the order of links, omitting any that couldn't be found
+     */
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links, Snapshot current) {
-        List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
-                .map(link -> {
-                    PublicKeyHash owner = link.owner;
-                    PublicKeyHash writer = link.writer;
-                    byte[] mapKey = link.getMapKey();
-                    return current.withWriter(owner, writer, this).thenCompose(version ->
-                            tree.get(version.get(writer).props, owner, writer, mapKey))
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedCapability(
-                                                            link,
-                                                            CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
-                                LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
-                                Optional<RetrievedCapability> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
-                            });
-                }).collect(Collectors.toList());
+        return getAllMetadata(links, current).thenApply(retrieved -> {
+            List<RetrievedCapability> res = new ArrayList<>();
+            for (int i = 0; i < links.size(); i++) {
+                if (retrieved.get(i).isPresent())
+                    res.add(retrieved.get(i).get());
+                else
+                    LOG.severe("Couldn't download link at: " + links.get(i).getLocation());
+            }
+            return res;
+        });
+    }
 
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList()));
+    /** Retrieve the cryptree nodes of many capabilities. The capabilities are grouped by writer, the map keys of
+     *  each group are looked up in a single traversal of the writer's tree, and then all the nodes are fetched
+     *  concurrently. The pointers of writers which aren't in the snapshot are fetched together first.
+     *
+     * @return the retrieved capability, or empty if absent, for each of links in the same order
+     */
+    public CompletableFuture<List<Optional<RetrievedCapability>>> getAllMetadata(List<AbsoluteCapability> links, Snapshot current) {
+        Map<Pair<PublicKeyHash, PublicKeyHash>, List<Integer>> byWriter = new LinkedHashMap<>();
+        for (int i = 0; i < links.size(); i++)
+            byWriter.computeIfAbsent(new Pair<>(links.get(i).owner, links.get(i).writer), w -> new ArrayList<>()).add(i);
+
+        List<Optional<RetrievedCapability>> res = new ArrayList<>(Collections.nCopies(links.size(), Optional.empty()));
+        List<Pair<PublicKeyHash, PublicKeyHash>> unknownWriters = byWriter.keySet().stream()
+                .filter(p -> ! current.contains(p.right))
+                .collect(Collectors.toList());
+        return synchronizer.prefetchPointers(unknownWriters).thenCompose(prefetched -> Futures.combineAll(byWriter.entrySet().stream()
+                .map(e -> {
+                    PublicKeyHash owner = e.getKey().left;
+                    PublicKeyHash writer = e.getKey().right;
+                    List<Integer> indices = e.getValue();
+                    List<byte[]> mapKeys = indices.stream()
+                            .map(i -> links.get(i).getMapKey())
+                            .collect(Collectors.toList());
+                    return current.withWriter(owner, writer, this)
+                            .thenCompose(version -> tree.getAll(version.get(writer).props, owner, writer, mapKeys))
+                            .thenCompose(keys -> Futures.combineAll(IntStream.range(0, indices.size())
+                                    .mapToObj(j -> getMetadata(links.get(indices.get(j)), keys.get(j))
+                                            .thenApply(retrieved -> {
+                                                synchronized (res) {
+                                                    res.set(indices.get(j), retrieved);
+                                                }
+                                                return true;
+                                            }))
+                                    .collect(Collectors.toList())))
+                            .thenApply(x -> true);
+                }).collect(Collectors.toList())))
+                .thenApply(x -> res);
+    }
+
+    private CompletableFuture<Optional<RetrievedCapability>> getMetadata(AbsoluteCapability link, MaybeMultihash key) {
+        if (! key.isPresent())
+            return CompletableFuture.completedFuture(Optional.empty());
+        return dhtClient.get(key.get())
+                .thenApply(dataOpt ->  dataOpt
+                        .map(cbor -> new RetrievedCapability(
+                                link,
+                                CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
     }
 
     public CompletableFuture<Set<FileWrapper>> retrieveAll(List<EntryPoint> entries) {
@@ -421,6 +501,9 @@ public class NetworkAccess {
                 .collect(Collectors.toList()), tid);
     }
 
+    /** Upload fragments packed into multi-block requests, which are issued concurrently within an adaptive window.
+     *  The progress counter is updated as each request completes.
+     */
     public CompletableFuture<List<Multihash>> uploadFragments(List<Fragment> fragments,
                                                               PublicKeyHash owner,
                                                               SigningPrivateKeyAndPublicHash writer,
@@ -428,11 +511,7 @@ public class NetworkAccess {
                                                               TransactionId tid) {
         if (fragments.isEmpty())
             return CompletableFuture.completedFuture(Collections.emptyList());
-        // upload one per query because IPFS doesn't support more than one
-        int FRAGMENTs_PER_QUERY = 1;
-        List<List<Fragment>> grouped = IntStream.range(0, (fragments.size() + FRAGMENTs_PER_QUERY - 1) / FRAGMENTs_PER_QUERY)
-                .mapToObj(i -> fragments.stream().skip(FRAGMENTs_PER_QUERY * i).limit(FRAGMENTs_PER_QUERY).collect(Collectors.toList()))
-                .collect(Collectors.toList());
+        List<List<Fragment>> grouped = groupFragments(fragments);
         List<Integer> sizes = grouped.stream()
                 .map(frags -> frags.stream().mapToInt(f -> f.data.length).sum())
                 .collect(Collectors.toList());
@@ -443,26 +522,62 @@ public class NetworkAccess {
                 .collect(Collectors.toList()))
                 .thenCompose(groupsSignatures -> {
                     List<CompletableFuture<List<Multihash>>> futures = IntStream.range(0, grouped.size())
-                            .mapToObj(i -> bulkUploadFragments(
-                                    grouped.get(i),
-                                    owner,
-                                    writer.publicKeyHash,
-                                    groupsSignatures.get(i)
-                                            .stream()
-                                            .map(sig -> writer.secret.signatureOnly(sig))
-                                            .collect(Collectors.toList()),
-                                    tid
-                            ).thenApply(hash -> {
-                                if (progressCounter != null)
-                                    progressCounter.accept((long) sizes.get(i));
-                                return hash;
-                            })).collect(Collectors.toList());
+                            .mapToObj(i -> {
+                                List<byte[]> signatures = groupsSignatures.get(i)
+                                        .stream()
+                                        .map(sig -> writer.secret.signatureOnly(sig))
+                                        .collect(Collectors.toList());
+                                return uploadWithRetry(() -> bulkUploadFragments(grouped.get(i), owner,
+                                        writer.publicKeyHash, signatures, tid))
+                                        .thenApply(hash -> {
+                                            if (progressCounter != null)
+                                                progressCounter.accept((long) sizes.get(i));
+                                            return hash;
+                                        });
+                            }).collect(Collectors.toList());
                     return Futures.combineAllInOrder(futures)
                             .thenApply(groups -> groups.stream()
                                     .flatMap(g -> g.stream()).collect(Collectors.toList()));
                 });
     }
 
+    /** Pack consecutive fragments into groups bounded in total size, and in count, because the signatures are
+     *  sent in the url of the request.
+     */
+    private static List<List<Fragment>> groupFragments(List<Fragment> fragments) {
+        List<List<Fragment>> groups = new ArrayList<>();
+        List<Fragment> current = new ArrayList<>();
+        int currentSize = 0;
+        for (Fragment f : fragments) {
+            if (! current.isEmpty() &&
+                    (current.size() == MAX_FRAGMENTS_PER_QUERY || currentSize + f.data.length > MAX_FRAGMENT_BYTES_PER_QUERY)) {
+                groups.add(current);
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+            current.add(f);
+            currentSize += f.data.length;
+        }
+        groups.add(current);
+        return groups;
+    }
+
+    /** Block puts are idempotent, so a failed request is retried once, after the window has shrunk
+     */
+    private <T> CompletableFuture<T> uploadWithRetry(Supplier<CompletableFuture<T>> upload) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        uploadWindow.submit(upload)
+                .thenApply(res::complete)
+                .exceptionally(t -> {
+                    LOG.info("Retrying fragment upload after: " + t.getMessage());
+                    uploadWindow.submit(upload)
+                            .thenApply(res::complete)
+                            .exceptionally(e -> res.completeExceptionally(e));
+                    return false;
+                });
+        return res;
+    }
+
     public CompletableFuture<Snapshot> uploadChunk(Snapshot current,
                                                    Committer committer,
                                                    CryptreeNode metadata,
@@ -476,11 +591,8 @@ public class NetworkAccess {
             LOG.info("Uploading chunk: " + (metadata.isDirectory() ? "dir" : "file")
                     + " at " + ArrayOps.bytesToHex(mapKey)
                     + " with " + metadata.toCbor().links().size() + " fragments");
-            byte[] metaBlob = metadata.serialize();
             CommittedWriterData version = current.get(writer);
-            return hasher.sha256(metaBlob)
-                    .thenCompose(blobSha -> dhtClient.put(owner, writer.publicKeyHash,
-                            writer.secret.signatureOnly(blobSha), metaBlob, tid))
+            return uploadMetadata(metadata, owner, writer, tid)
                     .thenCompose(blobHash -> tree.put(version.props, owner, writer, mapKey,
                             metadata.committedHash(), blobHash, tid)
                             .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid)))
@@ -491,6 +603,20 @@ public class NetworkAccess {
         }
     }
 
+    /** Write the cryptree node for a chunk without adding it to the champ
+     *
+     * @return the hash of the cryptree node
+     */
+    public CompletableFuture<Multihash> uploadMetadata(CryptreeNode metadata,
+                                                       PublicKeyHash owner,
+                                                       SigningPrivateKeyAndPublicHash writer,
+                                                       TransactionId tid) {
+        byte[] metaBlob = metadata.serialize();
+        return hasher.sha256(metaBlob)
+                .thenCompose(blobSha -> dhtClient.put(owner, writer.publicKeyHash,
+                        writer.secret.signatureOnly(blobSha), metaBlob, tid));
+    }
+
     public CompletableFuture<Snapshot> addPreexistingChunk(CryptreeNode metadata,
                                                            PublicKeyHash owner,
                                                            byte[] mapKey,
@@ -516,6 +642,21 @@ public class NetworkAccess {
                 .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
     }
 
+    public CompletableFuture<Snapshot> deleteChunks(Snapshot current,
+                                                    Committer committer,
+                                                    List<Pair<byte[], CryptreeNode>> mapKeyAndMetadata,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    TransactionId tid) {
+        CommittedWriterData version = current.get(writer);
+        List<Pair<byte[], MaybeMultihash>> toRemove = mapKeyAndMetadata.stream()
+                .map(p -> new Pair<>(p.left, p.right.committedHash()))
+                .collect(Collectors.toList());
+        return tree.removeAll(version.props, owner, writer, toRemove, tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
+                .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
+    }
+
     public CompletableFuture<Snapshot> deleteChunkIfPresent(Snapshot current,
                                                             Committer committer,
                                                             PublicKeyHash owner,
@@ -8,6 +8,7 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -93,7 +94,44 @@ public class FragmentedPaddedCipherText implements Cborable {
                                                   NetworkAccess network,
                                                   ProgressConsumer<Long> monitor) {
         return network.downloadFragments(cipherTextFragments, monitor, 1.0)
-                .thenApply(fargs -> new CipherText(nonce, recombine(fargs)).decrypt(from, fromCbor));
+                .thenApply(fargs -> fromCbor.apply(CborObject.fromByteArray(decrypt(from, fargs).readAll())));
+    }
+
+    /** Decrypt a cbor byte array straight from the fragments into an array of its length, without recombining the
+     *  fragments or copying the padding.
+     *
+     * @param maxLength the maximum number of bytes of the byte array to return
+     */
+    public CompletableFuture<byte[]> getAndDecryptByteArray(SymmetricKey from,
+                                                            int maxLength,
+                                                            NetworkAccess network,
+                                                            ProgressConsumer<Long> monitor) {
+        return network.downloadFragments(cipherTextFragments, monitor, 1.0)
+                .thenApply(fargs -> {
+                    PlainText plainText = decrypt(from, fargs);
+                    // the longest cbor byte array header is 9 bytes
+                    byte[] header = new byte[(int) Math.min(9, plainText.length())];
+                    plainText.read(0, header, 0, header.length);
+                    ByteArrayInputStream in = new ByteArrayInputStream(header);
+                    long length;
+                    try {
+                        length = new CborDecoder(in).readByteStringLength();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    int headerSize = header.length - in.available();
+                    if (length < 0 || headerSize + length > plainText.length())
+                        throw new IllegalStateException("Invalid cbor: byte string longer than original bytes!");
+                    byte[] res = new byte[(int) Math.min(length, maxLength)];
+                    plainText.read(headerSize, res, 0, res.length);
+                    return res;
+                });
+    }
+
+    private PlainText decrypt(SymmetricKey from, List<FragmentWithHash> fragments) {
+        return from.decryptFragments(fragments.stream()
+                .map(f -> f.fragment.data)
+                .collect(Collectors.toList()), nonce);
     }
 
     private static byte[][] generateCache() {
@@ -1,9 +1,11 @@
 package peergos.shared.crypto;
 
+import peergos.shared.crypto.symmetric.*;
 import peergos.shared.util.*;
 
 import java.security.*;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /* Ported from the original C by Ian Preston and Chris Boddy
@@ -130,6 +132,76 @@ public class TweetNaCl {
         return Arrays.copyOfRange(m, SECRETBOX_INTERNAL_OVERHEAD_BYTES, m.length);
     }
 
+    /** Authenticate a secretbox whose cipher text is split over several arrays, without recombining them. The plain
+     *  text is decrypted from the fragments directly into the caller's arrays as it is read.
+     */
+    public static PlainText secretbox_open(List<byte[]> cipherFragments, byte[] nonce, byte[] key) {
+        long cipherLength = 0;
+        for (byte[] fragment : cipherFragments)
+            cipherLength += fragment.length;
+        if (cipherLength < SECRETBOX_OVERHEAD_BYTES)
+            throw new InvalidCipherTextException("Invalid encryption! [" + cipherLength + "]");
+        byte[] s = new byte[32];
+        crypto_core_hsalsa20(s, nonce, key, sigma);
+        byte[] authKey = new byte[32];
+        crypto_stream_salsa20(authKey, 32, nonce, 16, s);
+        byte[] mac = new byte[16];
+        new FragmentReader(cipherFragments, 0).read(mac, 0, mac.length);
+        byte[] expected = new byte[16];
+        crypto_onetimeauth(expected, 0, new FragmentReader(cipherFragments, SECRETBOX_OVERHEAD_BYTES),
+                cipherLength - SECRETBOX_OVERHEAD_BYTES, authKey);
+        if (crypto_verify_16(mac, 0, expected) != 0)
+            throw new InvalidCipherTextException("Invalid encryption! [" + cipherLength + "]");
+
+        long plainTextLength = cipherLength - SECRETBOX_OVERHEAD_BYTES;
+        return new PlainText() {
+            @Override
+            public long length() {
+                return plainTextLength;
+            }
+
+            @Override
+            public void read(long offset, byte[] out, int outOffset, int length) {
+                if (offset < 0 || length < 0 || offset + length > plainTextLength)
+                    throw new IllegalArgumentException("Invalid plain text range: " + offset + " + " + length);
+                // the first 32 bytes of the stream are used for the authenticator
+                crypto_stream_salsa20_xor(out, outOffset, new FragmentReader(cipherFragments, SECRETBOX_OVERHEAD_BYTES + offset),
+                        length, 32 + offset, nonce, 16, s);
+            }
+        };
+    }
+
+    /** Reads consecutive bytes from a list of arrays as if they were one
+     */
+    private static final class FragmentReader {
+        private final List<byte[]> fragments;
+        private int fragment, pos;
+
+        FragmentReader(List<byte[]> fragments, long offset) {
+            this.fragments = fragments;
+            while (fragment < fragments.size() && offset >= fragments.get(fragment).length) {
+                offset -= fragments.get(fragment).length;
+                fragment++;
+            }
+            this.pos = (int) offset;
+        }
+
+        void read(byte[] dest, int destOffset, int length) {
+            while (length > 0) {
+                byte[] current = fragments.get(fragment);
+                int n = Math.min(length, current.length - pos);
+                System.arraycopy(current, pos, dest, destOffset, n);
+                destOffset += n;
+                length -= n;
+                pos += n;
+                if (pos == current.length) {
+                    fragment++;
+                    pos = 0;
+                }
+            }
+        }
+    }
+
     private static byte[] _0 = new byte[16], _9 = new byte[32];
     static {
         _9[0] = 9;
@@ -260,6 +332,34 @@ public class TweetNaCl {
         return 0;
     }
 
+    private static void crypto_stream_salsa20_xor(byte[] c, int cOff, FragmentReader m, long b, long streamOffset, byte[] n, int nOff, byte[] k)
+    {
+        byte[] z = new byte[16],x = new byte[64],block = new byte[64];
+        int u,i;
+        for (i=0;i < 8;++i)z[i] = n[nOff + i];
+        long counter = streamOffset / 64;
+        for (i = 8;i < 16;++i) {
+            z[i] = (byte)counter;
+            counter >>>= 8;
+        }
+        int start = (int) (streamOffset % 64);
+        while (b > 0) {
+            crypto_core_salsa20(x,z,k,sigma);
+            int len = (int) Math.min(64 - start, b);
+            m.read(block, 0, len);
+            for (i=0;i < len; i++) c[cOff + i] = (byte)(block[i] ^ x[start + i]);
+            u = 1;
+            for (i = 8;i < 16;++i) {
+                u += 0xff & z[i];
+                z[i] = (byte)u;
+                u >>= 8;
+            }
+            b -= len;
+            cOff += len;
+            start = 0;
+        }
+    }
+
     private static int crypto_stream_salsa20(byte[] c,long d,byte[] n, int nOff, byte[] k)
     {
         return crypto_stream_salsa20_xor(c,null,d,n, nOff, k);
@@ -294,9 +394,15 @@ public class TweetNaCl {
     } ;
 
     private static int crypto_onetimeauth(byte[] out, int outOff, byte[] m, int mOff, long n,byte[] k)
+    {
+        return crypto_onetimeauth(out, outOff, new FragmentReader(Arrays.asList(m), mOff), n, k);
+    }
+
+    private static int crypto_onetimeauth(byte[] out, int outOff, FragmentReader m, long n,byte[] k)
     {
         int s,i,j,u;
         int[] x = new int[17],r = new int[17],h = new int[17],c = new int[17],g = new int[17];
+        byte[] block = new byte[16];
 
         for (j=0;j < 17;++j)
             r[j]= h[j] = 0;
@@ -313,10 +419,11 @@ public class TweetNaCl {
         while (n > 0) {
             for (j=0;j < 17;++j)
                 c[j] = 0;
+            m.read(block, 0, (int) Math.min(16, n));
             for (j = 0;(j < 16) && (j < n);++j)
-                c[j] = 0xff & m[mOff + j];
+                c[j] = 0xff & block[j];
             c[j] = 1;
-            mOff += j; n -= j;
+            n -= j;
             add1305(h,c);
             for (i=0;i < 17;++i){
                 x[i] = 0;
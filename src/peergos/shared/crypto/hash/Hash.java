@@ -1,6 +1,7 @@
 package peergos.shared.crypto.hash;
 
 import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
 
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
@@ -24,6 +25,28 @@ public class Hash {
         }
     }
 
+    /**
+     *
+     * @return h_n, where h_0 = seed and h_(i+1) = sha256(prefix || h_i)
+     */
+    public static byte[] sha256Chain(byte[] prefix, byte[] seed, long n) {
+        byte[] current = seed;
+        try {
+            MessageDigest md = MessageDigest.getInstance(HASH);
+            for (long i = 0; i < n; i++) {
+                md.update(prefix);
+                md.update(current);
+                current = md.digest();
+            }
+            return current;
+        } catch (NoSuchAlgorithmException e) {
+            // This is only here to work around a bug in Doppio JVM
+            for (long i = 0; i < n; i++)
+                current = sha256(ArrayOps.concat(prefix, current));
+            return current;
+        }
+    }
+
     public static CompletableFuture<byte[]> sha256(AsyncReader input, long length) {
         try {
             MessageDigest md = MessageDigest.getInstance(HASH);
@@ -3,6 +3,7 @@ package peergos.shared.crypto.hash;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
 import java.util.concurrent.CompletableFuture;
 
@@ -14,6 +15,17 @@ public interface Hasher {
 
     byte[] blake2b(byte[] input, int outputBytes);
 
+    /** Hash repeatedly, prefixing every input with the same bytes
+     *
+     * @return h_n, where h_0 = seed and h_(i+1) = sha256(prefix || h_i)
+     */
+    default CompletableFuture<byte[]> sha256Chain(byte[] prefix, byte[] seed, long n) {
+        CompletableFuture<byte[]> res = CompletableFuture.completedFuture(seed);
+        for (long i = 0; i < n; i++)
+            res = res.thenCompose(current -> sha256(ArrayOps.concat(prefix, current)));
+        return res;
+    }
+
     default CompletableFuture<Multihash> hash(byte[] input, boolean isRaw) {
         return sha256(input)
                 .thenApply(h -> Cid.buildCidV1(isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, h));
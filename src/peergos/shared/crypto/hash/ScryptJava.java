@@ -42,6 +42,11 @@ public class ScryptJava implements Hasher {
         return CompletableFuture.completedFuture(Hash.sha256(input));
     }
 
+    @Override
+    public CompletableFuture<byte[]> sha256Chain(byte[] prefix, byte[] seed, long n) {
+        return CompletableFuture.completedFuture(Hash.sha256Chain(prefix, seed, n));
+    }
+
     @Override
     public byte[] blake2b(byte[] input, int outputBytes) {
         return Blake2b.Digest.newInstance(outputBytes).digest(input);
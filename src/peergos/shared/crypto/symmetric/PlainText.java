@@ -0,0 +1,58 @@
+package peergos.shared.crypto.symmetric;
+
+/** The plain text of an authenticated cipher text, which can be decrypted straight into the caller's arrays
+ *
+ */
+public interface PlainText {
+
+    long length();
+
+    /**
+     *
+     * @param offset the index in the plain text to start from
+     * @param out array to store the plain text in
+     * @param outOffset initial index to store plain text in out
+     * @param length number of bytes to read
+     */
+    void read(long offset, byte[] out, int outOffset, int length);
+
+    default byte[] readAll() {
+        byte[] res = new byte[(int) length()];
+        read(0, res, 0, res.length);
+        return res;
+    }
+
+    class ArrayBacked implements PlainText {
+        private final byte[] data;
+        private final int offset, length;
+
+        public ArrayBacked(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        /** The plain text is the given range of data
+         */
+        public ArrayBacked(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void read(long offset, byte[] out, int outOffset, int length) {
+            System.arraycopy(data, this.offset + (int) offset, out, outOffset, length);
+        }
+
+        @Override
+        public byte[] readAll() {
+            if (offset == 0 && length == data.length)
+                return data;
+            return PlainText.super.readAll();
+        }
+    }
+}
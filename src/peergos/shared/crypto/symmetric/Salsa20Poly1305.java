@@ -3,6 +3,7 @@ package peergos.shared.crypto.symmetric;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.random.JSNaCl;
 
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
 public interface Salsa20Poly1305 {
@@ -15,6 +16,23 @@ public interface Salsa20Poly1305 {
 
     CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key);
 
+    /** Authenticate a cipher text which is split over several arrays, in order
+     *
+     * @return The plain text, which may only be decrypted as it is read
+     */
+    default PlainText secretbox_open(List<byte[]> cipherFragments, byte[] nonce, byte[] key) {
+        int length = 0;
+        for (byte[] fragment : cipherFragments)
+            length += fragment.length;
+        byte[] cipher = new byte[length];
+        int pos = 0;
+        for (byte[] fragment : cipherFragments) {
+            System.arraycopy(fragment, 0, cipher, pos, fragment.length);
+            pos += fragment.length;
+        }
+        return new PlainText.ArrayBacked(secretbox_open(cipher, nonce, key));
+    }
+
     class Javascript implements Salsa20Poly1305 {
         JSNaCl scriptJS = new JSNaCl();
 
@@ -59,6 +77,11 @@ public interface Salsa20Poly1305 {
             return res;
         }
 
+        @Override
+        public PlainText secretbox_open(List<byte[]> cipherFragments, byte[] nonce, byte[] key) {
+            return TweetNaCl.secretbox_open(cipherFragments, nonce, key);
+        }
+
         @Override
         public CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key) {
             byte[] decrypted = TweetNaCl.secretbox_open(cipher, nonce, key);
@@ -54,6 +54,12 @@ public interface SymmetricKey extends Cborable
 
     CompletableFuture<byte[]> decryptAsync(byte[] data, byte[] nonce);
 
+    /** Authenticate a cipher text which is split over several arrays, without recombining them
+     *
+     * @return The plain text, which may only be decrypted as it is read
+     */
+    PlainText decryptFragments(List<byte[]> cipherFragments, byte[] nonce);
+
     @JsMethod
     byte[] createNonce();
 
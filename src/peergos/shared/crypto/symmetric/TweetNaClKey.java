@@ -54,6 +54,11 @@ public class TweetNaClKey implements SymmetricKey
         return decrypt(secretKey, data, nonce, implementation);
     }
 
+    public PlainText decryptFragments(List<byte[]> cipherFragments, byte[] nonce)
+    {
+        return implementation.secretbox_open(cipherFragments, nonce, secretKey);
+    }
+
     public CompletableFuture<byte[]> encryptAsync(byte[] data, byte[] nonce)
     {
         return encryptAsync(secretKey, data, nonce, implementation);
@@ -20,6 +20,7 @@ import java.util.stream.*;
 public class Champ implements Cborable {
 
     private static final int HASH_CODE_LENGTH = 32;
+    private static final int MAX_PARALLEL_DIFF_FETCHES = 16;
 
     private static class KeyElement {
         public final ByteArrayWrapper key;
@@ -59,16 +60,18 @@ public class Champ implements Cborable {
         }
     }
 
-    private static final Champ EMPTY = new Champ(new BitSet(), new BitSet(), new HashPrefixPayload[0]);
+    private static final Champ EMPTY = new Champ(0L, 0L, new HashPrefixPayload[0]);
+    // bitmaps are stored in a long, which limits the bit width to 6
+    public static final int MAX_BIT_WIDTH = 6;
 
     public static Champ empty() {
         return EMPTY;
     }
 
-    private final BitSet dataMap, nodeMap;
+    private final long dataMap, nodeMap;
     private final HashPrefixPayload[] contents;
 
-    public Champ(BitSet dataMap, BitSet nodeMap, HashPrefixPayload[] contents) {
+    private Champ(long dataMap, long nodeMap, HashPrefixPayload[] contents) {
         this.dataMap = dataMap;
         this.nodeMap = nodeMap;
         this.contents = contents;
@@ -96,6 +99,8 @@ public class Champ implements Cborable {
     }
 
     private static int mask(byte[] hash, int depth, int nbits) {
+        if (nbits > MAX_BIT_WIDTH)
+            throw new IllegalStateException("Champ bit width too large: " + nbits);
         int index = (depth * nbits) / 8;
         int shift = (depth * nbits) % 8;
         int lowBits = Math.min(nbits, 8 - shift);
@@ -106,24 +111,61 @@ public class Champ implements Cborable {
                 ((val2 & ((1 << hiBits) - 1)) << lowBits);
     }
 
-    private static int getIndex(BitSet bitmap, int bitpos) {
-        int total = 0;
-        for (int i = 0; i < bitpos;) {
-            int next = bitmap.nextSetBit(i);
-            if (next == -1 || next >= bitpos)
-                return total;
-            total++;
-            i = next + 1;
+    private static boolean isSet(long bitmap, int bitpos) {
+        return (bitmap & (1L << bitpos)) != 0;
+    }
+
+    private static long set(long bitmap, int bitpos) {
+        return bitmap | (1L << bitpos);
+    }
+
+    private static long clear(long bitmap, int bitpos) {
+        return bitmap & ~(1L << bitpos);
+    }
+
+    /**
+     *
+     * @return The number of set bits below bitpos
+     */
+    private static int getIndex(long bitmap, int bitpos) {
+        return Long.bitCount(bitmap & ((1L << bitpos) - 1));
+    }
+
+    /**
+     *
+     * @return The index of the highest set bit plus one
+     */
+    private static int length(long bitmap) {
+        return 64 - Long.numberOfLeadingZeros(bitmap);
+    }
+
+    /** Serialize a bitmap in the same way as BitSet.toByteArray
+     */
+    private static byte[] bitmapToBytes(long bitmap) {
+        byte[] res = new byte[(length(bitmap) + 7) / 8];
+        for (int i = 0; i < res.length; i++)
+            res[i] = (byte) (bitmap >>> (8 * i));
+        return res;
+    }
+
+    private static long bitmapFromBytes(byte[] raw) {
+        long bitmap = 0;
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] == 0)
+                continue;
+            if (i >= 8)
+                throw new IllegalStateException("Champ bitmap too large: " + raw.length + " bytes");
+            bitmap |= (raw[i] & 0xFFL) << (8 * i);
         }
-        return total;
+        return bitmap;
     }
 
     CompletableFuture<Pair<Multihash, Optional<Champ>>> getChild(byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
-        return storage.get(childHash)
-                .thenApply(x -> new Pair<>(childHash, x.map(Champ::fromCbor)));
+        return load(childHash, storage)
+                .thenApply(x -> new Pair<>(childHash, x));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -136,8 +178,8 @@ public class Champ implements Cborable {
             HashPrefixPayload pointer = contents[i];
             if (! pointer.isShard())
                 break; // we reach the key section
-            childCounts.add(storage.get(pointer.link.get())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(Champ::fromCbor)))
+            childCounts.add(load(pointer.link.get(), storage)
+                    .thenApply(x -> new Pair<>(pointer.link.get(), x))
                     .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
@@ -160,7 +202,7 @@ public class Champ implements Cborable {
     public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
         final int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // local value
+        if (isSet(dataMap, bitpos)) { // local value
             int index = getIndex(this.dataMap, bitpos);
             HashPrefixPayload payload = contents[index];
             for (KeyElement candidate : payload.mappings) {
@@ -172,7 +214,7 @@ public class Champ implements Cborable {
             return CompletableFuture.completedFuture(MaybeMultihash.empty());
         }
 
-        if (nodeMap.get(bitpos)) { // child node
+        if (isSet(nodeMap, bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage))
                             .orElse(CompletableFuture.completedFuture(MaybeMultihash.empty())));
@@ -181,6 +223,57 @@ public class Champ implements Cborable {
         return CompletableFuture.completedFuture(MaybeMultihash.empty());
     }
 
+    /** Look up many keys in a single traversal. Keys are grouped by their hash prefix at each level, so each node
+     *  on the union of their paths is only loaded once, and sibling subtrees are loaded in parallel.
+     *
+     * @param keys The keys to get the values for, with their hashes
+     * @param depth The current depth in the champ (top = 0)
+     * @param bitWidth The champ bitwidth
+     * @param storage The storage
+     * @return The value, or empty, of each key
+     */
+    public CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>> getAll(List<Pair<ByteArrayWrapper, byte[]>> keys,
+                                                                         int depth,
+                                                                         int bitWidth,
+                                                                         ContentAddressedStorage storage) {
+        Map<ByteArrayWrapper, MaybeMultihash> local = new HashMap<>();
+        Map<Integer, List<Pair<ByteArrayWrapper, byte[]>>> byChild = new TreeMap<>();
+        for (Pair<ByteArrayWrapper, byte[]> key : keys) {
+            int bitpos = mask(key.right, depth, bitWidth);
+            if (isSet(dataMap, bitpos)) {
+                HashPrefixPayload payload = contents[getIndex(this.dataMap, bitpos)];
+                MaybeMultihash value = MaybeMultihash.empty();
+                for (KeyElement candidate : payload.mappings) {
+                    if (candidate.key.equals(key.left))
+                        value = candidate.valueHash;
+                }
+                local.put(key.left, value);
+            } else if (isSet(nodeMap, bitpos)) {
+                byChild.computeIfAbsent(bitpos, b -> new ArrayList<>()).add(key);
+            } else
+                local.put(key.left, MaybeMultihash.empty());
+        }
+        if (byChild.isEmpty())
+            return CompletableFuture.completedFuture(local);
+
+        List<CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>>> children = byChild.values().stream()
+                .map(group -> getChild(group.get(0).right, depth, bitWidth, storage)
+                        .thenCompose(child -> child.right.map(c -> c.getAll(group, depth + 1, bitWidth, storage))
+                                .orElseGet(() -> {
+                                    Map<ByteArrayWrapper, MaybeMultihash> missing = new HashMap<>();
+                                    for (Pair<ByteArrayWrapper, byte[]> key : group)
+                                        missing.put(key.left, MaybeMultihash.empty());
+                                    return CompletableFuture.completedFuture(missing);
+                                })))
+                .collect(Collectors.toList());
+        return Futures.reduceAll(children, local,
+                (res, child) -> child.thenApply(m -> {
+                    res.putAll(m);
+                    return res;
+                }),
+                (a, b) -> a);
+    }
+
     /**
      *
      * @param writer The writer key with permission to write
@@ -213,7 +306,7 @@ public class Champ implements Cborable {
                                                          Multihash ourHash) {
         int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // local value
+        if (isSet(dataMap, bitpos)) { // local value
             int index = getIndex(this.dataMap, bitpos);
             HashPrefixPayload payload = contents[index];
             KeyElement[] mappings = payload.mappings;
@@ -244,7 +337,7 @@ public class Champ implements Cborable {
                         Champ champ = copyAndMigrateFromInlineToNode(bitpos, p);
                         return storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h));
                     });
-        } else if (nodeMap.get(bitpos)) { // child node
+        } else if (isSet(nodeMap, bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.get().put(owner, writer, key, hash, depth + 1, expected, value,
                             bitWidth, maxCollisions, hasher, tid, storage, writeHasher, child.left)
@@ -261,6 +354,118 @@ public class Champ implements Cborable {
         }
     }
 
+    /** Apply a batch of mutations as sequential puts into a write once buffer. Each put still walks from the root, but
+     *  the intermediate nodes are only written to the in memory buffer, and only the nodes of the final tree are
+     *  written to storage, each once. Mutations are applied in order of their key hash, so consecutive puts share most
+     *  of their path. The resulting tree is identical to applying each mutation with put.
+     *
+     * @param mutations The key, expected value and new value for each mutation
+     * @param ourHash The hash of this champ, which must be the root
+     * @return A new champ and its hash after all the mutations
+     */
+    public CompletableFuture<Pair<Champ, Multihash>> putAll(PublicKeyHash owner,
+                                                            SigningPrivateKeyAndPublicHash writer,
+                                                            List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> mutations,
+                                                            int bitWidth,
+                                                            int maxCollisions,
+                                                            Function<ByteArrayWrapper, byte[]> hasher,
+                                                            TransactionId tid,
+                                                            ContentAddressedStorage storage,
+                                                            Hasher writeHasher,
+                                                            Multihash ourHash) {
+        // if the storage is already buffering our writes, leave the flush to its owner
+        boolean alreadyBuffered = storage instanceof BufferedStorage;
+        BufferedStorage buffer = alreadyBuffered ? (BufferedStorage) storage : new BufferedStorage(storage);
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> sorted = new ArrayList<>(mutations);
+        // stable, so mutations of the same key stay in order
+        sorted.sort(Comparator.comparing(m -> new ByteArrayWrapper(hasher.apply(m.left))));
+        CompletableFuture<Pair<Champ, Multihash>> applied = Futures.reduceAll(sorted, new Pair<>(this, ourHash),
+                (root, m) -> root.left.put(owner, writer, m.left, hasher.apply(m.left), 0, m.middle, m.right,
+                        bitWidth, maxCollisions, hasher, tid, buffer, writeHasher, root.right),
+                (a, b) -> b);
+        if (alreadyBuffered)
+            return applied;
+        return applied.thenCompose(root -> buffer.flush(owner, writer, root.right, tid)
+                        .thenApply(written -> root));
+    }
+
+    /** Build a champ containing the given mappings from the bottom up, writing each node of the final tree once.
+     *  The result is identical to inserting each mapping into an empty champ with put.
+     *
+     * @param mappings The key and value of each mapping, the keys must be unique
+     * @return The root of the new champ and its hash
+     */
+    public static CompletableFuture<Pair<Champ, Multihash>> build(PublicKeyHash owner,
+                                                                  SigningPrivateKeyAndPublicHash writer,
+                                                                  Stream<Pair<ByteArrayWrapper, Multihash>> mappings,
+                                                                  int bitWidth,
+                                                                  int maxCollisions,
+                                                                  Function<ByteArrayWrapper, byte[]> hasher,
+                                                                  TransactionId tid,
+                                                                  ContentAddressedStorage storage,
+                                                                  Hasher writeHasher) {
+        Set<ByteArrayWrapper> keys = new HashSet<>();
+        List<Pair<KeyElement, byte[]>> withHashes = mappings
+                .map(p -> {
+                    if (! keys.add(p.left))
+                        throw new IllegalStateException("Duplicate key in champ: " + p.left);
+                    return new Pair<>(new KeyElement(p.left, MaybeMultihash.of(p.right)), hasher.apply(p.left));
+                })
+                .collect(Collectors.toList());
+        return buildLevel(owner, writer, withHashes, 0, bitWidth, maxCollisions, tid, storage, writeHasher);
+    }
+
+    private static CompletableFuture<Pair<Champ, Multihash>> buildLevel(PublicKeyHash owner,
+                                                                        SigningPrivateKeyAndPublicHash writer,
+                                                                        List<Pair<KeyElement, byte[]>> mappings,
+                                                                        int depth,
+                                                                        int bitWidth,
+                                                                        int maxCollisions,
+                                                                        TransactionId tid,
+                                                                        ContentAddressedStorage storage,
+                                                                        Hasher writeHasher) {
+        if (depth >= HASH_CODE_LENGTH)
+            throw new IllegalStateException("Hash collision!");
+
+        // partition the mappings by their hash prefix at this depth
+        List<List<Pair<KeyElement, byte[]>>> buckets = new ArrayList<>();
+        for (int i = 0; i < 1 << bitWidth; i++)
+            buckets.add(new ArrayList<>());
+        for (Pair<KeyElement, byte[]> mapping : mappings)
+            buckets.get(mask(mapping.right, depth, bitWidth)).add(mapping);
+
+        long dataMap = 0, nodeMap = 0;
+        List<HashPrefixPayload> data = new ArrayList<>();
+        List<CompletableFuture<Pair<Champ, Multihash>>> children = new ArrayList<>();
+        for (int bitpos = 0; bitpos < buckets.size(); bitpos++) {
+            List<Pair<KeyElement, byte[]>> bucket = buckets.get(bitpos);
+            if (bucket.isEmpty())
+                continue;
+            if (bucket.size() <= maxCollisions) {
+                dataMap = set(dataMap, bitpos);
+                KeyElement[] prefix = bucket.stream()
+                        .map(p -> p.left)
+                        .sorted(Comparator.comparing(m -> m.key))
+                        .toArray(KeyElement[]::new);
+                data.add(new HashPrefixPayload(prefix));
+            } else {
+                nodeMap = set(nodeMap, bitpos);
+                children.add(buildLevel(owner, writer, bucket, depth + 1, bitWidth, maxCollisions, tid, storage, writeHasher));
+            }
+        }
+        long finalDataMap = dataMap, finalNodeMap = nodeMap;
+        return Futures.combineAllInOrder(children).thenCompose(childRoots -> {
+            // links are stored after the data, in descending order of their bit position
+            HashPrefixPayload[] contents = new HashPrefixPayload[data.size() + childRoots.size()];
+            for (int i = 0; i < data.size(); i++)
+                contents[i] = data.get(i);
+            for (int i = 0; i < childRoots.size(); i++)
+                contents[contents.length - 1 - i] = new HashPrefixPayload(MaybeMultihash.of(childRoots.get(i).right));
+            Champ champ = new Champ(finalDataMap, finalNodeMap, contents);
+            return storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h));
+        });
+    }
+
     private CompletableFuture<Pair<Champ, Multihash>> pushMappingsDownALevel(PublicKeyHash owner,
                                                                              SigningPrivateKeyAndPublicHash writer,
                                                                              KeyElement[] mappings,
@@ -329,9 +534,7 @@ public class Champ implements Cborable {
         System.arraycopy(src, insertIndex, result, insertIndex + 1, src.length - insertIndex);
         result[insertIndex] = new HashPrefixPayload(new KeyElement[]{new KeyElement(key, val)});
 
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos);
-        return new Champ(newDataMap, nodeMap, result);
+        return new Champ(set(dataMap, bitpos), nodeMap, result);
     }
 
     private Champ copyAndMigrateFromInlineToNode(final int bitpos, final Pair<Champ, Multihash> node) {
@@ -350,11 +553,7 @@ public class Champ implements Cborable {
         dst[newIndex] = new HashPrefixPayload(MaybeMultihash.of(node.right));
         System.arraycopy(src, newIndex + 1, dst, newIndex + 1, src.length - newIndex - 1);
 
-        BitSet newNodeMap = BitSet.valueOf(nodeMap.toByteArray());
-        newNodeMap.set(bitpos);
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos, false);
-        return new Champ(newDataMap, newNodeMap, dst);
+        return new Champ(clear(dataMap, bitpos), set(nodeMap, bitpos), dst);
     }
 
     private Champ overwriteChildLink(final int bitpos, final Pair<Champ, Multihash> node) {
@@ -396,7 +595,7 @@ public class Champ implements Cborable {
                                                             Multihash ourHash) {
         int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // in place value
+        if (isSet(dataMap, bitpos)) { // in place value
             final int dataIndex = getIndex(dataMap, bitpos);
 
             HashPrefixPayload payload = contents[dataIndex];
@@ -423,8 +622,7 @@ public class Champ implements Cborable {
                         if (depth > 0) {
                             // inline all mappings into a single node because at a higher level, all mappings have the
                             // same hash prefix
-                            final BitSet newDataMap = new BitSet();
-                            newDataMap.set(mask(hash, 0, bitWidth));
+                            final long newDataMap = set(0L, mask(hash, 0, bitWidth));
 
                             KeyElement[] remainingMappings = new KeyElement[maxCollisions];
                             int nextIndex = 0;
@@ -437,14 +635,12 @@ public class Champ implements Cborable {
                             Arrays.sort(remainingMappings, Comparator.comparing(x -> x.key));
                             HashPrefixPayload[] oneBucket = new HashPrefixPayload[]{new HashPrefixPayload(remainingMappings)};
 
-                            champ = new Champ(newDataMap, new BitSet(), oneBucket);
+                            champ = new Champ(newDataMap, 0L, oneBucket);
                         } else {
-                            final BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
                             boolean lastInPrefix = mappings.length == 1;
-                            if (lastInPrefix)
-                                newDataMap.clear(bitpos);
-                            else
-                                newDataMap.set(mask(hash, 0, bitWidth));
+                            final long newDataMap = lastInPrefix ?
+                                    clear(dataMap, bitpos) :
+                                    set(dataMap, mask(hash, 0, bitWidth));
 
                             HashPrefixPayload[] src = this.contents;
                             HashPrefixPayload[] dst = new HashPrefixPayload[src.length - (lastInPrefix ? 1 : 0)];
@@ -457,7 +653,7 @@ public class Champ implements Cborable {
                                 dst[dataIndex] = new HashPrefixPayload(remaining);
                             }
 
-                            champ = new Champ(newDataMap, new BitSet(), dst);
+                            champ = new Champ(newDataMap, 0L, dst);
                         }
                         return storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h));
                     } else {
@@ -467,7 +663,7 @@ public class Champ implements Cborable {
                 }
             }
             return CompletableFuture.completedFuture(new Pair<>(this, ourHash));
-        } else if (nodeMap.get(bitpos)) { // node (not value)
+        } else if (isSet(nodeMap, bitpos)) { // node (not value)
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.get().remove(owner, writer, key, hash, depth + 1, expected,
                             bitWidth, maxCollisions, tid, storage, writeHasher, child.left)
@@ -521,11 +717,7 @@ public class Champ implements Cborable {
         System.arraycopy(src, newIndex, dst, newIndex + 1, oldIndex - newIndex);
         System.arraycopy(src, oldIndex + 1, dst, oldIndex + 1, src.length - oldIndex - 1);
 
-        BitSet newNodeMap = BitSet.valueOf(nodeMap.toByteArray());
-        newNodeMap.set(bitpos, false);
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos, true);
-        return new Champ(newDataMap, newNodeMap, dst);
+        return new Champ(set(dataMap, bitpos), clear(nodeMap, bitpos), dst);
     }
 
     private Champ removeMapping(final int bitpos, final int payloadIndex) {
@@ -545,10 +737,7 @@ public class Champ implements Cborable {
             dst[index] = new HashPrefixPayload(remaining);
         }
 
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        if (lastInPrefix)
-            newDataMap.clear(bitpos);
-        return new Champ(newDataMap, nodeMap, dst);
+        return new Champ(lastInPrefix ? clear(dataMap, bitpos) : dataMap, nodeMap, dst);
     }
 
     public <T> CompletableFuture<T> applyToAllMappings(T identity,
@@ -564,8 +753,8 @@ public class Champ implements Cborable {
                         CompletableFuture.completedFuture(res)
                 ).thenCompose(newRes ->
                         payload.isShard() && payload.link.isPresent() ?
-                                storage.get(payload.link.get())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link))))
+                                load(payload.link.get(), storage)
+                                        .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)))
                                         .thenCompose(child -> child.applyToAllMappings(newRes, consumer, storage)) :
                                 CompletableFuture.completedFuture(newRes)
                 ), (a, b) -> a);
@@ -588,13 +777,19 @@ public class Champ implements Cborable {
         if (! c.isPresent())
             return Optional.empty();
         Champ champ = c.get();
-        if (champ.dataMap.get(bitIndex))
+        if (isSet(champ.dataMap, bitIndex))
             return Optional.of(champ.contents[dataIndex]);
-        if (champ.nodeMap.get(bitIndex))
+        if (isSet(champ.nodeMap, bitIndex))
             return Optional.of(champ.contents[champ.contents.length - 1 - nodeIndex]);
         return Optional.empty();
     }
 
+    /** Call the consumer with every mapping which differs between two champs. The children of differing subtrees
+     *  are retrieved in parallel, with at most MAX_PARALLEL_DIFF_FETCHES outstanding, and each difference is passed to
+     *  the consumer as soon as it is found. Calls to the consumer are serialized.
+     *
+     * @return true when all the differences have been consumed
+     */
     public static CompletableFuture<Boolean> applyToDiff(
             MaybeMultihash original,
             MaybeMultihash updated,
@@ -605,99 +800,128 @@ public class Champ implements Cborable {
             Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
             int bitWidth,
             ContentAddressedStorage storage) {
+        AdaptiveWindow fetches = new AdaptiveWindow(MAX_PARALLEL_DIFF_FETCHES, MAX_PARALLEL_DIFF_FETCHES, MAX_PARALLEL_DIFF_FETCHES);
+        Object consumerLock = new Object();
+        Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> serialized = diff -> {
+            synchronized (consumerLock) {
+                consumer.accept(diff);
+            }
+        };
+        return applyToDiff(original, updated, depth, hasher, higherLeftMappings, higherRightMappings, serialized,
+                bitWidth, storage, fetches);
+    }
+
+    private static CompletableFuture<Optional<Champ>> load(MaybeMultihash hash,
+                                                          ContentAddressedStorage storage,
+                                                          AdaptiveWindow fetches) {
+        if (! hash.isPresent())
+            return CompletableFuture.completedFuture(Optional.empty());
+        return fetches.submit(() -> load(hash.get(), storage));
+    }
+
+    private static CompletableFuture<Boolean> applyToDiff(
+            MaybeMultihash original,
+            MaybeMultihash updated,
+            int depth,
+            Function<ByteArrayWrapper, byte[]> hasher,
+            List<KeyElement> higherLeftMappings,
+            List<KeyElement> higherRightMappings,
+            Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer,
+            int bitWidth,
+            ContentAddressedStorage storage,
+            AdaptiveWindow fetches) {
 
         if (updated.equals(original))
             return CompletableFuture.completedFuture(true);
-        return original.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
-                .thenCompose(left -> updated.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(Champ::fromCbor))
-                        .thenCompose(right -> {
-                            int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
-                            int rightMax = right.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
-                            int maxBit = Math.max(leftMax, rightMax);
-                            int leftDataIndex = 0, rightDataIndex = 0, leftNodeCount = 0, rightNodeCount = 0;
-                            Map<Integer, List<KeyElement>> leftHigherMappingsByBit = higherLeftMappings.stream()
-                                    .collect(Collectors.groupingBy(m -> mask(hasher.apply(m.key), depth, bitWidth)));
-                            Map<Integer, List<KeyElement>> rightHigherMappingsByBit = higherRightMappings.stream()
-                                    .collect(Collectors.groupingBy(m -> mask(hasher.apply(m.key), depth, bitWidth)));
-
-                            List<CompletableFuture<Boolean>> deeperLayers = new ArrayList<>();
-
-                            for (int i = 0; i < maxBit; i++) {
-                                // either the payload is present OR higher mappings are non empty OR the champ is absent
-                                Optional<HashPrefixPayload> leftPayload = getElement(i, leftDataIndex, leftNodeCount, left);
-                                Optional<HashPrefixPayload> rightPayload = getElement(i, rightDataIndex, rightNodeCount, right);
-
-                                List<KeyElement> leftHigherMappings = leftHigherMappingsByBit.getOrDefault(i, Collections.emptyList());
-                                List<KeyElement> leftMappings = leftPayload
-                                        .filter(p -> !p.isShard())
-                                        .map(p -> Arrays.asList(p.mappings))
-                                        .orElse(leftHigherMappings);
-                                List<KeyElement> rightHigherMappings = rightHigherMappingsByBit.getOrDefault(i, Collections.emptyList());
-                                List<KeyElement> rightMappings = rightPayload
-                                        .filter(p -> !p.isShard())
-                                        .map(p -> Arrays.asList(p.mappings))
-                                        .orElse(rightHigherMappings);
-
-                                Optional<MaybeMultihash> leftShard = leftPayload
-                                        .filter(p -> p.isShard())
-                                        .map(p -> p.link);
-
-                                Optional<MaybeMultihash> rightShard = rightPayload
-                                        .filter(p -> p.isShard())
-                                        .map(p -> p.link);
-
-                                if (leftShard.isPresent() || rightShard.isPresent()) {
-                                    deeperLayers.add(applyToDiff(
-                                            leftShard.orElse(MaybeMultihash.empty()),
-                                            rightShard.orElse(MaybeMultihash.empty()), depth + 1, hasher,
-                                            leftMappings, rightMappings, consumer, bitWidth, storage));
-                                } else {
-                                    Map<ByteArrayWrapper, MaybeMultihash> leftMap = leftMappings.stream()
-                                            .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
-                                    Map<ByteArrayWrapper, MaybeMultihash> rightMap = rightMappings.stream()
-                                            .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
-
-                                    HashSet<ByteArrayWrapper> both = new HashSet<>(leftMap.keySet());
-                                    both.retainAll(rightMap.keySet());
-
-                                    for (Map.Entry<ByteArrayWrapper, MaybeMultihash> entry : leftMap.entrySet()) {
-                                        if (! both.contains(entry.getKey()))
-                                            consumer.accept(new Triple<>(entry.getKey(), entry.getValue(), MaybeMultihash.empty()));
-                                        else if (! entry.getValue().equals(rightMap.get(entry.getKey())))
-                                            consumer.accept(new Triple<>(entry.getKey(), entry.getValue(), rightMap.get(entry.getKey())));
-                                    }
-                                    for (Map.Entry<ByteArrayWrapper, MaybeMultihash> entry : rightMap.entrySet()) {
-                                        if (! both.contains(entry.getKey()))
-                                            consumer.accept(new Triple<>(entry.getKey(), MaybeMultihash.empty(), entry.getValue()));
-                                    }
-                                }
-
-                                if (leftPayload.isPresent()) {
-                                    if (leftPayload.get().isShard())
-                                        leftNodeCount++;
-                                    else
-                                        leftDataIndex++;
-                                }
-                                if (rightPayload.isPresent()) {
-                                    if (rightPayload.get().isShard())
-                                        rightNodeCount++;
-                                    else
-                                        rightDataIndex++;
-                                }
+        return load(original, storage, fetches)
+                .thenCombine(load(updated, storage, fetches), Pair::new)
+                .thenCompose(champs -> {
+                    Optional<Champ> left = champs.left;
+                    Optional<Champ> right = champs.right;
+                    int leftMax = left.map(c -> Math.max(length(c.dataMap), length(c.nodeMap))).orElse(0);
+                    int rightMax = right.map(c -> Math.max(length(c.dataMap), length(c.nodeMap))).orElse(0);
+                    int maxBit = Math.max(leftMax, rightMax);
+                    int leftDataIndex = 0, rightDataIndex = 0, leftNodeCount = 0, rightNodeCount = 0;
+                    Map<Integer, List<KeyElement>> leftHigherMappingsByBit = higherLeftMappings.stream()
+                            .collect(Collectors.groupingBy(m -> mask(hasher.apply(m.key), depth, bitWidth)));
+                    Map<Integer, List<KeyElement>> rightHigherMappingsByBit = higherRightMappings.stream()
+                            .collect(Collectors.groupingBy(m -> mask(hasher.apply(m.key), depth, bitWidth)));
+
+                    List<CompletableFuture<Boolean>> deeperLayers = new ArrayList<>();
+
+                    for (int i = 0; i < maxBit; i++) {
+                        // either the payload is present OR higher mappings are non empty OR the champ is absent
+                        Optional<HashPrefixPayload> leftPayload = getElement(i, leftDataIndex, leftNodeCount, left);
+                        Optional<HashPrefixPayload> rightPayload = getElement(i, rightDataIndex, rightNodeCount, right);
+
+                        List<KeyElement> leftHigherMappings = leftHigherMappingsByBit.getOrDefault(i, Collections.emptyList());
+                        List<KeyElement> leftMappings = leftPayload
+                                .filter(p -> !p.isShard())
+                                .map(p -> Arrays.asList(p.mappings))
+                                .orElse(leftHigherMappings);
+                        List<KeyElement> rightHigherMappings = rightHigherMappingsByBit.getOrDefault(i, Collections.emptyList());
+                        List<KeyElement> rightMappings = rightPayload
+                                .filter(p -> !p.isShard())
+                                .map(p -> Arrays.asList(p.mappings))
+                                .orElse(rightHigherMappings);
+
+                        Optional<MaybeMultihash> leftShard = leftPayload
+                                .filter(p -> p.isShard())
+                                .map(p -> p.link);
+
+                        Optional<MaybeMultihash> rightShard = rightPayload
+                                .filter(p -> p.isShard())
+                                .map(p -> p.link);
+
+                        if (leftShard.isPresent() || rightShard.isPresent()) {
+                            deeperLayers.add(applyToDiff(
+                                    leftShard.orElse(MaybeMultihash.empty()),
+                                    rightShard.orElse(MaybeMultihash.empty()), depth + 1, hasher,
+                                    leftMappings, rightMappings, consumer, bitWidth, storage, fetches));
+                        } else {
+                            Map<ByteArrayWrapper, MaybeMultihash> leftMap = leftMappings.stream()
+                                    .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
+                            Map<ByteArrayWrapper, MaybeMultihash> rightMap = rightMappings.stream()
+                                    .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
+
+                            HashSet<ByteArrayWrapper> both = new HashSet<>(leftMap.keySet());
+                            both.retainAll(rightMap.keySet());
+
+                            for (Map.Entry<ByteArrayWrapper, MaybeMultihash> entry : leftMap.entrySet()) {
+                                if (! both.contains(entry.getKey()))
+                                    consumer.accept(new Triple<>(entry.getKey(), entry.getValue(), MaybeMultihash.empty()));
+                                else if (! entry.getValue().equals(rightMap.get(entry.getKey())))
+                                    consumer.accept(new Triple<>(entry.getKey(), entry.getValue(), rightMap.get(entry.getKey())));
                             }
+                            for (Map.Entry<ByteArrayWrapper, MaybeMultihash> entry : rightMap.entrySet()) {
+                                if (! both.contains(entry.getKey()))
+                                    consumer.accept(new Triple<>(entry.getKey(), MaybeMultihash.empty(), entry.getValue()));
+                            }
+                        }
 
-                            return Futures.combineAll(deeperLayers).thenApply(x -> true);
-                        })
-        );
+                        if (leftPayload.isPresent()) {
+                            if (leftPayload.get().isShard())
+                                leftNodeCount++;
+                            else
+                                leftDataIndex++;
+                        }
+                        if (rightPayload.isPresent()) {
+                            if (rightPayload.get().isShard())
+                                rightNodeCount++;
+                            else
+                                rightDataIndex++;
+                        }
+                    }
+
+                    return Futures.combineAll(deeperLayers).thenApply(x -> true);
+                });
     }
 
     @Override
     public CborObject toCbor() {
         return new CborObject.CborList(Arrays.asList(
-                new CborObject.CborByteArray(dataMap.toByteArray()),
-                new CborObject.CborByteArray(nodeMap.toByteArray()),
+                new CborObject.CborByteArray(bitmapToBytes(dataMap)),
+                new CborObject.CborByteArray(bitmapToBytes(nodeMap)),
                 new CborObject.CborList(Arrays.stream(contents)
                         .flatMap(e -> e.link != null ?
                                 Stream.of(new CborObject.CborMerkleLink(e.link.get())) :
@@ -713,6 +937,21 @@ public class Champ implements Cborable {
         ));
     }
 
+    /**
+     *
+     * @param hash The hash of the champ node
+     * @param storage The storage to retrieve the node from, a CachingStorage also caches the decoded node, including
+     *                behind a BufferedStorage
+     * @return The decoded champ node, if present
+     */
+    public static CompletableFuture<Optional<Champ>> load(Multihash hash, ContentAddressedStorage storage) {
+        if (storage instanceof CachingStorage)
+            return ((CachingStorage) storage).getChamp(hash);
+        if (storage instanceof BufferedStorage)
+            return ((BufferedStorage) storage).getChamp(hash);
+        return storage.get(hash).thenApply(rawOpt -> rawOpt.map(Champ::fromCbor));
+    }
+
     public static Champ fromCbor(Cborable cbor) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Invalid cbor for CHAMP! " + cbor);
@@ -720,8 +959,8 @@ public class Champ implements Cborable {
 
         if (! (list.get(0) instanceof CborObject.CborByteArray))
             throw new IllegalStateException("Invalid cbor for a champ, is this a btree?");
-        BitSet dataMap = BitSet.valueOf(((CborObject.CborByteArray)list.get(0)).value);
-        BitSet nodeMap = BitSet.valueOf(((CborObject.CborByteArray)list.get(1)).value);
+        long dataMap = bitmapFromBytes(((CborObject.CborByteArray)list.get(0)).value);
+        long nodeMap = bitmapFromBytes(((CborObject.CborByteArray)list.get(1)).value);
         List<? extends Cborable> contentsCbor = ((CborObject.CborList) list.get(2)).value;
 
         List<HashPrefixPayload> contents = new ArrayList<>();
@@ -9,11 +9,14 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper implements ImmutableTree
 {
+    // The bit width of trees created before the bit width was configurable
     public static final int BIT_WIDTH = 3;
     public static final int MAX_HASH_COLLISIONS_PER_LEVEL = 4;
 
@@ -40,10 +43,18 @@ public class ChampWrapper implements ImmutableTree
                                                          Function<ByteArrayWrapper, byte[]> hasher,
                                                          ContentAddressedStorage dht,
                                                          Hasher writeHasher) {
-        return dht.get(rootHash).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return create(rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+    }
+
+    public static CompletableFuture<ChampWrapper> create(Multihash rootHash,
+                                                         Function<ByteArrayWrapper, byte[]> hasher,
+                                                         ContentAddressedStorage dht,
+                                                         Hasher writeHasher,
+                                                         int bitWidth) {
+        return Champ.load(rootHash, dht).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Champ root not present: " + rootHash);
-            return new ChampWrapper(Champ.fromCbor(rawOpt.get()), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+            return new ChampWrapper(rootOpt.get(), rootHash, hasher, dht, writeHasher, bitWidth);
         });
     }
 
@@ -53,11 +64,41 @@ public class ChampWrapper implements ImmutableTree
                                                          TransactionId tid,
                                                          ContentAddressedStorage dht,
                                                          Hasher writeHasher) {
+        return create(owner, writer, hasher, tid, dht, writeHasher, BIT_WIDTH);
+    }
+
+    public static CompletableFuture<ChampWrapper> create(PublicKeyHash owner,
+                                                         SigningPrivateKeyAndPublicHash writer,
+                                                         Function<ByteArrayWrapper, byte[]> hasher,
+                                                         TransactionId tid,
+                                                         ContentAddressedStorage dht,
+                                                         Hasher writeHasher,
+                                                         int bitWidth) {
+        if (bitWidth < 1 || bitWidth > Champ.MAX_BIT_WIDTH)
+            throw new IllegalArgumentException("Invalid champ bit width: " + bitWidth);
         Champ newRoot = Champ.empty();
         byte[] raw = newRoot.serialize();
-        return writeHasher.sha256(raw)
-                .thenCompose(hash -> dht.put(owner, writer.publicKeyHash, writer.secret.signatureOnly(hash), raw, tid))
-                .thenApply(put -> new ChampWrapper(newRoot, put, hasher, dht, writeHasher, BIT_WIDTH));
+        return dht.put(owner, writer, raw, writeHasher, tid)
+                .thenApply(put -> new ChampWrapper(newRoot, put, hasher, dht, writeHasher, bitWidth));
+    }
+
+    /** Build a new tree containing the given mappings, writing each node once
+     *
+     * @param mappings The key and value of each mapping
+     */
+    public static CompletableFuture<ChampWrapper> build(PublicKeyHash owner,
+                                                        SigningPrivateKeyAndPublicHash writer,
+                                                        Function<ByteArrayWrapper, byte[]> hasher,
+                                                        Stream<Pair<byte[], Multihash>> mappings,
+                                                        TransactionId tid,
+                                                        ContentAddressedStorage dht,
+                                                        Hasher writeHasher,
+                                                        int bitWidth) {
+        if (bitWidth < 1 || bitWidth > Champ.MAX_BIT_WIDTH)
+            throw new IllegalArgumentException("Invalid champ bit width: " + bitWidth);
+        return Champ.build(owner, writer, mappings.map(p -> new Pair<>(new ByteArrayWrapper(p.left), p.right)),
+                bitWidth, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, dht, writeHasher)
+                .thenApply(root -> new ChampWrapper(root.left, root.right, hasher, dht, writeHasher, bitWidth));
     }
 
     /**
@@ -69,7 +110,26 @@ public class ChampWrapper implements ImmutableTree
     @Override
     public CompletableFuture<MaybeMultihash> get(byte[] rawKey) {
         ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
-        return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage);
+        return root.left.get(key, hasher.apply(key), 0, bitWidth, storage);
+    }
+
+    /**
+     *
+     * @param rawKeys
+     * @return the value stored under each of rawKeys, in the same order, loading each tree node at most once
+     */
+    public CompletableFuture<List<MaybeMultihash>> getAll(List<byte[]> rawKeys) {
+        List<ByteArrayWrapper> keys = rawKeys.stream()
+                .map(ByteArrayWrapper::new)
+                .collect(Collectors.toList());
+        List<Pair<ByteArrayWrapper, byte[]>> withHashes = keys.stream()
+                .distinct()
+                .map(k -> new Pair<>(k, hasher.apply(k)))
+                .collect(Collectors.toList());
+        return root.left.getAll(withHashes, 0, bitWidth, storage)
+                .thenApply(values -> keys.stream()
+                        .map(values::get)
+                        .collect(Collectors.toList()));
     }
 
     /**
@@ -88,7 +148,7 @@ public class ChampWrapper implements ImmutableTree
                                             TransactionId tid) {
         ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
         return root.left.put(owner, writer, key, hasher.apply(key), 0, existing, MaybeMultihash.of(value),
-                BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, storage, writeHasher, root.right)
+                bitWidth, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, storage, writeHasher, root.right)
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
@@ -106,7 +166,46 @@ public class ChampWrapper implements ImmutableTree
                                                TransactionId tid) {
         ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
         return root.left.put(owner, writer, key, hasher.apply(key), 0, existing, MaybeMultihash.empty(),
-                BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, storage, writeHasher, root.right)
+                bitWidth, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid, storage, writeHasher, root.right)
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
+    /**
+     *
+     * @param mutations The key, expected existing value and new value for each put
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> putAll(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash writer,
+                                               List<Triple<byte[], MaybeMultihash, Multihash>> mutations,
+                                               TransactionId tid) {
+        return applyAll(owner, writer, mutations.stream()
+                .map(m -> new Triple<>(new ByteArrayWrapper(m.left), m.middle, MaybeMultihash.of(m.right)))
+                .collect(Collectors.toList()), tid);
+    }
+
+    /**
+     *
+     * @param keys The key and expected existing value for each removal
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> removeAll(PublicKeyHash owner,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  List<Pair<byte[], MaybeMultihash>> keys,
+                                                  TransactionId tid) {
+        return applyAll(owner, writer, keys.stream()
+                .map(k -> new Triple<>(new ByteArrayWrapper(k.left), k.right, MaybeMultihash.empty()))
+                .collect(Collectors.toList()), tid);
+    }
+
+    private CompletableFuture<Multihash> applyAll(PublicKeyHash owner,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> mutations,
+                                                  TransactionId tid) {
+        if (mutations.isEmpty())
+            return CompletableFuture.completedFuture(root.right);
+        return root.left.putAll(owner, writer, mutations, bitWidth, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid,
+                storage, writeHasher, root.right)
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
@@ -5,15 +5,19 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 /*
- * A CoreNode that caches previous metadata blob reads for a certain time
+ * A CoreNode that caches previous metadata blob reads for a certain time, or for as long as they are being watched
+ * for changes with awaitChanges
  */
 public class CachingPointers implements MutablePointers {
 
     private final MutablePointers target;
     private final int cacheTTL;
     private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    private final Map<PublicKeyHash, PublicKeyHash> owners = new HashMap<>();
+    private final Set<PublicKeyHash> watching = new HashSet<>();
 
     public CachingPointers(MutablePointers target, int cacheTTL) {
         this.target = target;
@@ -24,17 +28,52 @@ public class CachingPointers implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         synchronized (cache) {
             Pair<Optional<byte[]>, Long> cached = cache.get(writer);
-            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
+            if (isValid(writer, cached, System.currentTimeMillis()))
                 return CompletableFuture.completedFuture(cached.left);
         }
         return target.getPointer(owner, writer).thenApply(m -> {
             synchronized (cache) {
                 cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+                owners.put(writer, owner);
             }
             return m;
         });
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        Map<PublicKeyHash, Optional<byte[]>> results = new HashMap<>();
+        List<Pair<PublicKeyHash, PublicKeyHash>> toFetch = new ArrayList<>();
+        synchronized (cache) {
+            long now = System.currentTimeMillis();
+            for (Pair<PublicKeyHash, PublicKeyHash> ownerAndWriter : ownerWriterPairs) {
+                Pair<Optional<byte[]>, Long> cached = cache.get(ownerAndWriter.right);
+                if (isValid(ownerAndWriter.right, cached, now))
+                    results.put(ownerAndWriter.right, cached.left);
+                else
+                    toFetch.add(ownerAndWriter);
+            }
+        }
+        if (toFetch.isEmpty())
+            return Futures.of(ownerWriterPairs.stream()
+                    .map(p -> results.get(p.right))
+                    .collect(Collectors.toList()));
+        return target.getPointers(toFetch).thenApply(fetched -> {
+            synchronized (cache) {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < toFetch.size(); i++) {
+                    PublicKeyHash writer = toFetch.get(i).right;
+                    cache.put(writer, new Pair<>(fetched.get(i), now));
+                    owners.put(writer, toFetch.get(i).left);
+                    results.put(writer, fetched.get(i));
+                }
+            }
+            return ownerWriterPairs.stream()
+                    .map(p -> results.get(p.right))
+                    .collect(Collectors.toList());
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         synchronized (cache) {
@@ -44,9 +83,64 @@ public class CachingPointers implements MutablePointers {
             if (res) {
                 synchronized (cache) {
                     cache.put(writer, new Pair<>(Optional.of(writerSignedBtreeRootHash), System.currentTimeMillis()));
+                    owners.put(writer, ownerPublicKey);
                 }
             }
             return res;
         });
     }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        return target.watchPointers(watched).thenApply(changed -> {
+            synchronized (cache) {
+                long now = System.currentTimeMillis();
+                for (WatchedPointer w : changed)
+                    cache.put(w.writer, new Pair<>(w.value, now));
+            }
+            return changed;
+        });
+    }
+
+    /** Wait for a change to any of the pointers in this cache, or a server chosen timeout, and update the cache.
+     *  While this is outstanding the cached values of the watched pointers don't expire, so calling it in a loop
+     *  removes the need to poll pointers. It completes immediately if there is nothing to watch.
+     *
+     * @return The pointers which changed
+     */
+    public CompletableFuture<List<WatchedPointer>> awaitChanges() {
+        List<WatchedPointer> watched;
+        synchronized (cache) {
+            watched = cache.entrySet().stream()
+                    .filter(e -> owners.containsKey(e.getKey()) && ! watching.contains(e.getKey()))
+                    .map(e -> new WatchedPointer(owners.get(e.getKey()), e.getKey(), e.getValue().left))
+                    .collect(Collectors.toList());
+            watched.forEach(w -> watching.add(w.writer));
+        }
+        if (watched.isEmpty())
+            return Futures.of(Collections.emptyList());
+        return target.watchPointers(watched).handle((changed, t) -> {
+            synchronized (cache) {
+                long now = System.currentTimeMillis();
+                for (WatchedPointer w : watched) {
+                    watching.remove(w.writer);
+                    Pair<Optional<byte[]>, Long> cached = cache.get(w.writer);
+                    // the server has confirmed that unchanged values were current until now
+                    if (t == null && cached != null && w.hasValue(cached.left))
+                        cache.put(w.writer, new Pair<>(cached.left, now));
+                }
+                if (t != null)
+                    throw new RuntimeException(t.getMessage(), t);
+                for (WatchedPointer w : changed)
+                    cache.put(w.writer, new Pair<>(w.value, now));
+            }
+            return changed;
+        });
+    }
+
+    private boolean isValid(PublicKeyHash writer, Pair<Optional<byte[]>, Long> cached, long now) {
+        if (cached == null)
+            return false;
+        return watching.contains(writer) || now - cached.right < cacheTTL;
+    }
 }
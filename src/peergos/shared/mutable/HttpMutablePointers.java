@@ -2,6 +2,7 @@
 package peergos.shared.mutable;
 import java.util.logging.*;
 
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
@@ -11,6 +12,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class HttpMutablePointers implements MutablePointersProxy {
 	private static final Logger LOG = Logger.getGlobal();
@@ -93,6 +95,53 @@ public class HttpMutablePointers implements MutablePointersProxy {
         return getPointer(getProxyUrlPrefix(targetId), p2p, owner, writer);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return getPointers(directUrlPrefix, direct, ownerWriterPairs);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(Multihash targetId, List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return getPointers(getProxyUrlPrefix(targetId), p2p, ownerWriterPairs);
+    }
+
+    private CompletableFuture<List<Optional<byte[]>>> getPointers(String urlPrefix,
+                                                                  HttpPoster poster,
+                                                                  List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        long t1 = System.currentTimeMillis();
+        try {
+            byte[] request = new CborObject.CborList(ownerWriterPairs.stream()
+                    .map(p -> new CborObject.CborList(Arrays.asList(p.left, p.right)))
+                    .collect(Collectors.toList())).serialize();
+            return poster.postUnzip(urlPrefix + Constants.MUTABLE_POINTERS_URL + "getPointers", request)
+                    .thenApply(res -> ((CborObject.CborList) CborObject.fromByteArray(res))
+                            .map(c -> ((CborObject.CborByteArray) c).value)
+                            .stream()
+                            .map(meta -> meta.length == 0 ? Optional.<byte[]>empty() : Optional.of(meta))
+                            .collect(Collectors.toList()));
+        } finally {
+            long t2 = System.currentTimeMillis();
+            if (LOGGING)
+                LOG.info("HttpMutablePointers.getPointers(" + ownerWriterPairs.size() + ") took " + (t2 -t1) + "mS");
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        return watchPointers(directUrlPrefix, direct, watched);
+    }
+
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(Multihash targetId, List<WatchedPointer> watched) {
+        return watchPointers(getProxyUrlPrefix(targetId), p2p, watched);
+    }
+
+    private CompletableFuture<List<WatchedPointer>> watchPointers(String urlPrefix, HttpPoster poster, List<WatchedPointer> watched) {
+        byte[] request = new CborObject.CborList(watched).serialize();
+        return poster.postUnzip(urlPrefix + Constants.MUTABLE_POINTERS_URL + "watchPointers", request)
+                .thenApply(res -> ((CborObject.CborList) CborObject.fromByteArray(res)).map(WatchedPointer::fromCbor));
+    }
+
     public CompletableFuture<Optional<byte[]>> getPointer(String urlPrefix, HttpPoster poster, PublicKeyHash owner, PublicKeyHash writer) {
         long t1 = System.currentTimeMillis();
         try {
@@ -6,9 +6,11 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface MutablePointers {
 
@@ -28,6 +30,33 @@ public interface MutablePointers {
      */
     CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer);
 
+    /** Get the current hashes of many public keys in a single call
+     *
+     * @param ownerWriterPairs The (owner, writer) pairs to look up
+     * @return The signed cas of each pointer, in the same order as the request
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        return Futures.combineAllInOrder(ownerWriterPairs.stream()
+                .map(p -> getPointer(p.left, p.right))
+                .collect(Collectors.toList()));
+    }
+
+    /** Wait until any of the watched pointers differs from the value supplied with it, or until a timeout chosen by
+     *  the implementation. Implementations that can't wait for changes return immediately.
+     *
+     * @param watched The pointers to watch, with the values the caller currently has for them
+     * @return The watched pointers that have changed, with their current values
+     */
+    default CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        return getPointers(watched.stream()
+                .map(w -> new Pair<>(w.owner, w.writer))
+                .collect(Collectors.toList()))
+                .thenApply(current -> IntStream.range(0, watched.size())
+                        .filter(i -> ! watched.get(i).hasValue(current.get(i)))
+                        .mapToObj(i -> watched.get(i).withValue(current.get(i)))
+                        .collect(Collectors.toList()));
+    }
+
     /**
      * Get the CAS key-hash for the data pointed to by a writer-key.
      * @param writerKeyHash
@@ -2,6 +2,7 @@ package peergos.shared.mutable;
 
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -29,4 +30,20 @@ public interface MutablePointersProxy extends MutablePointers {
      */
     CompletableFuture<Optional<byte[]>> getPointer(Multihash targetServerId, PublicKeyHash owner, PublicKeyHash writer);
 
+    /** Get the current hashes of many public keys in a single call
+     *
+     * @param targetServerId
+     * @param ownerWriterPairs
+     * @return The signed cas of each pointer, in the same order as the request
+     */
+    CompletableFuture<List<Optional<byte[]>>> getPointers(Multihash targetServerId, List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs);
+
+    /** Wait until any of the watched pointers differs from the value supplied with it, or a timeout
+     *
+     * @param targetServerId
+     * @param watched
+     * @return The watched pointers that have changed, with their current values
+     */
+    CompletableFuture<List<WatchedPointer>> watchPointers(Multihash targetServerId, List<WatchedPointer> watched);
+
 }
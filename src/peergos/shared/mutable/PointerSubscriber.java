@@ -0,0 +1,62 @@
+package peergos.shared.mutable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Keeps the cached pointers current by waiting for the server to report changes to them, and tells listeners which
+ *  pointers changed. Each call to awaitChanges waits for one round of changes, so the caller drives the loop, either
+ *  by chaining calls in javascript or from a dedicated thread in java.
+ */
+public class PointerSubscriber {
+    private static final Logger LOG = Logger.getGlobal();
+    // A watch which returns without changes sooner than this didn't wait, because the server can't push changes
+    public static final long MIN_WATCH_MILLIS = 1_000;
+
+    private final CachingPointers pointers;
+    private final long minWatchMillis;
+    private final List<Consumer<List<WatchedPointer>>> listeners = new ArrayList<>();
+
+    public PointerSubscriber(CachingPointers pointers, long minWatchMillis) {
+        this.pointers = pointers;
+        this.minWatchMillis = minWatchMillis;
+    }
+
+    public PointerSubscriber(CachingPointers pointers) {
+        this(pointers, MIN_WATCH_MILLIS);
+    }
+
+    public synchronized void addListener(Consumer<List<WatchedPointer>> listener) {
+        listeners.add(listener);
+    }
+
+    /** Wait for changes to the cached pointers, or a server chosen timeout, and pass any changes to the listeners.
+     *
+     * @return true if this can be called again straight away, or false if the caller should back off first, because
+     * there was nothing to watch, the server returned without waiting, or the watch failed
+     */
+    public CompletableFuture<Boolean> awaitChanges() {
+        long start = System.currentTimeMillis();
+        return pointers.awaitChanges()
+                .thenApply(changed -> {
+                    if (changed.isEmpty())
+                        return System.currentTimeMillis() - start >= minWatchMillis;
+                    List<Consumer<List<WatchedPointer>>> toNotify;
+                    synchronized (this) {
+                        toNotify = new ArrayList<>(listeners);
+                    }
+                    for (Consumer<List<WatchedPointer>> listener : toNotify) {
+                        try {
+                            listener.accept(changed);
+                        } catch (Throwable t) {
+                            LOG.log(Level.WARNING, t.getMessage(), t);
+                        }
+                    }
+                    return true;
+                }).exceptionally(t -> {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                    return false;
+                });
+    }
+}
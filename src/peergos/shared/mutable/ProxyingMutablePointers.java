@@ -3,10 +3,12 @@ package peergos.shared.mutable;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ProxyingMutablePointers implements MutablePointers {
 
@@ -36,6 +38,93 @@ public class ProxyingMutablePointers implements MutablePointers {
                 target -> p2p.getPointer(target, owner, writer));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getPointers(List<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        // Each owner's pointers are all stored on the same server
+        Map<PublicKeyHash, List<Pair<PublicKeyHash, PublicKeyHash>>> byOwner = ownerWriterPairs.stream()
+                .collect(Collectors.groupingBy(p -> p.left));
+        List<CompletableFuture<Map<Pair<PublicKeyHash, PublicKeyHash>, Optional<byte[]>>>> perOwner = byOwner.entrySet()
+                .stream()
+                .map(e -> redirectCall(e.getKey(),
+                        () -> local.getPointers(e.getValue()),
+                        target -> p2p.getPointers(target, e.getValue()))
+                        .thenApply(res -> {
+                            Map<Pair<PublicKeyHash, PublicKeyHash>, Optional<byte[]>> results = new HashMap<>();
+                            for (int i = 0; i < res.size(); i++)
+                                results.put(e.getValue().get(i), res.get(i));
+                            return results;
+                        }))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(perOwner)
+                .thenApply(all -> {
+                    Map<Pair<PublicKeyHash, PublicKeyHash>, Optional<byte[]>> results = new HashMap<>();
+                    all.forEach(results::putAll);
+                    return ownerWriterPairs.stream()
+                            .map(results::get)
+                            .collect(Collectors.toList());
+                });
+    }
+
+    /** Each owner's pointers are watched on the server storing them, with a single watch per server. This completes
+     *  as soon as any server reports changes, or once every server has timed out. The remote watches are only
+     *  concurrent if p2p returns from watchPointers without blocking, so a proxy using a synchronous poster needs to
+     *  run them on their own threads.
+     *
+     * @param watched
+     * @return
+     */
+    @Override
+    public CompletableFuture<List<WatchedPointer>> watchPointers(List<WatchedPointer> watched) {
+        if (watched.isEmpty())
+            return Futures.of(Collections.emptyList());
+        Map<PublicKeyHash, List<WatchedPointer>> byOwner = watched.stream()
+                .collect(Collectors.groupingBy(w -> w.owner));
+        List<PublicKeyHash> owners = new ArrayList<>(byOwner.keySet());
+        return Futures.combineAllInOrder(owners.stream()
+                .map(owner -> redirectCall(owner,
+                        () -> Futures.of(Optional.<Multihash>empty()),
+                        target -> Futures.of(Optional.of(target))))
+                .collect(Collectors.toList()))
+                .thenCompose(targets -> {
+                    List<WatchedPointer> onThisServer = new ArrayList<>();
+                    Map<Multihash, List<WatchedPointer>> byServer = new HashMap<>();
+                    for (int i = 0; i < owners.size(); i++) {
+                        List<WatchedPointer> ownerWatches = byOwner.get(owners.get(i));
+                        if (targets.get(i).isPresent())
+                            byServer.computeIfAbsent(targets.get(i).get(), x -> new ArrayList<>()).addAll(ownerWatches);
+                        else
+                            onThisServer.addAll(ownerWatches);
+                    }
+                    List<CompletableFuture<List<WatchedPointer>>> watches = byServer.entrySet().stream()
+                            .map(e -> p2p.watchPointers(e.getKey(), e.getValue()))
+                            .collect(Collectors.toList());
+                    if (! onThisServer.isEmpty())
+                        watches.add(local.watchPointers(onThisServer));
+                    return firstChanges(watches);
+                });
+    }
+
+    /**
+     *
+     * @return The first non empty result, or an empty result once all the watches have completed
+     */
+    private static CompletableFuture<List<WatchedPointer>> firstChanges(List<CompletableFuture<List<WatchedPointer>>> watches) {
+        CompletableFuture<List<WatchedPointer>> res = new CompletableFuture<>();
+        int[] remaining = {watches.size()};
+        for (CompletableFuture<List<WatchedPointer>> watch : watches)
+            watch.handle((changed, t) -> {
+                synchronized (remaining) {
+                    remaining[0]--;
+                    if (t != null)
+                        res.completeExceptionally(t);
+                    else if (! changed.isEmpty() || remaining[0] == 0)
+                        res.complete(changed);
+                }
+                return true;
+            });
+        return res;
+    }
+
     public <V> CompletableFuture<V> redirectCall(PublicKeyHash ownerKey, Supplier<CompletableFuture<V>> direct, Function<Multihash, CompletableFuture<V>> proxied) {
         return core.getUsername(ownerKey)
                 .thenCompose(owner -> core.getChain(owner)
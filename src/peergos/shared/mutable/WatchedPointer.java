@@ -0,0 +1,51 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+
+/** A mutable pointer together with the value of it that an observer has
+ *
+ */
+public class WatchedPointer implements Cborable {
+
+    public final PublicKeyHash owner;
+    public final PublicKeyHash writer;
+    public final Optional<byte[]> value;
+
+    public WatchedPointer(PublicKeyHash owner, PublicKeyHash writer, Optional<byte[]> value) {
+        this.owner = owner;
+        this.writer = writer;
+        this.value = value;
+    }
+
+    public WatchedPointer withValue(Optional<byte[]> newValue) {
+        return new WatchedPointer(owner, writer, newValue);
+    }
+
+    public boolean hasValue(Optional<byte[]> other) {
+        if (value.isPresent() != other.isPresent())
+            return false;
+        return ! value.isPresent() || Arrays.equals(value.get(), other.get());
+    }
+
+    @Override
+    public CborObject toCbor() {
+        return new CborObject.CborList(Arrays.asList(
+                owner,
+                writer,
+                new CborObject.CborByteArray(value.orElse(new byte[0]))
+        ));
+    }
+
+    public static WatchedPointer fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborList))
+            throw new IllegalStateException("Incorrect cbor for WatchedPointer: " + cbor);
+
+        List<? extends Cborable> value = ((CborObject.CborList) cbor).value;
+        byte[] raw = ((CborObject.CborByteArray) value.get(2)).value;
+        return new WatchedPointer(PublicKeyHash.fromCbor(value.get(0)), PublicKeyHash.fromCbor(value.get(1)),
+                raw.length == 0 ? Optional.empty() : Optional.of(raw));
+    }
+}
@@ -0,0 +1,207 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** A storage that holds cbor writes in memory instead of writing them to the target. Their hashes are
+ *  calculated locally, and reads of them are served from memory.
+ *
+ *  When a series of modifications to a merkle tree is complete, flush writes only the buffered blocks which are
+ *  reachable from the final root, so intermediate versions of modified nodes are never hashed remotely, signed or
+ *  written.
+ */
+public class BufferedStorage implements ContentAddressedStorage {
+    private static final int MAX_BLOCKS_PER_PUT = 16;
+
+    private final ContentAddressedStorage target;
+    private final Map<Multihash, byte[]> buffered = new HashMap<>();
+
+    public BufferedStorage(ContentAddressedStorage target) {
+        this.target = target;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> put(PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash writer,
+                                            byte[] block,
+                                            Hasher hasher,
+                                            TransactionId tid) {
+        return hasher.sha256(block).thenApply(hash -> {
+            Multihash cid = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+            synchronized (this) {
+                buffered.put(cid, block);
+            }
+            return cid;
+        });
+    }
+
+    public synchronized int bufferedCount() {
+        return buffered.size();
+    }
+
+    /** Write all the buffered blocks reachable from root to the target, and discard the rest
+     *
+     * @return the number of blocks written
+     */
+    public CompletableFuture<Integer> flush(PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash writer,
+                                            Multihash root,
+                                            TransactionId tid) {
+        List<Pair<Multihash, byte[]>> toWrite = new ArrayList<>();
+        synchronized (this) {
+            LinkedList<Multihash> queue = new LinkedList<>();
+            Set<Multihash> seen = new HashSet<>();
+            queue.add(root);
+            while (! queue.isEmpty()) {
+                Multihash next = queue.poll();
+                byte[] block = buffered.get(next);
+                if (block == null || ! seen.add(next))
+                    continue; // already in the target
+                toWrite.add(new Pair<>(next, block));
+                queue.addAll(CborObject.fromByteArray(block).links());
+            }
+            buffered.clear();
+        }
+        List<List<Pair<Multihash, byte[]>>> batches = IntStream.range(0, (toWrite.size() + MAX_BLOCKS_PER_PUT - 1) / MAX_BLOCKS_PER_PUT)
+                .mapToObj(i -> toWrite.subList(i * MAX_BLOCKS_PER_PUT, Math.min(toWrite.size(), (i + 1) * MAX_BLOCKS_PER_PUT)))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(batches.stream()
+                .map(batch -> target.put(owner, writer.publicKeyHash,
+                        batch.stream()
+                                .map(p -> writer.secret.signatureOnly(p.left.getHash()))
+                                .collect(Collectors.toList()),
+                        batch.stream()
+                                .map(p -> p.right)
+                                .collect(Collectors.toList()), tid)
+                        .thenApply(written -> {
+                            for (int i = 0; i < written.size(); i++)
+                                if (! written.get(i).equals(batch.get(i).left))
+                                    throw new IllegalStateException("Buffered block written with different hash! "
+                                            + batch.get(i).left + " != " + written.get(i));
+                            return written.size();
+                        }))
+                .collect(Collectors.toList()))
+                .thenApply(counts -> counts.stream().mapToInt(x -> x).sum());
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return target.startTransaction(owner);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return target.closeTransaction(owner, tid);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> gc() {
+        return target.gc();
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signatures,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return target.put(owner, writer, signatures, blocks, tid);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        byte[] block;
+        synchronized (this) {
+            block = buffered.get(key);
+        }
+        if (block != null)
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(block)));
+        return target.get(key);
+    }
+
+    /** Buffered nodes are decoded afresh, others are loaded from the target, which may cache the decoded node
+     *
+     * @param key
+     * @return The decoded champ node, if present
+     */
+    public CompletableFuture<Optional<Champ>> getChamp(Multihash key) {
+        byte[] block;
+        synchronized (this) {
+            block = buffered.get(key);
+        }
+        if (block != null)
+            return CompletableFuture.completedFuture(Optional.of(Champ.fromCbor(CborObject.fromByteArray(block))));
+        return Champ.load(key, target);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid) {
+        return target.putRaw(owner, writer, signatures, blocks, tid);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        byte[] block;
+        synchronized (this) {
+            block = buffered.get(key);
+        }
+        if (block != null)
+            return CompletableFuture.completedFuture(Optional.of(block));
+        return target.getRaw(key);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return target.recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return target.recursiveUnpin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        byte[] block;
+        synchronized (this) {
+            block = buffered.get(root);
+        }
+        if (block != null)
+            return CompletableFuture.completedFuture(CborObject.fromByteArray(block).links());
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        byte[] data;
+        synchronized (this) {
+            data = buffered.get(block);
+        }
+        if (data != null)
+            return CompletableFuture.completedFuture(Optional.of(data.length));
+        return target.getSize(block);
+    }
+}
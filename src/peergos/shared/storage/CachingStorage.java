@@ -2,6 +2,7 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
@@ -10,8 +11,12 @@ import java.util.*;
 import java.util.concurrent.*;
 
 public class CachingStorage implements ContentAddressedStorage {
+    private static final int CHAMP_CACHE_SIZE = 10_000;
+
     private final ContentAddressedStorage target;
     private final LRUCache<Multihash, byte[]> cache;
+    // decoded champ nodes, only ever filled from the target, so they live and die with this storage
+    private final LRUCache<Multihash, Champ> champCache;
     private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
     private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
     private final int maxValueSize;
@@ -19,6 +24,7 @@ public class CachingStorage implements ContentAddressedStorage {
     public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
         this.target = target;
         this.cache = new LRUCache<>(cacheSize);
+        this.champCache = new LRUCache<>(CHAMP_CACHE_SIZE);
         this.maxValueSize = maxValueSize;
         this.pending = new LRUCache<>(100);
         this.pendingRaw = new LRUCache<>(100);
@@ -91,6 +97,29 @@ public class CachingStorage implements ContentAddressedStorage {
         return result;
     }
 
+    /**
+     *
+     * @param key The hash of the champ node
+     * @return The decoded champ node, if present
+     */
+    public CompletableFuture<Optional<Champ>> getChamp(Multihash key) {
+        Champ cached;
+        synchronized (champCache) {
+            cached = champCache.get(key);
+        }
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        return get(key).thenApply(cborOpt -> {
+            Optional<Champ> res = cborOpt.map(Champ::fromCbor);
+            if (res.isPresent()) {
+                synchronized (champCache) {
+                    champCache.put(key, res.get());
+                }
+            }
+            return res;
+        });
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
                                                      PublicKeyHash writer,
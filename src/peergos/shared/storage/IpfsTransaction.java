@@ -1,6 +1,7 @@
 package peergos.shared.storage;
 
 import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
 
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -20,14 +21,31 @@ public class IpfsTransaction {
                                                 ContentAddressedStorage ipfs) {
         CompletableFuture<V> res = new CompletableFuture<>();
         ipfs.startTransaction(owner).thenCompose(tid -> processor.apply(tid)
-                .thenCompose(v -> ipfs.closeTransaction(owner, tid)
+                .thenCompose(v -> close(owner, tid, ipfs)
                         .thenApply(x -> res.complete(v)))
                 .exceptionally(t -> {
-                    ipfs.closeTransaction(owner, tid)
+                    close(owner, tid, ipfs)
                             .thenApply(x -> res.completeExceptionally(t))
                             .exceptionally(e -> res.completeExceptionally(e));
                     return false;
                 })).exceptionally(e -> res.completeExceptionally(e));
         return res;
     }
+
+    /** Close the transaction, or if it is being held open, close it in the background once it is released
+     */
+    private static CompletableFuture<Boolean> close(PublicKeyHash owner,
+                                                    TransactionId tid,
+                                                    ContentAddressedStorage ipfs) {
+        if (! tid.isHeld()) {
+            tid.closed();
+            return ipfs.closeTransaction(owner, tid);
+        }
+        tid.released()
+                .thenCompose(x -> {
+                    tid.closed();
+                    return ipfs.closeTransaction(owner, tid);
+                }).exceptionally(t -> Futures.logAndReturn(t, false));
+        return CompletableFuture.completedFuture(true);
+    }
 }
@@ -1,12 +1,56 @@
 package peergos.shared.storage;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 public final class TransactionId {
     public final String id;
+    // Completes once nothing needs this transaction to stay open after its own operations have finished
+    private CompletableFuture<Boolean> released = CompletableFuture.completedFuture(true);
+    private boolean held = false;
+    private final List<Runnable> closeListeners = new ArrayList<>();
 
     public TransactionId(String id) {
         this.id = id;
     }
 
+    /** Keep this transaction open, and thus the blocks written in it safe from GC, until later completes, even if
+     *  the operations which opened it finish first
+     *
+     * @param later
+     */
+    public synchronized void keepOpenUntil(CompletableFuture<?> later) {
+        held = true;
+        CompletableFuture<Boolean> done = later.handle((x, t) -> true);
+        released = released.thenCompose(x -> done);
+    }
+
+    public synchronized boolean isHeld() {
+        return held;
+    }
+
+    public synchronized CompletableFuture<Boolean> released() {
+        return released;
+    }
+
+    /** Run listener when this transaction is closed, after which nothing more can be written in it
+     *
+     * @param listener
+     */
+    public synchronized void onClose(Runnable listener) {
+        closeListeners.add(listener);
+    }
+
+    public void closed() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = new ArrayList<>(closeListeners);
+            closeListeners.clear();
+        }
+        for (Runnable listener : toRun)
+            listener.run();
+    }
+
     @Override
     public String toString() {
         return id;
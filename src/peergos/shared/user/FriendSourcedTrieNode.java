@@ -17,6 +17,8 @@ public class FriendSourcedTrieNode implements TrieNode {
     private TrieNode root;
     private long byteOffsetReadOnly;
     private long byteOffsetWrite;
+    // the friend's pointer when we last scanned for new capabilities, the scan can be skipped until this changes
+    private Optional<byte[]> scannedPointer = Optional.empty();
 
     public FriendSourcedTrieNode(Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
                                  String ownerName,
@@ -88,6 +90,25 @@ public class FriendSourcedTrieNode implements TrieNode {
     }
 
     private synchronized CompletableFuture<Boolean> ensureUptodate(Crypto crypto, NetworkAccess network) {
+        // the pointer is usually cached, and kept current by the pointer subscriber, so this check is cheap
+        return network.mutable.getPointer(sharedDir.pointer.owner, sharedDir.pointer.writer)
+                .thenCompose(current -> {
+                    synchronized (this) {
+                        if (current.isPresent() && scannedPointer.isPresent() &&
+                                Arrays.equals(current.get(), scannedPointer.get()))
+                            return CompletableFuture.completedFuture(true);
+                    }
+                    return scanForNewCapabilities(crypto, network)
+                            .thenApply(res -> {
+                                synchronized (this) {
+                                    scannedPointer = current;
+                                }
+                                return res;
+                            });
+                });
+    }
+
+    private synchronized CompletableFuture<Boolean> scanForNewCapabilities(Crypto crypto, NetworkAccess network) {
         // check there are no new capabilities in the friend's shared directory
         return NetworkAccess.getLatestEntryPoint(sharedDir, network)
                 .thenCompose(sharedDir -> {
@@ -5,8 +5,10 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public interface MutableTree {
@@ -40,6 +42,16 @@ public interface MutableTree {
      */
     CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey);
 
+    /** Get the values of many keys in a single traversal of the tree
+     *
+     * @param base The WriterData at the current mutable pointer for the writer
+     * @param owner
+     * @param writer
+     * @param mapKeys
+     * @return  the value stored under each of mapKeys, in the same order
+     */
+    CompletableFuture<List<MaybeMultihash>> getAll(WriterData base, PublicKeyHash owner, PublicKeyHash writer, List<byte[]> mapKeys);
+
     /**
      *
      * @param owner
@@ -56,6 +68,36 @@ public interface MutableTree {
                                          TransactionId tid);
 
 
+    /** Apply many puts to the tree, writing each modified node once
+     *
+     * @param base
+     * @param owner
+     * @param sharingKey
+     * @param mutations The map key, expected existing value and new value for each put
+     * @param tid
+     * @return the new root WriterData
+     */
+    CompletableFuture<WriterData> putAll(WriterData base,
+                                         PublicKeyHash owner,
+                                         SigningPrivateKeyAndPublicHash sharingKey,
+                                         List<Triple<byte[], MaybeMultihash, Multihash>> mutations,
+                                         TransactionId tid);
+
+    /** Apply many removals to the tree, writing each modified node once
+     *
+     * @param base
+     * @param owner
+     * @param sharingKey
+     * @param mapKeys The map key and expected existing value for each removal
+     * @param tid
+     * @return the new root WriterData
+     */
+    CompletableFuture<WriterData> removeAll(WriterData base,
+                                            PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash sharingKey,
+                                            List<Pair<byte[], MaybeMultihash>> mapKeys,
+                                            TransactionId tid);
+
     class CasException extends RuntimeException {
         public CasException(MaybeMultihash actualExisting, MaybeMultihash claimedExisting) {
             super("CAS exception updating cryptree node. existing: " + actualExisting + ", claimed: " + claimedExisting);
@@ -10,6 +10,7 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
@@ -21,15 +22,36 @@ public class MutableTreeImpl implements MutableTree {
     private static final boolean LOGGING = false;
     private final WriteSynchronizer synchronizer;
     private final Function<ByteArrayWrapper, byte[]> hasher = x -> x.data;
+    // The bit width of new trees. Existing trees with a different bit width are rebuilt on their next mutation
+    private final int treeBitWidth;
+
+    // Clients which predate the "treebits" field of WriterData read every tree with the original bit width, so wider
+    // trees must only be written, by passing a bit width, once no such clients are left
+    public static final int DEFAULT_TREE_BIT_WIDTH = ChampWrapper.BIT_WIDTH;
 
     public MutableTreeImpl(MutablePointers mutable,
                            ContentAddressedStorage dht,
                            Hasher writeHasher,
-                           WriteSynchronizer synchronizer) {
+                           WriteSynchronizer synchronizer,
+                           int treeBitWidth) {
+        if (treeBitWidth < 1 || treeBitWidth > Champ.MAX_BIT_WIDTH)
+            throw new IllegalArgumentException("Invalid tree bit width: " + treeBitWidth);
         this.mutable = mutable;
         this.dht = dht;
         this.writeHasher = writeHasher;
         this.synchronizer = synchronizer;
+        this.treeBitWidth = treeBitWidth;
+    }
+
+    public MutableTreeImpl(MutablePointers mutable,
+                           ContentAddressedStorage dht,
+                           Hasher writeHasher,
+                           WriteSynchronizer synchronizer) {
+        this(mutable, dht, writeHasher, synchronizer, DEFAULT_TREE_BIT_WIDTH);
+    }
+
+    public int getTreeBitWidth() {
+        return treeBitWidth;
     }
 
     private <T> T log(T result, String toPrint) {
@@ -38,6 +60,37 @@ public class MutableTreeImpl implements MutableTree {
         return result;
     }
 
+    /** Modified tree nodes are buffered until the transaction is committed, so that only the final version of each
+     *  node is signed and written
+     */
+    private ContentAddressedStorage writeBack(SigningPrivateKeyAndPublicHash writer, TransactionId tid) {
+        return synchronizer.getWriteBackStorage(writer.publicKeyHash, tid);
+    }
+
+    /** Get the tree to mutate, creating it if absent, or rebuilding it with our bit width if it uses a different one
+     */
+    private CompletableFuture<ChampWrapper> getTreeForUpdate(WriterData base,
+                                                             PublicKeyHash owner,
+                                                             SigningPrivateKeyAndPublicHash writer,
+                                                             TransactionId tid) {
+        ContentAddressedStorage storage = writeBack(writer, tid);
+        if (! base.tree.isPresent())
+            return ChampWrapper.create(owner, writer, hasher, tid, storage, writeHasher, treeBitWidth);
+        if (base.treeBitWidth == treeBitWidth)
+            return ChampWrapper.create(base.tree.get(), hasher, storage, writeHasher, base.treeBitWidth);
+        return ChampWrapper.create(base.tree.get(), hasher, storage, writeHasher, base.treeBitWidth)
+                .thenCompose(existing -> existing.applyToAllMappings(new ArrayList<Pair<byte[], Multihash>>(),
+                        (all, mapping) -> {
+                            if (mapping.right.isPresent())
+                                all.add(new Pair<>(mapping.left.data, mapping.right.get()));
+                            return Futures.of(all);
+                        }))
+                .thenCompose(mappings -> ChampWrapper.build(owner, writer, hasher, mappings.stream(), tid, storage,
+                        writeHasher, treeBitWidth)
+                        .thenApply(migrated -> LOGGING ? log(migrated, "TREE.migrate (" + mappings.size() + " mappings, "
+                                + base.treeBitWidth + " => " + treeBitWidth + " bits)") : migrated));
+    }
+
     @Override
     public CompletableFuture<WriterData> put(WriterData base,
                                              PublicKeyHash owner,
@@ -46,25 +99,37 @@ public class MutableTreeImpl implements MutableTree {
                                              MaybeMultihash existing,
                                              Multihash value,
                                              TransactionId tid) {
-        return (base.tree.isPresent() ?
-                ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher) :
-                ChampWrapper.create(owner, writer, x -> x.data, tid, dht, writeHasher)
-        ).thenCompose(tree -> tree.put(owner, writer, mapKey, existing, value, tid))
-                .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.put (" + ArrayOps.bytesToHex(mapKey)
-                        + ", " + value + ") => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
-                .thenApply(base::withChamp);
+        return getTreeForUpdate(base, owner, writer, tid)
+                .thenCompose(tree -> tree.put(owner, writer, mapKey, existing, value, tid)
+                        .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.put (" + ArrayOps.bytesToHex(mapKey)
+                                + ", " + value + ") => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
+                        .thenApply(newRoot -> base.withChamp(newRoot, tree.bitWidth)));
     }
 
     @Override
     public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present for " + writer);
-        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher).thenCompose(tree -> tree.get(mapKey))
+        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, base.treeBitWidth)
+                .thenCompose(tree -> tree.get(mapKey))
                 .thenApply(maybe -> LOGGING ?
                         log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
                                 + ", root="+base.tree.get()+" => " + maybe) : maybe);
     }
 
+    @Override
+    public CompletableFuture<List<MaybeMultihash>> getAll(WriterData base,
+                                                          PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          List<byte[]> mapKeys) {
+        if (! base.tree.isPresent())
+            throw new IllegalStateException("Tree root not present for " + writer);
+        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, base.treeBitWidth)
+                .thenCompose(tree -> tree.getAll(mapKeys))
+                .thenApply(values -> LOGGING ?
+                        log(values, "TREE.getAll (" + mapKeys.size() + " keys, root=" + base.tree.get() + ")") : values);
+    }
+
     @Override
     public CompletableFuture<WriterData> remove(WriterData base,
                                                 PublicKeyHash owner,
@@ -74,10 +139,38 @@ public class MutableTreeImpl implements MutableTree {
                                                 TransactionId tid) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present!");
-        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher)
-                .thenCompose(tree -> tree.remove(owner, writer, mapKey, existing, tid))
-                .thenApply(pair -> LOGGING ? log(pair, "TREE.rm ("
-                        + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
-                .thenApply(newTreeRoot -> base.withChamp(newTreeRoot));
+        return getTreeForUpdate(base, owner, writer, tid)
+                .thenCompose(tree -> tree.remove(owner, writer, mapKey, existing, tid)
+                        .thenApply(pair -> LOGGING ? log(pair, "TREE.rm ("
+                                + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
+                        .thenApply(newTreeRoot -> base.withChamp(newTreeRoot, tree.bitWidth)));
+    }
+
+    @Override
+    public CompletableFuture<WriterData> putAll(WriterData base,
+                                                PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                List<Triple<byte[], MaybeMultihash, Multihash>> mutations,
+                                                TransactionId tid) {
+        return getTreeForUpdate(base, owner, writer, tid)
+                .thenCompose(tree -> tree.putAll(owner, writer, mutations, tid)
+                        .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.putAll (" + mutations.size()
+                                + " mappings) => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
+                        .thenApply(newRoot -> base.withChamp(newRoot, tree.bitWidth)));
+    }
+
+    @Override
+    public CompletableFuture<WriterData> removeAll(WriterData base,
+                                                   PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   List<Pair<byte[], MaybeMultihash>> mapKeys,
+                                                   TransactionId tid) {
+        if (! base.tree.isPresent())
+            throw new IllegalStateException("Tree root not present!");
+        return getTreeForUpdate(base, owner, writer, tid)
+                .thenCompose(tree -> tree.removeAll(owner, writer, mapKeys, tid)
+                        .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.rmAll (" + mapKeys.size()
+                                + " mappings) => " + newRoot) : newRoot)
+                        .thenApply(newRoot -> base.withChamp(newRoot, tree.bitWidth)));
     }
 }
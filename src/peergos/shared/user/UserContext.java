@@ -47,6 +47,7 @@ public class UserContext {
     public static final String ENTRY_POINTS_FROM_FRIENDS_FILENAME = ".from-friends.cborstream";
     public static final String ENTRY_POINTS_FROM_US_FILENAME = ".from-us.cborstream";
     public static final String BLOCKED_USERNAMES_FILE = ".blocked-usernames.txt";
+    private static final int MAX_CACHED_PATHS = 1_000;
 
     @JsProperty
     public final String username;
@@ -62,6 +63,10 @@ public class UserContext {
     @JsProperty
     public TrieNode entrie; // ba dum che!
 
+    // Resolved paths, with the trie they were resolved from. An entry is valid while the trie is unchanged and so
+    // are all the writers in the version it was resolved at, which includes the writers of all its ancestors
+    private final LRUCache<String, Pair<TrieNode, FileWrapper>> pathCache = new LRUCache<>(MAX_CACHED_PATHS);
+
     // Contact external world
     @JsProperty
     public final NetworkAccess network;
@@ -695,13 +700,21 @@ public class UserContext {
     public CompletableFuture<Long> getTotalSpaceUsed(PublicKeyHash ownerHash, PublicKeyHash writerHash) {
         // assume no cycles in owned keys
         return WriterData.getOwnedKeysRecursive(ownerHash, writerHash, network.mutable, network.dhtClient, network.hasher)
-                .thenCompose(allOwned -> Futures.reduceAll(allOwned.stream()
-                                .map(w -> network.mutable.getPointerTarget(ownerHash, w, network.dhtClient)
-                                        .thenCompose(root -> root.isPresent() ?
-                                                network.dhtClient.getRecursiveBlockSize(root.get()) :
-                                                CompletableFuture.completedFuture(0L)))
-                                .collect(Collectors.toList()),
-                        0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b));
+                .thenCompose(allOwned -> {
+                    List<PublicKeyHash> writers = new ArrayList<>(allOwned);
+                    return network.mutable.getPointers(writers.stream()
+                            .map(w -> new Pair<>(ownerHash, w))
+                            .collect(Collectors.toList()))
+                            .thenCompose(pointers -> Futures.reduceAll(IntStream.range(0, writers.size())
+                                            .mapToObj(i -> pointers.get(i).isPresent() ?
+                                                    MutablePointers.parsePointerTarget(pointers.get(i).get(), writers.get(i), network.dhtClient) :
+                                                    CompletableFuture.completedFuture(MaybeMultihash.empty()))
+                                            .map(rootFut -> rootFut.thenCompose(root -> root.isPresent() ?
+                                                    network.dhtClient.getRecursiveBlockSize(root.get()) :
+                                                    CompletableFuture.completedFuture(0L)))
+                                            .collect(Collectors.toList()),
+                                    0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b));
+                });
     }
 
     public CompletableFuture<SecretGenerationAlgorithm> getKeyGenAlgorithm() {
@@ -828,12 +841,13 @@ public class UserContext {
                             OwnerProof.build(writerPair, owner.publicKeyHash), s.get(owner.publicKeyHash).hash, network, tid)
                             .thenCompose(s2 -> {
                                 long t2 = System.currentTimeMillis();
-                                RelativeCapability nextChunk =
-                                        RelativeCapability.buildSubsequentChunk(crypto.random.randomBytes(32), rootRKey);
-                                return CryptreeNode.createEmptyDir(MaybeMultihash.empty(), rootRKey, rootWKey, Optional.of(writerPair),
+                                return CryptreeNode.nextChunkMapKey(rootRKey, rootMapKey, crypto.hasher)
+                                        .thenCompose(nextMapKey -> CryptreeNode.createEmptyDir(MaybeMultihash.empty(), rootRKey,
+                                                rootWKey, Optional.of(writerPair),
                                                 new FileProperties(directoryName, true, false, "", 0, LocalDateTime.now(),
                                                         false, Optional.empty(), Optional.empty()),
-                                                Optional.empty(), SymmetricKey.random(), nextChunk, crypto.hasher)
+                                                Optional.empty(), SymmetricKey.random(),
+                                                RelativeCapability.buildSubsequentChunk(nextMapKey, rootRKey), crypto.hasher))
                                         .thenCompose(root -> {
                                             LOG.info("Uploading entry point directory");
                                             return WriterData.createEmpty(owner.publicKeyHash, writerPair,
@@ -1614,7 +1628,56 @@ public class UserContext {
     public CompletableFuture<Optional<FileWrapper>> getByPath(String path) {
         if (path.equals("/"))
             return CompletableFuture.completedFuture(Optional.of(FileWrapper.createRoot(entrie)));
-        return entrie.getByPath(path.startsWith("/") ? path : "/" + path, crypto.hasher, network);
+        String absolutePath = path.startsWith("/") ? path : "/" + path;
+        TrieNode root = entrie;
+        return getCachedPath(absolutePath, root).thenCompose(cached -> {
+            if (cached.isPresent())
+                return Futures.of(cached);
+            return root.getByPath(absolutePath, crypto.hasher, network)
+                    .thenApply(res -> {
+                        res.filter(f -> f.getPointer() != null)
+                                .ifPresent(f -> {
+                                    synchronized (pathCache) {
+                                        pathCache.put(absolutePath, new Pair<>(root, f));
+                                    }
+                                });
+                        return res;
+                    });
+        });
+    }
+
+    /** Check the current version of each writer the cached file was resolved under. This is the same check that
+     *  resolving the path's entry point makes, so a cached result is never staler than an uncached one.
+     *
+     * @return The cached file at path, if it is still valid
+     */
+    private CompletableFuture<Optional<FileWrapper>> getCachedPath(String path, TrieNode root) {
+        Pair<TrieNode, FileWrapper> cached;
+        synchronized (pathCache) {
+            cached = pathCache.get(path);
+        }
+        if (cached == null || cached.left != root)
+            return Futures.of(Optional.empty());
+        FileWrapper file = cached.right;
+        Snapshot version = file.getVersion();
+        return Futures.reduceAll(version.versions.keySet(), true,
+                (valid, writer) -> ! valid ?
+                        Futures.of(false) :
+                        network.synchronizer.getValue(file.owner(), writer)
+                                .thenApply(current -> current.get(writer).hash.equals(version.get(writer).hash)),
+                (a, b) -> a && b)
+                .exceptionally(t -> false)
+                .thenApply(valid -> {
+                    if (! valid) {
+                        synchronized (pathCache) {
+                            if (pathCache.get(path) == cached)
+                                pathCache.remove(path);
+                        }
+                        return Optional.empty();
+                    }
+                    // a new instance, in case the cached one has been modified
+                    return Optional.of(file.withVersion(version));
+                });
     }
 
     public CompletableFuture<FileWrapper> getUserRoot() {
@@ -1653,6 +1716,10 @@ public class UserContext {
                                                        Crypto crypto) {
         // need to to retrieve all the entry points of our friends
         return getFriendsEntryPoints()
+                .thenCompose(friendEntries -> network.synchronizer.prefetchPointers(friendEntries.stream()
+                        .map(e -> new Pair<>(e.pointer.owner, e.pointer.writer))
+                        .collect(Collectors.toList()))
+                        .thenApply(x -> friendEntries))
                 .thenCompose(friendEntries -> Futures.reduceAll(friendEntries, ourRoot,
                         (t, e) -> addRetrievedEntryPointToTrie(ourName, t, e,
                                 "/" + e.ownerName + "/" + SHARED_DIR_NAME + "/" + ourName, false, network, crypto)
@@ -3,17 +3,20 @@ package peergos.shared.user;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.cbor.CborObject;
 import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.CachingPointers;
 import peergos.shared.mutable.HashCasPair;
 import peergos.shared.mutable.MutablePointers;
+import peergos.shared.mutable.WatchedPointer;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.*;
+import java.util.stream.*;
 
 public class WriteSynchronizer {
 
@@ -22,6 +25,12 @@ public class WriteSynchronizer {
     private final Hasher hasher;
     // The keys are <owner, writer> pairs. The owner is only needed to handle identity changes
     private final Map<Pair<PublicKeyHash, PublicKeyHash>, AsyncLock<Snapshot>> pending = new ConcurrentHashMap<>();
+    // The keys are <writer, transaction id> pairs. Tree nodes modified in a transaction are only written when it commits
+    private final Map<Pair<PublicKeyHash, String>, BufferedStorage> writeBack = new ConcurrentHashMap<>();
+    // A writer's key never changes because the writer is identified by its hash
+    private final Map<PublicKeyHash, PublicSigningKey> signingKeys = new ConcurrentHashMap<>();
+    // The updates waiting for each <owner, writer> lock, which will be committed as a group
+    private final Map<Pair<PublicKeyHash, PublicKeyHash>, List<QueuedUpdate>> queued = new HashMap<>();
 
     public WriteSynchronizer(MutablePointers mutable, ContentAddressedStorage dht, Hasher hasher) {
         this.mutable = mutable;
@@ -47,15 +56,61 @@ public class WriteSynchronizer {
         put(owner, writer, emptyUserData);
     }
 
-    public CompletableFuture<Snapshot> getWriterData(PublicKeyHash owner, PublicKeyHash writer) {
+    private CompletableFuture<PublicSigningKey> getSigningKey(PublicKeyHash writer) {
+        PublicSigningKey cached = signingKeys.get(writer);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        return dht.getSigningKey(writer).thenApply(keyOpt -> {
+            PublicSigningKey key = keyOpt.get();
+            signingKeys.put(writer, key);
+            return key;
+        });
+    }
+
+    /**
+     *
+     * @return The hash of the current WriterData of writer, from its signed pointer
+     */
+    private CompletableFuture<MaybeMultihash> getCurrentRoot(PublicKeyHash owner, PublicKeyHash writer) {
         return mutable.getPointer(owner, writer)
-                .thenCompose(dataOpt -> dht.getSigningKey(writer)
-                        .thenApply(signer -> dataOpt.isPresent() ?
-                                HashCasPair.fromCbor(CborObject.fromByteArray(signer.get().unsignMessage(dataOpt.get()))).updated :
-                                MaybeMultihash.empty())
-                        .thenCompose(x -> WriterData.getWriterData(x.get(), dht))
-                        .thenApply(cwd -> new Snapshot(writer, cwd))
-                );
+                .thenCompose(dataOpt -> ! dataOpt.isPresent() ?
+                        CompletableFuture.completedFuture(MaybeMultihash.empty()) :
+                        getSigningKey(writer).thenApply(signer ->
+                                HashCasPair.fromCbor(CborObject.fromByteArray(signer.unsignMessage(dataOpt.get()))).updated));
+    }
+
+    public CompletableFuture<Snapshot> getWriterData(PublicKeyHash owner, PublicKeyHash writer) {
+        return getCurrentRoot(owner, writer)
+                .thenCompose(x -> WriterData.getWriterData(x.get(), dht))
+                .thenApply(cwd -> new Snapshot(writer, cwd));
+    }
+
+    /** Fetch the pointers of many writers in a single call, so that the getValue calls which follow are answered by
+     *  the pointer cache. This does nothing without a pointer cache, and failures are left to the individual lookups.
+     *
+     * @param ownerWriterPairs
+     * @return true if the pointers were fetched
+     */
+    public CompletableFuture<Boolean> prefetchPointers(Collection<Pair<PublicKeyHash, PublicKeyHash>> ownerWriterPairs) {
+        List<Pair<PublicKeyHash, PublicKeyHash>> distinct = new ArrayList<>(new LinkedHashSet<>(ownerWriterPairs));
+        if (! (mutable instanceof CachingPointers) || distinct.size() < 2)
+            return CompletableFuture.completedFuture(false);
+        return mutable.getPointers(distinct)
+                .thenApply(x -> true)
+                .exceptionally(t -> false);
+    }
+
+    /** Load the new versions of writers we are tracking whose pointers have been changed elsewhere, so the next
+     *  getValue is answered from memory
+     *
+     * @param changed pointers which have changed, and are already in the pointer cache
+     */
+    public void pointersChanged(List<WatchedPointer> changed) {
+        for (WatchedPointer pointer : changed) {
+            if (pending.containsKey(new Pair<>(pointer.owner, pointer.writer)))
+                getValue(pointer.owner, pointer.writer)
+                        .exceptionally(t -> Futures.logAndReturn(t, null));
+        }
     }
 
     /**
@@ -65,40 +120,236 @@ public class WriteSynchronizer {
      * @return The current version committed by writer
      */
     public CompletableFuture<Snapshot> getValue(PublicKeyHash owner, PublicKeyHash writer) {
+        // The last version we committed or loaded is usually still current, so only check the pointer
         return pending.computeIfAbsent(new Pair<>(owner, writer), p -> new AsyncLock<>(getWriterData(owner, p.right)))
-                .runWithLock(x -> getWriterData(owner, writer), () -> getWriterData(owner, writer));
+                .runWithLock(current -> getCurrentRoot(owner, writer)
+                        .thenCompose(root -> root.equals(current.get(writer).hash) ?
+                                CompletableFuture.completedFuture(new Snapshot(writer, current.get(writer))) :
+                                WriterData.getWriterData(root.get(), dht)
+                                        .thenApply(cwd -> new Snapshot(writer, cwd))),
+                        () -> getWriterData(owner, writer));
     }
 
     public CompletableFuture<Snapshot> applyUpdate(PublicKeyHash owner,
                                                    SigningPrivateKeyAndPublicHash writer,
                                                    Mutation transformer) {
-        // This is subtle, but we need to ensure that there is only ever 1 thenAble waiting on the future for a given key
-        // otherwise when the future completes, then the two or more waiters will both proceed with the existing hash,
-        // and whoever commits first will win. We also need to retrieve the writer data again from the network after
-        // a previous transaction has completed (another node/user with write access may have concurrently updated the mapping)
-        return pending.computeIfAbsent(new Pair<>(owner, writer.publicKeyHash), p -> new AsyncLock<>(getWriterData(owner, p.right)))
-                .runWithLock(current -> IpfsTransaction.call(owner, tid -> transformer.apply(current.get(writer).props, tid)
-                                .thenCompose(wd -> wd.commit(owner, writer, current.get(writer).hash, mutable, dht, hasher, tid)), dht),
-                        () -> getWriterData(owner, writer.publicKeyHash));
+        return applyComplexUpdate(owner, writer, (current, committer) -> IpfsTransaction.call(owner,
+                tid -> transformer.apply(current.get(writer).props, tid)
+                        .thenCompose(wd -> committer.commit(owner, writer, wd, current.get(writer), tid)), dht));
     }
 
+    /** Updates to the same writer are group committed. Updates which are queued while an earlier update is in progress
+     *  are applied in sequence, and the resulting WriterData is written and its pointer updated once for the group.
+     *  Each update still succeeds or fails on its own.
+     */
     public CompletableFuture<Snapshot> applyComplexUpdate(PublicKeyHash owner,
                                                           SigningPrivateKeyAndPublicHash writer,
                                                           ComplexMutation transformer) {
-        return pending.computeIfAbsent(new Pair<>(owner, writer.publicKeyHash), p -> new AsyncLock<>(getWriterData(owner, p.right)))
-                .runWithLock(current -> transformer.apply(current,
-                        (aOwner, signer, wd, existing, tid) -> wd.commit(aOwner, signer, existing.hash, mutable, dht, hasher, tid)
-                        .thenCompose(s -> {
-                            if (signer.publicKeyHash.equals(writer.publicKeyHash))
-                                return CompletableFuture.completedFuture(s);
-                            // need to update local queue for other writer
-                            return pending.computeIfAbsent(
-                                    new Pair<>(owner, signer.publicKeyHash),
-                                    p -> new AsyncLock<>(getWriterData(owner, p.right))
-                            ).runWithLock(v -> CompletableFuture.completedFuture(v.withVersion(signer.publicKeyHash, s.get(signer))))
-                                    .thenApply(x -> s);
-                        })),
-                        () -> getWriterData(owner, writer.publicKeyHash));
+        Pair<PublicKeyHash, PublicKeyHash> key = new Pair<>(owner, writer.publicKeyHash);
+        QueuedUpdate update = new QueuedUpdate(transformer);
+        List<QueuedUpdate> waiting;
+        boolean first;
+        synchronized (queued) {
+            waiting = queued.computeIfAbsent(key, k -> new ArrayList<>());
+            first = waiting.isEmpty();
+            waiting.add(update);
+        }
+        // This is subtle, but we need to ensure that there is only ever 1 thenAble waiting on the future for a given key
+        // otherwise when the future completes, then the two or more waiters will both proceed with the existing hash,
+        // and whoever commits first will win. We also need to retrieve the writer data again from the network after
+        // a failed update (another node/user with write access may have concurrently updated the mapping)
+        if (first) {
+            AsyncLock<Snapshot> lock = pending.computeIfAbsent(key, p -> new AsyncLock<>(getWriterData(owner, p.right)));
+            lock.runWithLock(current -> applyQueued(owner, writer, current),
+                            () -> getWriterData(owner, writer.publicKeyHash))
+                    .exceptionally(t -> {
+                        failUnappliedGroup(key, waiting, lock, t);
+                        return null;
+                    });
+        }
+        return update.result;
+    }
+
+    /** If the lock's value could not be retrieved, the group is never applied. In that case fail its updates, and
+     *  drop the lock, which would otherwise fail every later update, so the next update retrieves the value again.
+     */
+    private void failUnappliedGroup(Pair<PublicKeyHash, PublicKeyHash> key,
+                                    List<QueuedUpdate> group,
+                                    AsyncLock<Snapshot> lock,
+                                    Throwable t) {
+        synchronized (queued) {
+            // otherwise the group was applied, and its updates have already completed
+            if (queued.get(key) != group)
+                return;
+            queued.remove(key);
+            pending.remove(key, lock);
+        }
+        for (QueuedUpdate update : group)
+            update.result.completeExceptionally(t);
+    }
+
+    private static class QueuedUpdate {
+        public final ComplexMutation mutation;
+        public final CompletableFuture<Snapshot> result = new CompletableFuture<>();
+
+        public QueuedUpdate(ComplexMutation mutation) {
+            this.mutation = mutation;
+        }
+    }
+
+    private CompletableFuture<Snapshot> applyQueued(PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    Snapshot current) {
+        List<QueuedUpdate> group;
+        synchronized (queued) {
+            group = queued.remove(new Pair<>(owner, writer.publicKeyHash));
+        }
+        if (group.size() == 1) {
+            QueuedUpdate update = group.get(0);
+            return Futures.asyncExceptionally(
+                    () -> update.mutation.apply(current, committer(owner, writer, Optional.empty()))
+                            .thenApply(res -> {
+                                update.result.complete(res);
+                                return res;
+                            }),
+                    t -> {
+                        update.result.completeExceptionally(t);
+                        return Futures.errored(t);
+                    });
+        }
+        // The transactions of updates in the group are held open until the group is committed, so the blocks they
+        // wrote can't be garbage collected before the pointer references them
+        GroupCommit groupCommit = new GroupCommit();
+        return Futures.asyncExceptionally(() -> IpfsTransaction.call(owner,
+                groupTid -> applyGroup(owner, writer, current, group, groupCommit, groupTid), dht)
+                        .thenApply(res -> {
+                            groupCommit.done.complete(true);
+                            return res;
+                        }),
+                t -> {
+                    groupCommit.done.complete(false);
+                    for (QueuedUpdate update : group)
+                        update.result.completeExceptionally(t);
+                    return Futures.errored(t);
+                });
+    }
+
+    private static class GroupCommit {
+        // The uncommitted version of the group's writer, after the successful updates so far
+        public final Map<PublicKeyHash, WriterData> deferred = new HashMap<>();
+        // Completes once the group has been committed, or has failed
+        public final CompletableFuture<Boolean> done = new CompletableFuture<>();
+    }
+
+    private CompletableFuture<Snapshot> applyGroup(PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   Snapshot base,
+                                                   List<QueuedUpdate> group,
+                                                   GroupCommit groupCommit,
+                                                   TransactionId groupTid) {
+        Map<PublicKeyHash, WriterData> deferred = groupCommit.deferred;
+        Committer committer = committer(owner, writer, Optional.of(groupCommit));
+        List<Pair<QueuedUpdate, Snapshot>> applied = new ArrayList<>();
+        return Futures.reduceAll(group, base,
+                (current, update) -> {
+                    Optional<WriterData> before = Optional.ofNullable(deferred.get(writer.publicKeyHash));
+                    return Futures.asyncExceptionally(
+                            () -> update.mutation.apply(current, committer)
+                                    .thenApply(res -> {
+                                        applied.add(new Pair<>(update, res));
+                                        return res;
+                                    }),
+                            t -> {
+                                // this update fails alone, and later updates are applied to the previous version
+                                if (before.isPresent())
+                                    deferred.put(writer.publicKeyHash, before.get());
+                                else
+                                    deferred.remove(writer.publicKeyHash);
+                                update.result.completeExceptionally(t);
+                                return CompletableFuture.completedFuture(current);
+                            });
+                }, (a, b) -> b)
+                .thenCompose(last -> {
+                    if (applied.isEmpty()) // refresh our version in case it caused the failures
+                        return Futures.errored(new IllegalStateException("All updates in group failed"));
+                    WriterData result = deferred.get(writer.publicKeyHash);
+                    if (result == null) {
+                        for (Pair<QueuedUpdate, Snapshot> done : applied)
+                            done.left.result.complete(done.right);
+                        return CompletableFuture.completedFuture(last);
+                    }
+                    return commit(owner, writer, result, base.get(writer).hash, groupTid)
+                            .thenApply(committed -> {
+                                CommittedWriterData version = committed.get(writer);
+                                for (Pair<QueuedUpdate, Snapshot> done : applied)
+                                    done.left.result.complete(done.right.withVersion(writer.publicKeyHash, version));
+                                return last.withVersion(writer.publicKeyHash, version);
+                            });
+                });
+    }
+
+    /**
+     *
+     * @param group if present, commits of writer are only recorded in it, and their tree nodes written
+     * @return A committer for updates to writer
+     */
+    private Committer committer(PublicKeyHash owner,
+                                SigningPrivateKeyAndPublicHash writer,
+                                Optional<GroupCommit> group) {
+        return (aOwner, signer, wd, existing, tid) -> {
+            if (signer.publicKeyHash.equals(writer.publicKeyHash)) {
+                if (! group.isPresent())
+                    return commit(aOwner, signer, wd, existing.hash, tid);
+                // Nothing references the blocks written in this transaction until the group is committed
+                tid.keepOpenUntil(group.get().done);
+                // The new tree nodes are written now, because later updates in the group read them
+                return flushWriteBack(aOwner, signer, wd, tid).thenApply(x -> {
+                    group.get().deferred.put(signer.publicKeyHash, wd);
+                    return new Snapshot(signer.publicKeyHash, new CommittedWriterData(existing.hash, wd));
+                });
+            }
+            return commit(aOwner, signer, wd, existing.hash, tid)
+                    .thenCompose(s -> pending.computeIfAbsent(
+                            new Pair<>(owner, signer.publicKeyHash),
+                            p -> new AsyncLock<>(getWriterData(owner, p.right))
+                    ).runWithLock(v -> CompletableFuture.completedFuture(v.withVersion(signer.publicKeyHash, s.get(signer))))
+                            .thenApply(x -> s)); // need to update local queue for other writer
+        };
+    }
+
+    /** Anything left in the buffer when its transaction closes, because the update failed before committing, is
+     *  discarded then
+     *
+     * @param writer
+     * @param tid
+     * @return The storage which buffers the tree nodes written by writer in this transaction until it is committed
+     */
+    public BufferedStorage getWriteBackStorage(PublicKeyHash writer, TransactionId tid) {
+        Pair<PublicKeyHash, String> key = new Pair<>(writer, tid.id);
+        return writeBack.computeIfAbsent(key, p -> {
+            BufferedStorage buffer = new BufferedStorage(dht);
+            tid.onClose(() -> writeBack.remove(key, buffer));
+            return buffer;
+        });
+    }
+
+    private CompletableFuture<Snapshot> commit(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash signer,
+                                               WriterData wd,
+                                               MaybeMultihash existing,
+                                               TransactionId tid) {
+        return flushWriteBack(owner, signer, wd, tid)
+                .thenCompose(written -> wd.commit(owner, signer, existing, mutable, dht, hasher, tid));
+    }
+
+    private CompletableFuture<Integer> flushWriteBack(PublicKeyHash owner,
+                                                      SigningPrivateKeyAndPublicHash signer,
+                                                      WriterData wd,
+                                                      TransactionId tid) {
+        BufferedStorage dirty = writeBack.remove(new Pair<>(signer.publicKeyHash, tid.id));
+        if (dirty == null || ! wd.tree.isPresent())
+            return CompletableFuture.completedFuture(0);
+        return dirty.flush(owner, signer, wd.tree.get(), tid);
     }
 
 }
@@ -7,6 +7,7 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
@@ -41,6 +42,8 @@ public class WriterData implements Cborable {
     public final Optional<UserStaticData> staticData;
     // This is the root of a champ containing the controller's filesystem (present on writer keys)
     public final Optional<Multihash> tree;
+    // The bit width of the filesystem champ
+    public final int treeBitWidth;
 
     /**
      *
@@ -50,6 +53,7 @@ public class WriterData implements Cborable {
      * @param ownedKeys Any public keys owned by this key
      * @param staticData Any static data owner by this key (list of entry points)
      * @param tree Any file tree owned by this key
+     * @param treeBitWidth The bit width of the file tree champ
      */
     public WriterData(PublicKeyHash controller,
                       Optional<SecretGenerationAlgorithm> generationAlgorithm,
@@ -58,7 +62,8 @@ public class WriterData implements Cborable {
                       Optional<Multihash> ownedKeys,
                       Map<String, OwnerProof> namedOwnedKeys,
                       Optional<UserStaticData> staticData,
-                      Optional<Multihash> tree) {
+                      Optional<Multihash> tree,
+                      int treeBitWidth) {
         this.controller = controller;
         this.generationAlgorithm = generationAlgorithm;
         this.publicData = publicData;
@@ -67,18 +72,35 @@ public class WriterData implements Cborable {
         this.namedOwnedKeys = namedOwnedKeys;
         this.staticData = staticData;
         this.tree = tree;
+        this.treeBitWidth = treeBitWidth;
+    }
+
+    public WriterData(PublicKeyHash controller,
+                      Optional<SecretGenerationAlgorithm> generationAlgorithm,
+                      Optional<Multihash> publicData,
+                      Optional<PublicKeyHash> followRequestReceiver,
+                      Optional<Multihash> ownedKeys,
+                      Map<String, OwnerProof> namedOwnedKeys,
+                      Optional<UserStaticData> staticData,
+                      Optional<Multihash> tree) {
+        this(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, namedOwnedKeys, staticData,
+                tree, ChampWrapper.BIT_WIDTH);
     }
 
     public WriterData withChamp(Multihash treeRoot) {
-        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, namedOwnedKeys, staticData, Optional.of(treeRoot));
+        return withChamp(treeRoot, treeBitWidth);
+    }
+
+    public WriterData withChamp(Multihash treeRoot, int bitWidth) {
+        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, namedOwnedKeys, staticData, Optional.of(treeRoot), bitWidth);
     }
 
     public WriterData withPublicRoot(Multihash publicChampRoot) {
-        return new WriterData(controller, generationAlgorithm, Optional.of(publicChampRoot), followRequestReceiver, ownedKeys, namedOwnedKeys, staticData, tree);
+        return new WriterData(controller, generationAlgorithm, Optional.of(publicChampRoot), followRequestReceiver, ownedKeys, namedOwnedKeys, staticData, tree, treeBitWidth);
     }
 
     public WriterData withOwnedRoot(Multihash ownedRoot) {
-        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, Optional.of(ownedRoot), namedOwnedKeys, staticData, tree);
+        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, Optional.of(ownedRoot), namedOwnedKeys, staticData, tree, treeBitWidth);
     }
 
     public CompletableFuture<WriterData> addOwnedKey(PublicKeyHash owner,
@@ -93,7 +115,7 @@ public class WriterData implements Cborable {
                         getOwnedKeyChamp(ipfs, hasher))
                         .thenCompose(champ -> champ.add(owner, signer, newOwned, hasher, tid))
                         .thenApply(newRoot -> new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver,
-                                Optional.of(newRoot), namedOwnedKeys, staticData, tree)), ipfs);
+                                Optional.of(newRoot), namedOwnedKeys, staticData, tree, treeBitWidth)), ipfs);
     }
 
     public CompletableFuture<Snapshot> addOwnedKeyAndCommit(PublicKeyHash owner,
@@ -105,7 +127,7 @@ public class WriterData implements Cborable {
         return getOwnedKeyChamp(network.dhtClient, network.hasher)
                 .thenCompose(champ -> champ.add(owner, signer, newOwned, network.hasher, tid)
                         .thenApply(newRoot -> new WriterData(controller, generationAlgorithm, publicData,
-                                followRequestReceiver, Optional.of(newRoot), namedOwnedKeys, staticData, tree)))
+                                followRequestReceiver, Optional.of(newRoot), namedOwnedKeys, staticData, tree, treeBitWidth)))
                 .thenCompose(wd -> wd.commit(owner, signer, currentHash, network, tid));
     }
 
@@ -119,7 +141,7 @@ public class WriterData implements Cborable {
                 .thenCompose(champ -> IpfsTransaction.call(owner,
                         tid -> champ.remove(owner, signer, ownedKey, tid), ipfs)
                         .thenApply(newRoot -> new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver,
-                                Optional.of(newRoot), namedOwnedKeys, staticData, tree)));
+                                Optional.of(newRoot), namedOwnedKeys, staticData, tree, treeBitWidth)));
     }
 
     public CompletableFuture<Boolean> ownsKey(PublicKeyHash ownedKey,
@@ -146,11 +168,11 @@ public class WriterData implements Cborable {
     public WriterData addNamedKey(String name, OwnerProof newNamedKey) {
         Map<String, OwnerProof> updated = new TreeMap<>(namedOwnedKeys);
         updated.put(name, newNamedKey);
-        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, updated, staticData, tree);
+        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, updated, staticData, tree, treeBitWidth);
     }
 
     public WriterData withStaticData(Optional<UserStaticData> entryPoints) {
-        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, namedOwnedKeys, entryPoints, tree);
+        return new WriterData(controller, generationAlgorithm, publicData, followRequestReceiver, ownedKeys, namedOwnedKeys, entryPoints, tree, treeBitWidth);
     }
 
     public static CompletableFuture<WriterData> createEmpty(PublicKeyHash owner,
@@ -226,7 +248,8 @@ public class WriterData implements Cborable {
                                         Optional.of(ownedRoot),
                                         newNamedOwnedKeys,
                                         newEntryPoints,
-                                        tree);
+                                        tree,
+                                        treeBitWidth);
                                 return getOwnedKeyChamp(network.dhtClient, network.hasher)
                                         .thenCompose(okChamp -> okChamp.applyToAllMappings(base, (nwd, p) ->
                                                 p.left.equals(signer.publicKeyHash) ? Futures.of(nwd) :
@@ -297,6 +320,9 @@ public class WriterData implements Cborable {
                     .collect(Collectors.toMap(e -> new CborObject.CborString(e.getKey()), e -> e.getValue())))));
         staticData.ifPresent(sd -> result.put("static", sd.toCbor()));
         tree.ifPresent(tree -> result.put("tree", new CborObject.CborMerkleLink(tree)));
+        // only present for trees which don't use the original bit width, so existing writer data is unchanged
+        if (treeBitWidth != ChampWrapper.BIT_WIDTH)
+            result.put("treebits", new CborObject.CborLong(treeBitWidth));
         return CborObject.CborMap.build(result);
     }
 
@@ -321,7 +347,11 @@ public class WriterData implements Cborable {
 
         Optional<UserStaticData> staticData = m.getOptional("static", UserStaticData::fromCbor);
         Optional<Multihash> tree = m.getOptional("tree", val -> ((CborObject.CborMerkleLink)val).target);
-        return new WriterData(controller, algo, publicData, followRequestReceiver, owned, named, staticData, tree);
+        int treeBitWidth = m.getOptional("treebits", val -> (int) ((CborObject.CborLong) val).value)
+                .orElse(ChampWrapper.BIT_WIDTH);
+        if (treeBitWidth < 1 || treeBitWidth > Champ.MAX_BIT_WIDTH)
+            throw new IllegalStateException("Invalid tree bit width: " + treeBitWidth);
+        return new WriterData(controller, algo, publicData, followRequestReceiver, owned, named, staticData, tree, treeBitWidth);
     }
 
     public static CompletableFuture<Set<PublicKeyHash>> getOwnedKeysRecursive(String username,
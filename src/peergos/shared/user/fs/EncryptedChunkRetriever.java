@@ -98,15 +98,9 @@ public class EncryptedChunkRetriever implements FileRetriever {
                         return CompletableFuture.completedFuture(Optional.of(withLocation));
                     });
         }
-        return linksToData.getAndDecrypt(dataKey, c -> ((CborObject.CborByteArray)c).value, network, monitor)
+        return linksToData.getAndDecryptByteArray(dataKey, (int) Math.min(Chunk.MAX_SIZE, truncateTo), network, monitor)
                 .thenApply(data ->  Optional.of(new LocatedChunk(ourCap.getLocation(), ourExistingHash,
-                        new Chunk(truncate(data, (int) Math.min(Chunk.MAX_SIZE, truncateTo)),
+                        new Chunk(data,
                                 dataKey, ourCap.getMapKey(), ourCap.rBaseKey.createNonce()))));
     }
-
-    public static byte[] truncate(byte[] in, int length) {
-        if (in.length == length)
-            return in;
-        return Arrays.copyOfRange(in, 0, length);
-    }
 }
@@ -82,12 +82,7 @@ public class FileProperties implements Cborable {
     }
 
     public static CompletableFuture<byte[]> calculateMapKey(byte[] streamSecret, byte[] firstMapKey, long offset, Hasher h) {
-        long iterations = offset / Chunk.MAX_SIZE;
-        List<Long> counter = new ArrayList<>();
-        for (long i=0; i < iterations; i++)
-            counter.add(i);
-        return Futures.reduceAll(counter, firstMapKey,
-                (current, i) -> calculateNextMapKey(streamSecret, current, h), (a, b) -> b);
+        return h.sha256Chain(streamSecret, firstMapKey, offset / Chunk.MAX_SIZE);
     }
 
     public static CompletableFuture<byte[]> calculateNextMapKey(byte[] streamSecret, byte[] currentMapKey, Hasher h) {
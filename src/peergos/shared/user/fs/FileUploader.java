@@ -6,6 +6,7 @@ import peergos.shared.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.cryptree.*;
@@ -19,6 +20,11 @@ import java.util.stream.*;
 public class FileUploader implements AutoCloseable {
 	private static final Logger LOG = Logger.getGlobal();
 
+    // Bounds the memory used by encrypted chunks waiting to be uploaded
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+    // Commit the champ every so often so that a failed upload of a large file doesn't lose all progress
+    private static final int CHUNKS_PER_COMMIT = 20;
+
     private final String name;
     private final long offset, length;
     private final FileProperties props;
@@ -72,39 +78,9 @@ public class FileUploader implements AutoCloseable {
                 baseKey, dataKey, parentLocation, parentparentKey, monitor, fileProperties, firstLocation);
     }
 
-    public CompletableFuture<Snapshot> uploadChunk(Snapshot current,
-                                                   Committer committer,
-                                                   NetworkAccess network,
-                                                   PublicKeyHash owner,
-                                                   SigningPrivateKeyAndPublicHash writer,
-                                                   long chunkIndex,
-                                                   MaybeMultihash ourExistingHash,
-                                                   ProgressConsumer<Long> monitor,
-                                                   Hasher hasher) {
-        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
-        long position = chunkIndex * Chunk.MAX_SIZE;
-
-        long fileLength = length;
-        boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
-        int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
-        byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
-            byte[] nonce = baseKey.createNonce();
-            return FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation,
-                    chunkIndex * Chunk.MAX_SIZE, hasher)
-                    .thenCompose(mapKey -> {
-                        Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
-                        LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
-                        return FileProperties.calculateNextMapKey(props.streamSecret.get(), mapKey, hasher)
-                                .thenCompose(nextMapKey -> {
-                                    Location nextLocation = new Location(owner, writer.publicKeyHash, nextMapKey);
-                                    return uploadChunk(current, committer, writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
-                                            nextLocation, Optional.empty(), hasher, network, monitor);
-                                });
-                    });
-        });
-    }
-
+    /** Upload the file as a pipeline. Reading and encrypting a chunk overlaps the upload of the chunks before it, and
+     *  the champ insertions for up to CHUNKS_PER_COMMIT chunks are committed with a single pointer update.
+     */
     public CompletableFuture<Snapshot> upload(Snapshot current,
                                               Committer committer,
                                               NetworkAccess network,
@@ -113,15 +89,173 @@ public class FileUploader implements AutoCloseable {
                                               Hasher hasher) {
         long t1 = System.currentTimeMillis();
 
-        List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, current, (cwd, i) -> uploadChunk(cwd, committer, network, owner, writer, i,
-                MaybeMultihash.empty(), monitor, hasher), (a, b) -> b)
+        List<Integer> batchStarts = IntStream.range(0, (int) ((nchunks + CHUNKS_PER_COMMIT - 1) / CHUNKS_PER_COMMIT))
+                .mapToObj(i -> i * CHUNKS_PER_COMMIT)
+                .collect(Collectors.toList());
+        return Futures.reduceAll(batchStarts, current,
+                (version, start) -> IpfsTransaction.call(owner,
+                        tid -> uploadBatch(version, start, Math.min(nchunks, start + CHUNKS_PER_COMMIT),
+                                committer, network, owner, writer, hasher, tid),
+                        network.dhtClient), (a, b) -> b)
                 .thenApply(x -> {
                     LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
                     return x;
                 });
     }
 
+    private static class Pipeline {
+        // the champ mapping for each chunk, in order, completed when its upload completes
+        public final List<CompletableFuture<Triple<byte[], MaybeMultihash, Multihash>>> uploads = new ArrayList<>();
+
+        public CompletableFuture<List<Triple<byte[], MaybeMultihash, Multihash>>> completedPrefix() {
+            return Futures.combineAllInOrder(uploads.stream()
+                    .map(upload -> upload.thenApply(Optional::of)
+                            .exceptionally(t -> Optional.empty()))
+                    .collect(Collectors.toList()))
+                    .thenApply(all -> {
+                        List<Triple<byte[], MaybeMultihash, Multihash>> prefix = new ArrayList<>();
+                        for (Optional<Triple<byte[], MaybeMultihash, Multihash>> upload : all) {
+                            if (! upload.isPresent())
+                                break;
+                            prefix.add(upload.get());
+                        }
+                        return prefix;
+                    });
+        }
+    }
+
+    private static class EncryptedChunk {
+        public final byte[] mapKey;
+        public final CryptreeNode metadata;
+        public final List<Fragment> fragments;
+        public final int length;
+        public final boolean hasInlineFragments;
+
+        public EncryptedChunk(byte[] mapKey, CryptreeNode metadata, List<Fragment> fragments, int length, boolean hasInlineFragments) {
+            this.mapKey = mapKey;
+            this.metadata = metadata;
+            this.fragments = fragments;
+            this.length = length;
+            this.hasInlineFragments = hasInlineFragments;
+        }
+    }
+
+    /** Upload and commit the chunks from start (inclusive) to end (exclusive). If the upload fails, the chunks before
+     *  the failure are still committed, so they can be found and cleaned up.
+     */
+    private CompletableFuture<Snapshot> uploadBatch(Snapshot version,
+                                                    long start,
+                                                    long end,
+                                                    Committer committer,
+                                                    NetworkAccess network,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    Hasher hasher,
+                                                    TransactionId tid) {
+        Pipeline pipeline = new Pipeline();
+        CompletableFuture<Snapshot> res = new CompletableFuture<>();
+        uploadChunks(start, end, pipeline, network, owner, writer, hasher, tid)
+                .thenCompose(x -> Futures.combineAllInOrder(pipeline.uploads))
+                .thenCompose(mappings -> commitChunks(version, mappings, committer, network, owner, writer, tid))
+                .thenApply(res::complete)
+                .exceptionally(t -> {
+                    pipeline.completedPrefix()
+                            .thenCompose(uploaded -> uploaded.isEmpty() ?
+                                    CompletableFuture.completedFuture(version) :
+                                    commitChunks(version, uploaded, committer, network, owner, writer, tid))
+                            .thenApply(x -> res.completeExceptionally(t))
+                            .exceptionally(e -> res.completeExceptionally(t));
+                    return false;
+                });
+        return res;
+    }
+
+    private static CompletableFuture<Snapshot> commitChunks(Snapshot version,
+                                                            List<Triple<byte[], MaybeMultihash, Multihash>> mappings,
+                                                            Committer committer,
+                                                            NetworkAccess network,
+                                                            PublicKeyHash owner,
+                                                            SigningPrivateKeyAndPublicHash writer,
+                                                            TransactionId tid) {
+        CommittedWriterData base = version.get(writer);
+        return network.tree.putAll(base.props, owner, writer, mappings, tid)
+                .thenCompose(wd -> committer.commit(owner, writer, wd, base, tid))
+                .thenApply(committed -> version.withVersion(writer.publicKeyHash, committed.get(writer)));
+    }
+
+    /** Start the uploads of chunks from chunkIndex (inclusive) to end (exclusive). Each chunk is only read and
+     *  encrypted once there is a free upload slot.
+     *
+     * @return a future completed once the last upload has started
+     */
+    private CompletableFuture<Boolean> uploadChunks(long chunkIndex,
+                                                    long end,
+                                                    Pipeline pipeline,
+                                                    NetworkAccess network,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    Hasher hasher,
+                                                    TransactionId tid) {
+        if (chunkIndex == end)
+            return CompletableFuture.completedFuture(true);
+        int nUploads = pipeline.uploads.size();
+        CompletableFuture<?> slot = nUploads < MAX_CHUNKS_IN_FLIGHT ?
+                CompletableFuture.completedFuture(true) :
+                pipeline.uploads.get(nUploads - MAX_CHUNKS_IN_FLIGHT);
+        return slot.thenCompose(x -> encryptChunk(chunkIndex, owner, writer, network, hasher))
+                .thenCompose(chunk -> {
+                    pipeline.uploads.add(uploadEncryptedChunk(chunk, owner, writer, network, tid)
+                            .thenApply(blobHash -> new Triple<>(chunk.mapKey, chunk.metadata.committedHash(), blobHash)));
+                    return uploadChunks(chunkIndex + 1, end, pipeline, network, owner, writer, hasher, tid);
+                });
+    }
+
+    private CompletableFuture<EncryptedChunk> encryptChunk(long chunkIndex,
+                                                           PublicKeyHash owner,
+                                                           SigningPrivateKeyAndPublicHash writer,
+                                                           NetworkAccess network,
+                                                           Hasher hasher) {
+        LOG.info("encrypting chunk: "+chunkIndex + " of "+name);
+        long position = chunkIndex * Chunk.MAX_SIZE;
+
+        long fileLength = length;
+        boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
+        int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
+        byte[] data = new byte[length];
+        return reader.readIntoArray(data, 0, data.length)
+                .thenCompose(b -> FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation, position, hasher))
+                .thenCompose(mapKey -> FileProperties.calculateNextMapKey(props.streamSecret.get(), mapKey, hasher)
+                        .thenCompose(nextMapKey -> {
+                            Chunk chunk = new Chunk(data, dataKey, mapKey, baseKey.createNonce());
+                            RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(nextMapKey, baseKey);
+                            return CryptreeNode.createFile(MaybeMultihash.empty(), writer.publicKeyHash, baseKey,
+                                    chunk.key(), props, chunk.data(), parentLocation, parentparentKey, nextChunk,
+                                    hasher, network.isJavascript())
+                                    .thenApply(file -> {
+                                        List<Fragment> fragments = file.right.stream()
+                                                .filter(f -> !f.hash.isIdentity())
+                                                .map(f -> f.fragment)
+                                                .collect(Collectors.toList());
+                                        return new EncryptedChunk(chunk.mapKey(),
+                                                file.left.withWriterLink(baseKey, Optional.empty()), fragments,
+                                                chunk.length(), fragments.size() < file.right.size());
+                                    });
+                        }));
+    }
+
+    private CompletableFuture<Multihash> uploadEncryptedChunk(EncryptedChunk chunk,
+                                                              PublicKeyHash owner,
+                                                              SigningPrivateKeyAndPublicHash writer,
+                                                              NetworkAccess network,
+                                                              TransactionId tid) {
+        CappedProgressConsumer progress = new CappedProgressConsumer(monitor, chunk.length);
+        if (chunk.hasInlineFragments)
+            progress.accept((long) chunk.length);
+        LOG.info("Uploading chunk with " + chunk.fragments.size() + " fragments\n");
+        return network.uploadFragments(chunk.fragments, owner, writer, progress, tid)
+                .thenCompose(hashes -> network.uploadMetadata(chunk.metadata, owner, writer, tid));
+    }
+
     public static CompletableFuture<Snapshot> uploadChunk(Snapshot current,
                                                           Committer committer,
                                                           SigningPrivateKeyAndPublicHash writer,
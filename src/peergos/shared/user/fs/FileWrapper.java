@@ -105,6 +105,10 @@ public class FileWrapper {
         return new FileWrapper(capTrie, pointer, link, entryWriter, ownername, version);
     }
 
+    public Snapshot getVersion() {
+        return version;
+    }
+
     public FileWrapper withVersion(Snapshot version) {
         return new FileWrapper(capTrie, pointer, linkPointer, entryWriter, ownername, version);
     }
@@ -175,13 +179,9 @@ public class FileWrapper {
         int slash = path.indexOf("/");
         String prefix = slash > 0 ? path.substring(0, slash) : path;
         String suffix = slash > 0 ? path.substring(slash + 1) : "";
-        return getChildren(version, hasher, network).thenCompose(children -> {
-            for (FileWrapper child : children)
-                if (child.getFileProperties().name.equals(prefix)) {
-                    return child.getDescendentByPath(suffix, hasher, network);
-                }
-            return CompletableFuture.completedFuture(Optional.empty());
-        });
+        return getChild(version, prefix, hasher, network).thenCompose(child -> child.isPresent() ?
+                child.get().getDescendentByPath(suffix, hasher, network) :
+                CompletableFuture.completedFuture(Optional.empty()));
     }
 
     private void ensureUnmodified() {
@@ -207,10 +207,23 @@ public class FileWrapper {
                         childCases, network, hasher);
     }
 
+    /** Update our name tag for a child that has been renamed
+     */
+    private CompletableFuture<Snapshot> updateChildName(Snapshot version,
+                                                        Committer committer,
+                                                        Location child,
+                                                        String newName,
+                                                        NetworkAccess network,
+                                                        Hasher hasher) {
+        return version.withWriter(owner(), writer(), network)
+                .thenCompose(withUs -> pointer.fileAccess.updateChildName(withUs, committer, writableFilePointer(),
+                        signingPair(), child, newName, network, hasher));
+    }
+
     public CompletableFuture<Boolean> hasChildWithName(Snapshot version, String name, Hasher hasher, NetworkAccess network) {
         ensureUnmodified();
-        return getChildren(version, hasher, network)
-                .thenApply(children -> children.stream().anyMatch(c -> c.props.name.equals(name)));
+        return getChild(version, name, hasher, network)
+                .thenApply(Optional::isPresent);
     }
 
     /**
@@ -337,14 +350,43 @@ public class FileWrapper {
     public CompletableFuture<Set<FileWrapper>> getChildren(Snapshot version, Hasher hasher, NetworkAccess network) {
         if (capTrie.isPresent())
             return capTrie.get().getChildren("/", hasher, version.merge(this.version), network);
-        if (isReadable()) {
-            Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = pointer.capability.wBaseKey
-                    .map(wBase -> pointer.fileAccess.getSigner(pointer.capability.rBaseKey, wBase, entryWriter));
-            return pointer.fileAccess.getAllChildrenCapabilities(version, pointer.capability, hasher, network)
-                    .thenCompose(childCaps ->
-                            getFiles(owner(), childCaps, childsEntryWriter, ownername, network, version));
-        }
-        throw new IllegalStateException("Unreadable FileWrapper!");
+        Set<FileWrapper> results = new HashSet<>();
+        return streamChildren(version, hasher, network, children -> {
+            synchronized (results) {
+                results.addAll(children);
+            }
+        }).thenApply(done -> results);
+    }
+
+    /** Retrieve the children of this directory as each chunk of the directory is retrieved. Large directories are
+     *  split into chunks, which are fetched in parallel where possible.
+     *
+     * @param onChildren called with the children in each chunk, possibly concurrently
+     * @return true when all the children have been retrieved
+     */
+    public CompletableFuture<Boolean> streamChildren(Hasher hasher, NetworkAccess network, Consumer<Set<FileWrapper>> onChildren) {
+        if (capTrie.isPresent())
+            return capTrie.get().getChildren("/", hasher, network)
+                    .thenApply(children -> {
+                        onChildren.accept(children);
+                        return true;
+                    });
+        return streamChildren(version, hasher, network, onChildren);
+    }
+
+    private CompletableFuture<Boolean> streamChildren(Snapshot version,
+                                                      Hasher hasher,
+                                                      NetworkAccess network,
+                                                      Consumer<Set<FileWrapper>> onChildren) {
+        if (! isReadable())
+            throw new IllegalStateException("Unreadable FileWrapper!");
+        Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = getChildsEntryWriter();
+        return pointer.fileAccess.streamChildrenCapabilities(version, pointer.capability, hasher, network,
+                childCaps -> getFiles(owner(), childCaps, childsEntryWriter, ownername, network, version)
+                        .thenApply(children -> {
+                            onChildren.accept(children);
+                            return true;
+                        }));
     }
 
     private CompletableFuture<Set<FileWrapper>> getDirectChildren(NetworkAccess network, Hasher hasher, Snapshot version) {
@@ -387,9 +429,24 @@ public class FileWrapper {
         return getChild(version, name, hasher, network);
     }
 
+    /** The children whose name tag matches, or who don't have one, are tried first. Name tags are only hints, they can
+     *  be stale after a rename by an older client or an interrupted rename, so fall back to all the children.
+     */
     private CompletableFuture<Optional<FileWrapper>> getChild(Snapshot version, String name, Hasher hasher, NetworkAccess network) {
-        return getChildren(version, hasher, network)
-                .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        if (capTrie.isPresent() || ! isReadable() || ! isDirectory())
+            return getChildren(version, hasher, network).thenApply(children -> withName(children, name));
+        return pointer.fileAccess.getChildCapabilitiesByName(version, pointer.capability, name, hasher, network)
+                .thenCompose(childCaps -> getFiles(owner(), childCaps, getChildsEntryWriter(), ownername, network, version))
+                .thenCompose(candidates -> {
+                    Optional<FileWrapper> tagged = withName(candidates, name);
+                    if (tagged.isPresent())
+                        return CompletableFuture.completedFuture(tagged);
+                    return getChildren(version, hasher, network).thenApply(children -> withName(children, name));
+                });
+    }
+
+    private static Optional<FileWrapper> withName(Set<FileWrapper> children, String name) {
+        return children.stream().filter(f -> f.getName().equals(name)).findAny();
     }
 
     @JsMethod
@@ -705,7 +762,7 @@ public class FileWrapper {
                                                                 fileWriteKey);
 
                                                         return chunks.upload(current, committer, network, parentLocation.owner, signer, crypto.hasher)
-                                                                .thenCompose(updatedWD -> latest.addChildPointer(updatedWD, committer, fileWriteCap, network, crypto))
+                                                                .thenCompose(updatedWD -> latest.addChildPointer(updatedWD, committer, filename, fileWriteCap, network, crypto))
                                                                 .thenCompose(cwd -> fileData.reset().thenCompose(resetAgain ->
                                                                         generateThumbnailAndUpdate(cwd, committer, fileWriteCap, filename, resetAgain,
                                                                                 network, isHidden, mimeType,
@@ -752,11 +809,13 @@ public class FileWrapper {
 
     private CompletableFuture<Snapshot> addChildPointer(Snapshot current,
                                                         Committer committer,
+                                                        String childName,
                                                         WritableAbsoluteCapability childPointer,
                                                         NetworkAccess network,
                                                         Crypto crypto) {
-        List<RelativeCapability> childCaps = Collections.singletonList(writableFilePointer().relativise(childPointer));
-        return pointer.fileAccess.addChildrenAndCommit(current, committer,
+        List<Pair<RelativeCapability, String>> childCaps =
+                Collections.singletonList(new Pair<>(writableFilePointer().relativise(childPointer), childName));
+        return pointer.fileAccess.addNamedChildrenAndCommit(current, committer,
                 childCaps, writableFilePointer(), signingPair(), network, crypto)
                 .thenApply(newBase -> {
                     setModified();
@@ -1052,8 +1111,12 @@ public class FileWrapper {
                         SigningPrivateKeyAndPublicHash signer = isLink ? parent.signingPair() : signingPair();
                         return userContext.network.synchronizer.applyComplexUpdate(owner(), signer,
                                 (s, committer) -> nodeToUpdate.updateProperties(s, committer, us,
-                                            entryWriter, newProps, userContext.network))
-                                .thenApply(newVersion -> res.withVersion(newVersion));
+                                            entryWriter, newProps, userContext.network)
+                                        .thenCompose(updated -> newFilename.equals(currentProps.name) ?
+                                                CompletableFuture.completedFuture(updated) :
+                                                res.updateChildName(updated, committer, us.getLocation(),
+                                                        newFilename, userContext.network, userContext.crypto.hasher)))
+                                .thenCompose(newVersion -> res.getUpdated(newVersion, userContext.network));
                     });
                 });
     }
@@ -1062,6 +1125,7 @@ public class FileWrapper {
                                                     Hasher hasher,
                                                     NetworkAccess network,
                                                     Optional<FileWrapper> parent) {
+        boolean renamed = ! updatedProperties.name.equals(getName());
         setModified();
         String newName = updatedProperties.name;
         if (!isLegalName(newName)) {
@@ -1071,7 +1135,9 @@ public class FileWrapper {
                 (s, comitter) -> (! parent.isPresent() ?
                         CompletableFuture.completedFuture(s) :
                         s.withWriter(owner(), parent.get().writer(), network)
-                ).thenCompose(withParent -> parent.get().hasChildWithName(withParent, newName, hasher, network))
+                ).thenCompose(withParent -> ! parent.isPresent() || ! renamed ?
+                                CompletableFuture.completedFuture(false) :
+                                parent.get().hasChildWithName(withParent, newName, hasher, network))
                         .thenCompose(hasChild -> ! hasChild ?
                                 CompletableFuture.completedFuture(true) :
                                 parent.get().getChildrenCapabilities(hasher, network)
@@ -1086,7 +1152,10 @@ public class FileWrapper {
                             CryptreeNode fileAccess = pointer.fileAccess;
                             return fileAccess.updateProperties(s, comitter, writableFilePointer(),
                                     entryWriter, updatedProperties, network);
-                        }))
+                        }).thenCompose(updated -> ! renamed || ! parent.isPresent() || ! parent.get().isWritable() ?
+                                CompletableFuture.completedFuture(updated) :
+                                parent.get().updateChildName(updated, comitter, pointer.capability.getLocation(),
+                                        newName, network, hasher)))
                 .thenApply(fa -> true);
     }
 
@@ -1294,38 +1363,52 @@ public class FileWrapper {
                                                               Snapshot version,
                                                               Committer committer) {
         return version.withWriter(currentCap.owner, currentCap.writer, network)
-                .thenCompose(current -> network.getMetadata(current.get(currentCap.writer).props, currentCap)
-                        .thenCompose(mOpt -> {
-                            if (! mOpt.isPresent()) {
+                .thenCompose(current -> getAllChunks(currentCap, current.get(currentCap.writer).props, hasher, network,
+                        new ArrayList<>())
+                        .thenCompose(chunks -> {
+                            if (chunks.isEmpty())
                                 return CompletableFuture.completedFuture(current);
-                            }
-                            SigningPrivateKeyAndPublicHash ourSigner = mOpt.get()
+                            // all the chunks of a file are under the same writer, so remove them in a single commit
+                            SigningPrivateKeyAndPublicHash ourSigner = chunks.get(0).right
                                     .getSigner(currentCap.rBaseKey, currentCap.wBaseKey.get(), Optional.of(signer));
-                            return network.deleteChunk(current, committer, mOpt.get(), currentCap.owner,
-                                    currentCap.getMapKey(), ourSigner, tid)
-                                    .thenCompose(deletedVersion -> {
-                                        CryptreeNode chunk = mOpt.get();
-                                        Optional<byte[]> streamSecret = chunk.getProperties(chunk
-                                                .getParentKey(currentCap.rBaseKey)).streamSecret;
-                                        return chunk.getNextChunkLocation(currentCap.rBaseKey, streamSecret,
-                                                currentCap.getMapKey(), hasher).thenCompose(nextChunkMapKey ->
-                                                deleteAllChunks(currentCap.withMapKey(nextChunkMapKey), signer, tid, hasher,
-                                                        network, deletedVersion, committer));
-                                    })
-                                    .thenCompose(updatedVersion -> {
-                                        if (! mOpt.get().isDirectory())
-                                            return CompletableFuture.completedFuture(updatedVersion);
-                                        return mOpt.get().getDirectChildrenCapabilities(currentCap, network).thenCompose(childCaps ->
-                                                Futures.reduceAll(childCaps,
-                                                        updatedVersion,
-                                                        (v, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap, signer,
-                                                                tid, hasher, network, v, committer),
-                                                        (x, y) -> y));
-                                    })
+                            List<Pair<byte[], CryptreeNode>> toRemove = chunks.stream()
+                                    .map(p -> new Pair<>(p.left.getMapKey(), p.right))
+                                    .collect(Collectors.toList());
+                            return network.deleteChunks(current, committer, toRemove, currentCap.owner, ourSigner, tid)
+                                    .thenCompose(deletedVersion -> Futures.reduceAll(chunks.stream()
+                                                    .filter(p -> p.right.isDirectory())
+                                                    .collect(Collectors.toList()),
+                                            deletedVersion,
+                                            (v, p) -> p.right.getDirectChildrenCapabilities(p.left, network)
+                                                    .thenCompose(childCaps -> Futures.reduceAll(childCaps,
+                                                            v,
+                                                            (v2, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap, signer,
+                                                                    tid, hasher, network, v2, committer),
+                                                            (x, y) -> y)),
+                                            (x, y) -> y))
                                     .thenCompose(s -> removeSigningKey(currentCap.writer, signer, currentCap.owner, network, s, committer));
                         }));
     }
 
+    private static CompletableFuture<List<Pair<WritableAbsoluteCapability, CryptreeNode>>> getAllChunks(
+            WritableAbsoluteCapability currentCap,
+            WriterData version,
+            Hasher hasher,
+            NetworkAccess network,
+            List<Pair<WritableAbsoluteCapability, CryptreeNode>> soFar) {
+        return network.getMetadata(version, currentCap)
+                .thenCompose(mOpt -> {
+                    if (! mOpt.isPresent())
+                        return CompletableFuture.completedFuture(soFar);
+                    CryptreeNode chunk = mOpt.get();
+                    soFar.add(new Pair<>(currentCap, chunk));
+                    Optional<byte[]> streamSecret = chunk.getProperties(chunk.getParentKey(currentCap.rBaseKey)).streamSecret;
+                    return chunk.getNextChunkLocation(currentCap.rBaseKey, streamSecret, currentCap.getMapKey(), hasher)
+                            .thenCompose(nextChunkMapKey ->
+                                    getAllChunks(currentCap.withMapKey(nextChunkMapKey), version, hasher, network, soFar));
+                });
+    }
+
     /**
      * @param parent
      * @param userContext
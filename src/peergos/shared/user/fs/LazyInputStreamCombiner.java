@@ -13,6 +13,19 @@ import java.util.*;
 import java.util.concurrent.*;
 
 public class LazyInputStreamCombiner implements AsyncReader {
+    private static final int MAX_CACHED_CHUNKS = 4;
+    private static int readAheadChunks = 2;
+
+    public static synchronized void setReadAheadChunks(int chunks) {
+        if (chunks < 0)
+            throw new IllegalArgumentException("Invalid read ahead: " + chunks);
+        readAheadChunks = chunks;
+    }
+
+    public static synchronized int getReadAheadChunks() {
+        return readAheadChunks;
+    }
+
     private final WriterData version;
     private final NetworkAccess network;
     private final Crypto crypto;
@@ -31,6 +44,14 @@ public class LazyInputStreamCombiner implements AsyncReader {
     private long globalIndex; // index of beginning of current chunk in file
     private int index; // index within current chunk
 
+    // The chunks after the current one which are being fetched, by their index in the file
+    private final Map<Long, CompletableFuture<Pair<byte[], AbsoluteCapability>>> readAhead = new HashMap<>();
+    private long readAheadFrom = -1;
+    // incremented when read ahead is stopped, so the chained fetches which haven't started yet are skipped
+    private long readAheadGeneration = 0;
+    private boolean closed = false;
+    private final ChunkIndex chunkIndex;
+
     public LazyInputStreamCombiner(WriterData version,
                                    long globalIndex,
                                    byte[] chunk,
@@ -60,17 +81,176 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.nextChunkPointer = AbsoluteCapability.build(nextChunkPointer, baseKey);
         this.globalIndex = globalIndex;
         this.index = 0;
+        this.chunkIndex = new ChunkIndex();
+        chunkIndex.addPointer(0, originalNextPointer.withMapKey(originalChunkLocation));
+        chunkIndex.addPointer(Chunk.MAX_SIZE, originalNextPointer);
+        chunkIndex.addPointer(globalIndex + Chunk.MAX_SIZE, this.nextChunkPointer);
+    }
+
+    /** A reader of the same file positioned at another chunk, which shares our chunk index
+     */
+    private LazyInputStreamCombiner(LazyInputStreamCombiner original,
+                                    long globalIndex,
+                                    byte[] chunk,
+                                    AbsoluteCapability nextChunkPointer) {
+        this.version = original.version;
+        this.network = original.network;
+        this.crypto = original.crypto;
+        this.baseKey = original.baseKey;
+        this.monitor = x -> {};
+        this.totalLength = original.totalLength;
+        this.originalChunk = original.originalChunk;
+        this.originalChunkLocation = original.originalChunkLocation;
+        this.streamSecret = original.streamSecret;
+        this.originalNextPointer = original.originalNextPointer;
+        this.currentChunk = chunk;
+        this.nextChunkPointer = nextChunkPointer;
+        this.globalIndex = globalIndex;
+        this.index = 0;
+        this.chunkIndex = original.chunkIndex;
+    }
+
+    /** The location of every chunk of the file we have seen, and the contents of the most recently used chunks,
+     *  by their index in the file.
+     */
+    private static class ChunkIndex {
+        private final TreeMap<Long, AbsoluteCapability> pointers = new TreeMap<>();
+        private final LRUCache<Long, Pair<byte[], AbsoluteCapability>> chunks = new LRUCache<>(MAX_CACHED_CHUNKS);
+
+        public synchronized void addPointer(long start, AbsoluteCapability pointer) {
+            pointers.put(start, pointer);
+        }
+
+        public synchronized Optional<AbsoluteCapability> getPointer(long start) {
+            return Optional.ofNullable(pointers.get(start));
+        }
+
+        /**
+         *
+         * @return The closest chunk at or before start whose location we know
+         */
+        public synchronized Map.Entry<Long, AbsoluteCapability> closestPointer(long start) {
+            return pointers.floorEntry(start);
+        }
+
+        public synchronized void addChunk(long start, Pair<byte[], AbsoluteCapability> chunkAndNext) {
+            chunks.put(start, chunkAndNext);
+            pointers.put(start + Chunk.MAX_SIZE, chunkAndNext.right);
+        }
+
+        public synchronized Optional<Pair<byte[], AbsoluteCapability>> getChunk(long start) {
+            return Optional.ofNullable(chunks.get(start));
+        }
     }
 
     public CompletableFuture<Boolean> getNextStream(int len) {
-        return getSubsequentMetadata(this.nextChunkPointer, 0)
-                .thenCompose(access -> getChunk(access, nextChunkPointer.getMapKey(), len))
+        long nextIndex = globalIndex + Chunk.MAX_SIZE;
+        AbsoluteCapability nextPointer = this.nextChunkPointer;
+        CompletableFuture<Pair<byte[], AbsoluteCapability>> prefetched;
+        synchronized (this) {
+            prefetched = readAhead.remove(nextIndex);
+        }
+        chunkIndex.addPointer(nextIndex, nextPointer);
+        return (prefetched == null ?
+                getChunkAt(nextIndex, len) :
+                Futures.asyncExceptionally(() -> prefetched, t -> getChunkAt(nextIndex, len)))
                 .thenApply(p -> {
-                    updateState(0,globalIndex + Chunk.MAX_SIZE, p.left, p.right);
+                    updateState(0, nextIndex, p.left, p.right);
+                    readAhead();
                     return true;
                 });
     }
 
+    /** Get the chunk starting at the given index in the file, and the location of the following chunk. This uses
+     *  at most one metadata and one chunk retrieval for chunks whose location we have seen, or which can be calculated
+     *  from the stream secret.
+     */
+    private CompletableFuture<Pair<byte[], AbsoluteCapability>> getChunkAt(long start, int truncateTo) {
+        if (start == 0)
+            return CompletableFuture.completedFuture(new Pair<>(originalChunk, originalNextPointer));
+        Optional<Pair<byte[], AbsoluteCapability>> cached = chunkIndex.getChunk(start);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached.get());
+        Optional<AbsoluteCapability> known = chunkIndex.getPointer(start);
+        if (known.isPresent())
+            return fetchChunk(start, known.get(), truncateTo);
+        // short circuit for files in the new deterministic (but still secret) format
+        if (streamSecret.isPresent())
+            return FileProperties.calculateMapKey(streamSecret.get(), originalChunkLocation, start, crypto.hasher)
+                    .thenCompose(mapKey -> fetchChunk(start, nextChunkPointer.withMapKey(mapKey), truncateTo));
+        // skip through the cryptree nodes from the closest chunk we know, without downloading the data
+        Map.Entry<Long, AbsoluteCapability> closest = chunkIndex.closestPointer(start);
+        return findPointer(closest.getKey(), closest.getValue(), start)
+                .thenCompose(pointer -> fetchChunk(start, pointer, truncateTo));
+    }
+
+    private CompletableFuture<AbsoluteCapability> findPointer(long from, AbsoluteCapability fromPointer, long target) {
+        if (from >= target)
+            return CompletableFuture.completedFuture(fromPointer);
+        return getChunkMetadata(fromPointer)
+                .thenCompose(access -> access.getNextChunkLocation(baseKey, streamSecret, fromPointer.getMapKey(), crypto.hasher))
+                .thenCompose(mapKey -> {
+                    AbsoluteCapability next = fromPointer.withMapKey(mapKey);
+                    chunkIndex.addPointer(from + Chunk.MAX_SIZE, next);
+                    return findPointer(from + Chunk.MAX_SIZE, next, target);
+                });
+    }
+
+    private CompletableFuture<Pair<byte[], AbsoluteCapability>> fetchChunk(long start, AbsoluteCapability chunkPointer, int len) {
+        return getChunkMetadata(chunkPointer)
+                .thenCompose(access -> getChunk(access, chunkPointer.getMapKey(), len))
+                .thenApply(p -> {
+                    chunkIndex.addChunk(start, p);
+                    return p;
+                });
+    }
+
+    /** Start fetching the chunks following the current one, up to the read ahead window.
+     *  Each is retrieved from the one before it, so this works for files with or without a stream secret.
+     */
+    private void readAhead() {
+        int window = getReadAheadChunks();
+        synchronized (this) {
+            if (closed || window == 0 || readAheadFrom == globalIndex)
+                return;
+            readAheadFrom = globalIndex;
+            readAhead.keySet().removeIf(start -> start <= globalIndex || start > globalIndex + window * (long) Chunk.MAX_SIZE);
+            long generation = readAheadGeneration;
+            CompletableFuture<Pair<byte[], AbsoluteCapability>> previous =
+                    CompletableFuture.completedFuture(new Pair<>(currentChunk, nextChunkPointer));
+            for (int i = 1; i <= window; i++) {
+                long start = globalIndex + i * (long) Chunk.MAX_SIZE;
+                if (start >= totalLength)
+                    break;
+                int size = (int) Math.min(Chunk.MAX_SIZE, totalLength - start);
+                CompletableFuture<Pair<byte[], AbsoluteCapability>> chunk = readAhead.get(start);
+                if (chunk == null) {
+                    chunk = previous.thenCompose(p -> {
+                        chunkIndex.addPointer(start, p.right);
+                        if (isReadAheadStopped(generation))
+                            return Futures.errored(new IllegalStateException("Read ahead stopped"));
+                        return getChunkAt(start, size);
+                    });
+                    readAhead.put(start, chunk);
+                }
+                previous = chunk;
+            }
+        }
+    }
+
+    private synchronized boolean isReadAheadStopped(long generation) {
+        return readAheadGeneration != generation;
+    }
+
+    /** Stop read ahead, including the fetches which are waiting on an earlier chunk. We can't cancel the futures
+     *  because GWT's CompletableFuture doesn't support it, so each fetch checks the generation before it starts.
+     */
+    private synchronized void stopReadAhead() {
+        readAheadGeneration++;
+        readAhead.clear();
+        readAheadFrom = -1;
+    }
+
     private CompletableFuture<Pair<byte[], AbsoluteCapability>> getChunk(CryptreeNode access, byte[] chunkLocation, int truncateTo) {
         if (access.isDirectory())
                 throw new IllegalStateException("File linked to a directory for its next chunk!");
@@ -89,14 +269,14 @@ public class LazyInputStreamCombiner implements AsyncReader {
                 });
     }
 
-    private CompletableFuture<CryptreeNode> getSubsequentMetadata(AbsoluteCapability nextCap, long chunks) {
-        if (nextCap == null) {
+    private CompletableFuture<CryptreeNode> getChunkMetadata(AbsoluteCapability cap) {
+        if (cap == null) {
             CompletableFuture<CryptreeNode> err = new CompletableFuture<>();
             err.completeExceptionally(new EOFException());
             return err;
         }
 
-        return network.getMetadata(version, nextCap)
+        return network.getMetadata(version, cap)
                 .thenCompose(meta -> {
                     if (!meta.isPresent()) {
                         CompletableFuture<CryptreeNode> err = new CompletableFuture<>();
@@ -104,14 +284,6 @@ public class LazyInputStreamCombiner implements AsyncReader {
                         return err;
                     }
                     return CompletableFuture.completedFuture(meta.get());
-                }).thenCompose(access -> {
-                    if (chunks == 0)
-                        return CompletableFuture.completedFuture(access);
-                    return access.getNextChunkLocation(baseKey, streamSecret, nextCap.getMapKey(), crypto.hasher)
-                            .thenCompose(mapKey -> {
-                                AbsoluteCapability newNextCap = nextCap.withMapKey(mapKey);
-                                return getSubsequentMetadata(newNextCap, chunks - 1);
-                            });
                 });
     }
 
@@ -123,36 +295,14 @@ public class LazyInputStreamCombiner implements AsyncReader {
             return CompletableFuture.completedFuture(this);
         }
 
-        long toRead = Math.min(available, skip);
-
-        long toSkipAfterThisChunk = skip - toRead;
-            // skip through the cryptree nodes without downloading the data
-            long finalOffset = globalIndex + skip;
-            long finalInternalIndex = finalOffset % Chunk.MAX_SIZE;
-            long startOfTargetChunk = finalOffset - finalInternalIndex;
-            long chunksToSkip = toSkipAfterThisChunk / Chunk.MAX_SIZE;
-            int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - startOfTargetChunk);
-            // short circuit for files in the new deterministic (but still secret) format
-            if (streamSecret.isPresent()) {
-                return FileProperties.calculateMapKey(streamSecret.get(), originalChunkLocation,
-                        finalOffset, crypto.hasher)
-                        .thenCompose(targetChunkLocation -> {
-                            AbsoluteCapability targetPointer = nextChunkPointer.withMapKey(targetChunkLocation);
-                            return getSubsequentMetadata(targetPointer, 0)
-                                    .thenCompose(access -> getChunk(access, targetPointer.getMapKey(), truncateTo))
-                                    .thenApply(p -> new LazyInputStreamCombiner(version, finalOffset, p.left, p.right.getLocation(),
-                                            originalChunk, originalChunkLocation, streamSecret, originalNextPointer.getLocation(),
-                                            network, crypto, baseKey, totalLength, x -> {
-                                    }))
-                                    .thenCompose(reader -> reader.skip(finalInternalIndex));
-                        });
-            }
-            return getSubsequentMetadata(nextChunkPointer, chunksToSkip)
-                    .thenCompose(access -> getChunk(access, nextChunkPointer.getMapKey(), truncateTo))
-                    .thenApply(p -> new LazyInputStreamCombiner(version, finalOffset, p.left, p.right.getLocation(),
-                            originalChunk, originalChunkLocation, streamSecret, originalNextPointer.getLocation(),
-                            network, crypto, baseKey, totalLength, x -> {}))
-                    .thenCompose(reader -> reader.skip(finalInternalIndex));
+        stopReadAhead();
+        long finalOffset = globalIndex + index + skip;
+        long finalInternalIndex = finalOffset % Chunk.MAX_SIZE;
+        long startOfTargetChunk = finalOffset - finalInternalIndex;
+        int truncateTo = (int) Math.min(Chunk.MAX_SIZE, totalLength - startOfTargetChunk);
+        return getChunkAt(startOfTargetChunk, truncateTo)
+                .thenApply(p -> new LazyInputStreamCombiner(this, startOfTargetChunk, p.left, p.right))
+                .thenCompose(reader -> reader.skip(finalInternalIndex));
     }
 
     @Override
@@ -171,9 +321,15 @@ public class LazyInputStreamCombiner implements AsyncReader {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        stopReadAhead();
+    }
 
     public CompletableFuture<AsyncReader> reset() {
+        stopReadAhead();
         this.globalIndex = 0;
         this.currentChunk = originalChunk;
         this.nextChunkPointer = originalNextPointer;
@@ -189,6 +345,7 @@ public class LazyInputStreamCombiner implements AsyncReader {
      * @return number of bytes read
      */
     public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
+        readAhead();
         int available = bytesReady();
         int toRead = Math.min(available, length);
         System.arraycopy(currentChunk, index, res, offset, toRead);
@@ -11,10 +11,12 @@ import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.logging.*;
 import java.util.stream.*;
 
 /** A cryptree node controls read and write access to a directory or file.
@@ -40,11 +42,14 @@ import java.util.stream.*;
  *       The parent link is present on the first chunk of all files and directories except your home directory
  */
 public class CryptreeNode implements Cborable {
+    private static final Logger LOG = Logger.getGlobal();
     private static final int CURRENT_VERSION = 1;
     private static final int META_DATA_PADDING_BLOCKSIZE = 16;
     private static final int BASE_BLOCK_PADDING_BLOCKSIZE = 64;
     private static final int MIN_FRAGMENT_SIZE = 4096;
     private static int MAX_CHILD_LINKS_PER_BLOB = 500;
+    private static final int NAME_TAG_BYTES = 8;
+    private static final int MAX_PARALLEL_CHUNK_FETCHES = 16;
 
     public static synchronized void setMaxChildLinkPerBlob(int newValue) {
         MAX_CHILD_LINKS_PER_BLOB = newValue;
@@ -195,26 +200,66 @@ public class CryptreeNode implements Cborable {
         }
     }
 
+    /** The links to the children in a directory chunk.
+     *
+     *  Each link can have a name tag, which is a hash of the child's name keyed with the directory's read key. These
+     *  let us find a child by name while retrieving only the children whose tag matches, or which don't have a tag.
+     *  A tag is stored as an extra field in the child's link, which older versions ignore.
+     */
     public static class ChildrenLinks implements Cborable {
         public final List<RelativeCapability> children;
+        public final List<Optional<byte[]>> nameTags;
 
-        public ChildrenLinks(List<RelativeCapability> children) {
+        public ChildrenLinks(List<RelativeCapability> children, List<Optional<byte[]>> nameTags) {
+            if (children.size() != nameTags.size())
+                throw new IllegalStateException("Each child link must have an optional name tag!");
             this.children = children;
+            this.nameTags = nameTags;
+        }
+
+        public ChildrenLinks(List<RelativeCapability> children) {
+            this(children, children.stream()
+                    .map(c -> Optional.<byte[]>empty())
+                    .collect(Collectors.toList()));
+        }
+
+        public static ChildrenLinks fromTagged(List<Pair<RelativeCapability, Optional<byte[]>>> tagged) {
+            return new ChildrenLinks(tagged.stream().map(p -> p.left).collect(Collectors.toList()),
+                    tagged.stream().map(p -> p.right).collect(Collectors.toList()));
+        }
+
+        public List<Pair<RelativeCapability, Optional<byte[]>>> tagged() {
+            return IntStream.range(0, children.size())
+                    .mapToObj(i -> new Pair<>(children.get(i), nameTags.get(i)))
+                    .collect(Collectors.toList());
         }
 
         @Override
         public CborObject toCbor() {
-            return new CborObject.CborList(children);
+            return new CborObject.CborList(IntStream.range(0, children.size())
+                    .mapToObj(i -> nameTags.get(i)
+                            .map(tag -> withNameTag(children.get(i).toCbor(), tag))
+                            .orElse(children.get(i).toCbor()))
+                    .collect(Collectors.toList()));
+        }
+
+        private static CborObject withNameTag(CborObject link, byte[] tag) {
+            TreeMap<CborObject, Cborable> values = new TreeMap<>(((CborObject.CborMap) link).values);
+            values.put(new CborObject.CborString("n"), new CborObject.CborByteArray(tag));
+            return new CborObject.CborMap(values);
         }
 
         public static ChildrenLinks fromCbor(CborObject cbor) {
             if (! (cbor instanceof CborObject.CborList))
                 throw new IllegalStateException("Incorrect cbor for ChildrenLinks: " + cbor);
 
-            return new ChildrenLinks(((CborObject.CborList) cbor).value
-                    .stream()
+            List<? extends Cborable> links = ((CborObject.CborList) cbor).value;
+            return new ChildrenLinks(links.stream()
                     .map(RelativeCapability::fromCbor)
-                    .collect(Collectors.toList()));
+                    .collect(Collectors.toList()),
+                    links.stream()
+                            .map(link -> ((CborObject.CborMap) link).getOptionalByteArray("n"))
+                            .collect(Collectors.toList()));
         }
 
         public static ChildrenLinks empty() {
@@ -295,24 +340,212 @@ public class CryptreeNode implements Cborable {
                                                                                  AbsoluteCapability us,
                                                                                  Hasher hasher,
                                                                                  NetworkAccess network) {
-        CompletableFuture<Set<AbsoluteCapability>> childrenFuture = getDirectChildrenCapabilities(us, network);
-
-        CompletableFuture<Optional<RetrievedCapability>> moreChildrenFuture = getNextChunk(version, us, network,
-                Optional.empty(), hasher);
-
-        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                    CompletableFuture<Set<AbsoluteCapability>> moreChildren = moreChildrenSource
-                            .map(d -> d.fileAccess.getAllChildrenCapabilities(version, d.capability, hasher, network))
-                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                    return moreChildren.thenApply(moreRetrievedChildren -> {
-                        Set<AbsoluteCapability> results = Stream.concat(
-                                children.stream(),
-                                moreRetrievedChildren.stream())
-                                .collect(Collectors.toSet());
-                        return results;
+        Set<AbsoluteCapability> results = new HashSet<>();
+        return streamChildrenCapabilities(version, us, hasher, network, children -> {
+            synchronized (results) {
+                results.addAll(children);
+            }
+            return Futures.of(true);
+        }).thenApply(done -> results);
+    }
+
+    /** Retrieve the children of this directory chunk by chunk, the chunks are retrieved in parallel where possible
+     *
+     * @param onChunk called with the children of each chunk as it is retrieved
+     * @return true when all the children have been processed
+     */
+    public CompletableFuture<Boolean> streamChildrenCapabilities(Snapshot version,
+                                                                 AbsoluteCapability us,
+                                                                 Hasher hasher,
+                                                                 NetworkAccess network,
+                                                                 Function<Set<AbsoluteCapability>, CompletableFuture<Boolean>> onChunk) {
+        return applyToAllChunks(version, us, hasher, network,
+                chunk -> chunk.fileAccess.getDirectChildrenCapabilities(chunk.capability, network)
+                        .thenCompose(onChunk));
+    }
+
+    /**
+     *
+     * @return The map key of the chunk following the chunk at currentMapKey in a directory
+     */
+    public static CompletableFuture<byte[]> nextChunkMapKey(SymmetricKey dirKey, byte[] currentMapKey, Hasher hasher) {
+        return hasher.sha256(ArrayOps.concat(dirKey.serialize(), currentMapKey));
+    }
+
+    private CompletableFuture<Boolean> applyToAllChunks(Snapshot version,
+                                                        AbsoluteCapability us,
+                                                        Hasher hasher,
+                                                        NetworkAccess network,
+                                                        Function<RetrievedCapability, CompletableFuture<Boolean>> onChunk) {
+        CompletableFuture<Boolean> ours = onChunk.apply(new RetrievedCapability(us, this));
+        CompletableFuture<Boolean> subsequent = isDirectory ?
+                applyToSubsequentChunks(version, us, 1, hasher, network, onChunk) :
+                Futures.of(true);
+        return ours.thenCompose(x -> subsequent);
+    }
+
+    /** Apply a function to each of the chunks after this one in a directory. Directories store their chunks under map
+     *  keys derived from their read key, so we can fetch the following chunks in parallel, in batches which double in
+     *  size, rather than waiting for each chunk to find the location of the next. The next chunk pointers are checked
+     *  against the derived map keys, and followed one at a time where they differ, e.g. in older directories.
+     *
+     * @param batchSize The number of chunks to speculatively fetch in parallel
+     * @param onChunk Applied to each chunk as it is retrieved
+     * @return true when all the chunks have been processed
+     */
+    private CompletableFuture<Boolean> applyToSubsequentChunks(Snapshot version,
+                                                               AbsoluteCapability us,
+                                                               int batchSize,
+                                                               Hasher hasher,
+                                                               NetworkAccess network,
+                                                               Function<RetrievedCapability, CompletableFuture<Boolean>> onChunk) {
+        byte[] nextMapKey = getBaseBlock(us.rBaseKey).nextChunk.getMapKey();
+        return derivedChunkMapKeys(us.rBaseKey, us.getMapKey(), batchSize, hasher).thenCompose(derived -> {
+            if (! Arrays.equals(derived.get(0), nextMapKey))
+                return getNextChunk(version, us.withMapKey(nextMapKey), network)
+                        .thenCompose(next -> next.map(chunk -> {
+                            CompletableFuture<Boolean> processed = onChunk.apply(chunk);
+                            CompletableFuture<Boolean> rest = chunk.fileAccess.applyToSubsequentChunks(version,
+                                    chunk.capability, batchSize, hasher, network, onChunk);
+                            return processed.thenCompose(x -> rest);
+                        }).orElse(Futures.of(true)));
+
+            return network.getAllMetadata(derived.stream()
+                    .map(us::withMapKey)
+                    .collect(Collectors.toList()), version)
+                    .thenCompose(chunks -> {
+                        // the chunks which form a chain from us
+                        List<RetrievedCapability> chain = new ArrayList<>();
+                        for (int i = 0; i < chunks.size() && chunks.get(i).isPresent(); i++) {
+                            RetrievedCapability chunk = chunks.get(i).get();
+                            chain.add(chunk);
+                            if (i + 1 < derived.size() && ! Arrays.equals(derived.get(i + 1),
+                                    chunk.fileAccess.getBaseBlock(chunk.capability.rBaseKey).nextChunk.getMapKey()))
+                                break;
+                        }
+                        if (chain.isEmpty())
+                            return Futures.of(true);
+                        RetrievedCapability last = chain.get(chain.size() - 1);
+                        byte[] afterLast = last.fileAccess.getBaseBlock(last.capability.rBaseKey).nextChunk.getMapKey();
+                        boolean nextIsMissing = chain.size() < derived.size() && Arrays.equals(derived.get(chain.size()), afterLast);
+                        CompletableFuture<Set<Boolean>> processed = Futures.combineAll(chain.stream()
+                                .map(onChunk)
+                                .collect(Collectors.toList()));
+                        CompletableFuture<Boolean> rest = nextIsMissing ?
+                                Futures.of(true) :
+                                last.fileAccess.applyToSubsequentChunks(version, last.capability,
+                                        Math.min(2 * batchSize, MAX_PARALLEL_CHUNK_FETCHES), hasher, network, onChunk);
+                        return processed.thenCompose(x -> rest);
                     });
-                })
-        );
+        });
+    }
+
+    private static CompletableFuture<List<byte[]>> derivedChunkMapKeys(SymmetricKey dirKey,
+                                                                       byte[] currentMapKey,
+                                                                       int count,
+                                                                       Hasher hasher) {
+        CompletableFuture<List<byte[]>> res = Futures.of(new ArrayList<>());
+        for (int i = 0; i < count; i++)
+            res = res.thenCompose(keys -> nextChunkMapKey(dirKey, keys.isEmpty() ? currentMapKey : keys.get(keys.size() - 1), hasher)
+                    .thenApply(next -> {
+                        keys.add(next);
+                        return keys;
+                    }));
+        return res;
+    }
+
+    private CompletableFuture<ChildrenLinks> getChildrenLinks(SymmetricKey baseKey, NetworkAccess network) {
+        if (! isDirectory)
+            return CompletableFuture.completedFuture(ChildrenLinks.empty());
+        return getLinkedData(baseKey, ChildrenLinks::fromCbor, network, x -> {});
+    }
+
+    /**
+     *
+     * @return A hash of name keyed with the directory's read key
+     */
+    public static CompletableFuture<byte[]> nameTag(SymmetricKey dirKey, String name, Hasher hasher) {
+        byte[] nameBytes;
+        try {
+            nameBytes = name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return hasher.sha256(ArrayOps.concat(dirKey.serialize(), nameBytes))
+                .thenApply(hash -> Arrays.copyOfRange(hash, 0, NAME_TAG_BYTES));
+    }
+
+    private static CompletableFuture<List<Pair<RelativeCapability, Optional<byte[]>>>> tagByName(
+            List<Pair<RelativeCapability, String>> children,
+            SymmetricKey dirKey,
+            Hasher hasher) {
+        return Futures.combineAllInOrder(children.stream()
+                .map(c -> nameTag(dirKey, c.right, hasher)
+                        .thenApply(tag -> new Pair<>(c.left, Optional.of(tag))))
+                .collect(Collectors.toList()));
+    }
+
+    /** Only the children whose name tag matches, or which have no name tag, are retrieved
+     *
+     * @return The capabilities of all the children which could have the given name. Name tags can be stale, so callers
+     * must fall back to all the children if none of these has the name
+     */
+    public CompletableFuture<Set<AbsoluteCapability>> getChildCapabilitiesByName(Snapshot version,
+                                                                                 AbsoluteCapability us,
+                                                                                 String name,
+                                                                                 Hasher hasher,
+                                                                                 NetworkAccess network) {
+        Set<AbsoluteCapability> results = new HashSet<>();
+        return nameTag(us.rBaseKey, name, hasher)
+                .thenCompose(tag -> applyToAllChunks(version, us, hasher, network,
+                        chunk -> chunk.fileAccess.getChildrenLinks(chunk.capability.rBaseKey, network)
+                                .thenApply(links -> {
+                                    synchronized (results) {
+                                        for (int i = 0; i < links.children.size(); i++) {
+                                            if (links.nameTags.get(i).map(t -> Arrays.equals(t, tag)).orElse(true))
+                                                results.add(links.children.get(i).toAbsolute(chunk.capability));
+                                        }
+                                    }
+                                    return true;
+                                })))
+                .thenApply(done -> results);
+    }
+
+    /** Update the name tag of a child after it has been renamed
+     *
+     * @return The updated version, which is unchanged if the child is not in this directory
+     */
+    public CompletableFuture<Snapshot> updateChildName(Snapshot base,
+                                                       Committer committer,
+                                                       WritableAbsoluteCapability us,
+                                                       SigningPrivateKeyAndPublicHash signer,
+                                                       Location child,
+                                                       String newName,
+                                                       NetworkAccess network,
+                                                       Hasher hasher) {
+        return getChildrenLinks(us.rBaseKey, network).thenCompose(links -> {
+            for (int i = 0; i < links.children.size(); i++) {
+                if (! links.children.get(i).toAbsolute(us).getLocation().equals(child))
+                    continue;
+                int index = i;
+                return nameTag(us.rBaseKey, newName, hasher).thenCompose(tag -> {
+                    List<Optional<byte[]>> tags = new ArrayList<>(links.nameTags);
+                    tags.set(index, Optional.of(tag));
+                    return IpfsTransaction.call(us.owner,
+                            tid -> withChildren(us.rBaseKey, new ChildrenLinks(links.children, tags), hasher)
+                                    .thenCompose(d -> d.commit(base, committer, us, signer, network, tid)),
+                            network.dhtClient);
+                });
+            }
+            return getNextChunk(base, us, network, Optional.empty(), hasher)
+                    .thenCompose(nextOpt -> {
+                        if (! nextOpt.isPresent())
+                            return CompletableFuture.completedFuture(base);
+                        WritableAbsoluteCapability nextPointer = nextOpt.get().capability.toWritable(us.wBaseKey.get());
+                        return nextOpt.get().fileAccess.updateChildName(base, committer, nextPointer, signer, child,
+                                newName, network, hasher);
+                    });
+        });
     }
 
     public CompletableFuture<Set<RetrievedCapability>> getDirectChildren(NetworkAccess network,
@@ -328,24 +561,15 @@ public class CryptreeNode implements Cborable {
                                                                    Hasher hasher,
                                                                    NetworkAccess network,
                                                                    AbsoluteCapability us) {
-        CompletableFuture<Set<RetrievedCapability>> childrenFuture = getDirectChildren(network, us, version);
-
-        CompletableFuture<Optional<RetrievedCapability>> moreChildrenFuture = getNextChunk(version, us, network,
-                Optional.empty(), hasher);
-
-        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                    CompletableFuture<Set<RetrievedCapability>> moreChildren = moreChildrenSource
-                            .map(d -> d.fileAccess.getChildren(version, hasher, network, d.capability))
-                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                    return moreChildren.thenApply(moreRetrievedChildren -> {
-                        Set<RetrievedCapability> results = Stream.concat(
-                                children.stream(),
-                                moreRetrievedChildren.stream())
-                                .collect(Collectors.toSet());
-                        return results;
-                    });
-                })
-        );
+        Set<RetrievedCapability> results = new HashSet<>();
+        return streamChildrenCapabilities(version, us, hasher, network,
+                children -> network.retrieveAllMetadata(new ArrayList<>(children), version)
+                        .thenApply(retrieved -> {
+                            synchronized (results) {
+                                results.addAll(retrieved);
+                            }
+                            return true;
+                        })).thenApply(done -> results);
     }
 
     public CompletableFuture<Snapshot> updateProperties(Snapshot base,
@@ -571,7 +795,9 @@ public class CryptreeNode implements Cborable {
                             Optional.of(crypto.random.randomBytes(32));
             CompletableFuture<byte[]> newNextChunkMapKeyFut = streamSecret.map(stream ->
                     FileProperties.calculateNextMapKey(stream, newUs.cap.getMapKey(), crypto.hasher))
-                    .orElseGet(() -> Futures.of(crypto.random.randomBytes(RelativeCapability.MAP_KEY_LENGTH)));
+                    .orElseGet(() -> isDirectory ?
+                            nextChunkMapKey(newUs.cap.rBaseKey, newUs.cap.getMapKey(), crypto.hasher) :
+                            Futures.of(crypto.random.randomBytes(RelativeCapability.MAP_KEY_LENGTH)));
 
             return newNextChunkMapKeyFut.thenCompose(newNextChunkMapKey -> {
                 WritableAbsoluteCapability newNextChunkCap = newUs.cap.withMapKey(newNextChunkMapKey);
@@ -733,6 +959,9 @@ public class CryptreeNode implements Cborable {
                 });
     }
 
+    /** The names of the children are retrieved to build their name tags. Callers which know the names should use
+     *  addNamedChildrenAndCommit instead.
+     */
     public CompletableFuture<Snapshot> addChildrenAndCommit(Snapshot current,
                                                             Committer committer,
                                                             List<RelativeCapability> targetCAPs,
@@ -740,63 +969,106 @@ public class CryptreeNode implements Cborable {
                                                             SigningPrivateKeyAndPublicHash signer,
                                                             NetworkAccess network,
                                                             Crypto crypto) {
+        return network.retrieveAllMetadata(targetCAPs.stream()
+                .map(c -> c.toAbsolute(us))
+                .collect(Collectors.toList()), current)
+                .exceptionally(t -> {
+                    // children without a name tag are still found by name
+                    LOG.log(Level.WARNING, "Couldn't retrieve children to tag them by name: " + t.getMessage(), t);
+                    return Collections.emptyList();
+                })
+                .thenCompose(retrieved -> {
+                    Map<Location, String> names = new HashMap<>();
+                    for (RetrievedCapability child : retrieved)
+                        names.put(child.capability.getLocation(), child.getProperties().name);
+                    return Futures.combineAllInOrder(targetCAPs.stream()
+                            .map(c -> Optional.ofNullable(names.get(c.toAbsolute(us).getLocation()))
+                                    .map(name -> nameTag(us.rBaseKey, name, crypto.hasher)
+                                            .thenApply(tag -> new Pair<>(c, Optional.of(tag))))
+                                    .orElseGet(() -> CompletableFuture.completedFuture(new Pair<>(c, Optional.empty()))))
+                            .collect(Collectors.toList()));
+                }).thenCompose(tagged -> addTaggedChildrenAndCommit(current, committer, tagged, us, signer, network, crypto));
+    }
+
+    /**
+     *
+     * @param namedChildren The link to each new child, and its name
+     */
+    public CompletableFuture<Snapshot> addNamedChildrenAndCommit(Snapshot current,
+                                                                 Committer committer,
+                                                                 List<Pair<RelativeCapability, String>> namedChildren,
+                                                                 WritableAbsoluteCapability us,
+                                                                 SigningPrivateKeyAndPublicHash signer,
+                                                                 NetworkAccess network,
+                                                                 Crypto crypto) {
+        return tagByName(namedChildren, us.rBaseKey, crypto.hasher)
+                .thenCompose(tagged -> addTaggedChildrenAndCommit(current, committer, tagged, us, signer, network, crypto));
+    }
+
+    private CompletableFuture<Snapshot> addTaggedChildrenAndCommit(Snapshot current,
+                                                                   Committer committer,
+                                                                   List<Pair<RelativeCapability, Optional<byte[]>>> targetCAPs,
+                                                                   WritableAbsoluteCapability us,
+                                                                   SigningPrivateKeyAndPublicHash signer,
+                                                                   NetworkAccess network,
+                                                                   Crypto crypto) {
         // Make sure subsequent blobs use a different transaction to obscure linkage of different parts of this dir
-        return getDirectChildren(us.rBaseKey, network).thenCompose(children -> {
+        return getChildrenLinks(us.rBaseKey, network).thenCompose(childLinks -> {
+            List<Pair<RelativeCapability, Optional<byte[]>>> children = childLinks.tagged();
             if (children.size() + targetCAPs.size() > getMaxChildLinksPerBlob()) {
                 return getNextChunk(current, us, network, Optional.empty(), crypto.hasher).thenCompose(nextMetablob -> {
 
                     if (nextMetablob.isPresent()) {
                         AbsoluteCapability nextPointer = nextMetablob.get().capability;
                         CryptreeNode nextBlob = nextMetablob.get().fileAccess;
-                        return nextBlob.addChildrenAndCommit(current, committer, targetCAPs,
+                        return nextBlob.addTaggedChildrenAndCommit(current, committer, targetCAPs,
                                 nextPointer.toWritable(us.wBaseKey.get()), signer, network, crypto);
                     } else {
                         // first fill this directory, then overflow into a new one
                         int freeSlots = getMaxChildLinksPerBlob() - children.size();
-                        List<RelativeCapability> addToUs = targetCAPs.subList(0, freeSlots);
-                        List<RelativeCapability> addToNext = targetCAPs.subList(freeSlots, targetCAPs.size());
+                        List<Pair<RelativeCapability, Optional<byte[]>>> addToUs = targetCAPs.subList(0, freeSlots);
+                        List<Pair<RelativeCapability, Optional<byte[]>>> addToNext = targetCAPs.subList(freeSlots, targetCAPs.size());
                         return (addToUs.isEmpty() ?
                                 CompletableFuture.completedFuture(current) :
-                                addChildrenAndCommit(current, committer, addToUs, us, signer, network, crypto))
+                                addTaggedChildrenAndCommit(current, committer, addToUs, us, signer, network, crypto))
                                 .thenCompose(newBase -> {
                                     // create and upload new metadata blob
                                     SymmetricKey nextSubfoldersKey = us.rBaseKey;
                                     SymmetricKey ourParentKey = getParentKey(us.rBaseKey);
                                     Optional<RelativeCapability> parentCap = getParentBlock(ourParentKey).parentLink;
-                                    RelativeCapability nextChunk = RelativeCapability.buildSubsequentChunk(crypto.random.randomBytes(32), nextSubfoldersKey);
-                                    List<RelativeCapability> addToNextChunk = addToNext.stream()
+                                    List<Pair<RelativeCapability, Optional<byte[]>>> addToNextChunk = addToNext.stream()
                                             .limit(getMaxChildLinksPerBlob())
                                             .collect(Collectors.toList());
-                                    List<RelativeCapability> remaining = addToNext.stream()
+                                    List<Pair<RelativeCapability, Optional<byte[]>>> remaining = addToNext.stream()
                                             .skip(getMaxChildLinksPerBlob())
                                             .collect(Collectors.toList());
-                                    return CryptreeNode.createDir(MaybeMultihash.empty(), nextSubfoldersKey,
-                                            null, Optional.empty(), FileProperties.EMPTY, parentCap,
-                                            ourParentKey, nextChunk, new ChildrenLinks(addToNextChunk), crypto.hasher)
-                                            .thenCompose(next -> {
-                                                return getNextChunkLocation(us.rBaseKey, Optional.empty(), null, null)
-                                                        .thenCompose(nextMapKey -> {
-                                                            WritableAbsoluteCapability nextPointer = new WritableAbsoluteCapability(us.owner,
-                                                                    us.writer, nextMapKey, nextSubfoldersKey, us.wBaseKey.get());
-                                                            return IpfsTransaction.call(us.owner,
-                                                                    tid -> next.commit(newBase, committer, nextPointer, signer, network, tid)
-                                                                            .thenCompose(updatedBase ->
-                                                                                    network.getMetadata(updatedBase.get(nextPointer.writer).props, nextPointer)
-                                                                                            .thenCompose(nextOpt -> nextOpt.get().
-                                                                                                    addChildrenAndCommit(updatedBase, committer, remaining,
-                                                                                                            nextPointer, signer, network, crypto)))
-                                                                    , network.dhtClient);
-                                                        });
-                                            });
+                                    return getNextChunkLocation(us.rBaseKey, Optional.empty(), null, null)
+                                            .thenCompose(nextMapKey -> nextChunkMapKey(nextSubfoldersKey, nextMapKey, crypto.hasher)
+                                                    .thenCompose(nextNextMapKey -> CryptreeNode.createDir(MaybeMultihash.empty(), nextSubfoldersKey,
+                                                            null, Optional.empty(), FileProperties.EMPTY, parentCap, ourParentKey,
+                                                            RelativeCapability.buildSubsequentChunk(nextNextMapKey, nextSubfoldersKey),
+                                                            ChildrenLinks.fromTagged(addToNextChunk), crypto.hasher))
+                                                    .thenCompose(next -> {
+                                                        WritableAbsoluteCapability nextPointer = new WritableAbsoluteCapability(us.owner,
+                                                                us.writer, nextMapKey, nextSubfoldersKey, us.wBaseKey.get());
+                                                        return IpfsTransaction.call(us.owner,
+                                                                tid -> next.commit(newBase, committer, nextPointer, signer, network, tid)
+                                                                        .thenCompose(updatedBase ->
+                                                                                network.getMetadata(updatedBase.get(nextPointer.writer).props, nextPointer)
+                                                                                        .thenCompose(nextOpt -> nextOpt.get().
+                                                                                                addTaggedChildrenAndCommit(updatedBase, committer, remaining,
+                                                                                                        nextPointer, signer, network, crypto)))
+                                                                , network.dhtClient);
+                                                    }));
                                 });
                     }
                 });
             } else {
-                ArrayList<RelativeCapability> newFiles = new ArrayList<>(children);
+                List<Pair<RelativeCapability, Optional<byte[]>>> newFiles = new ArrayList<>(children);
                 newFiles.addAll(targetCAPs);
 
                 return IpfsTransaction.call(us.owner,
-                        tid -> withChildren(us.rBaseKey, new ChildrenLinks(newFiles), crypto.hasher)
+                        tid -> withChildren(us.rBaseKey, ChildrenLinks.fromTagged(newFiles), crypto.hasher)
                                 .thenCompose(d ->
                                         d.commit(current, committer, us, signer, network, tid)),
                         network.dhtClient);
@@ -832,11 +1104,12 @@ public class CryptreeNode implements Cborable {
         byte[] dirMapKey = desiredMapKey.orElseGet(() -> crypto.random.randomBytes(32)); // root will be stored under this in the tree
         SymmetricKey ourParentKey = this.getParentKey(us.rBaseKey);
         RelativeCapability ourCap = new RelativeCapability(Optional.empty(), us.getMapKey(), ourParentKey, Optional.empty());
-        RelativeCapability nextChunk = new RelativeCapability(Optional.empty(), crypto.random.randomBytes(32), dirReadKey, Optional.empty());
         WritableAbsoluteCapability childCap = us.withBaseKey(dirReadKey).withBaseWriteKey(dirWriteKey).withMapKey(dirMapKey);
-        return CryptreeNode.createEmptyDir(MaybeMultihash.empty(), dirReadKey, dirWriteKey, Optional.empty(),
-                new FileProperties(name, true, false, "", 0, LocalDateTime.now(), isSystemFolder,
-                        Optional.empty(), Optional.empty()), Optional.of(ourCap), SymmetricKey.random(), nextChunk, crypto.hasher)
+        return nextChunkMapKey(dirReadKey, dirMapKey, crypto.hasher)
+                .thenCompose(nextMapKey -> CryptreeNode.createEmptyDir(MaybeMultihash.empty(), dirReadKey, dirWriteKey,
+                        Optional.empty(), new FileProperties(name, true, false, "", 0, LocalDateTime.now(),
+                                isSystemFolder, Optional.empty(), Optional.empty()), Optional.of(ourCap),
+                        SymmetricKey.random(), RelativeCapability.buildSubsequentChunk(nextMapKey, dirReadKey), crypto.hasher))
                 .thenCompose(child -> {
 
                     SymmetricLink toChildWriteKey = SymmetricLink.fromPair(us.wBaseKey.get(), dirWriteKey);
@@ -846,7 +1119,8 @@ public class CryptreeNode implements Cborable {
                             .thenCompose(updatedBase -> {
                                 RelativeCapability subdirPointer = new RelativeCapability(Optional.empty(), dirMapKey, dirReadKey, Optional.of(toChildWriteKey));
                                 SigningPrivateKeyAndPublicHash signer = getSigner(us.rBaseKey, us.wBaseKey.get(), entryWriter);
-                                return addChildrenAndCommit(updatedBase, committer, Arrays.asList(subdirPointer), us, signer, network, crypto);
+                                return addNamedChildrenAndCommit(updatedBase, committer,
+                                        Arrays.asList(new Pair<>(subdirPointer, name)), us, signer, network, crypto);
                             });
                 });
     }
@@ -891,14 +1165,17 @@ public class CryptreeNode implements Cborable {
                     .map(r -> r.capability.getLocation())
                     .collect(Collectors.toSet());
 
-            List<RelativeCapability> withRemoval = children.stream()
+            Map<Location, String> names = children.stream()
+                    .collect(Collectors.toMap(r -> r.capability.getLocation(), r -> r.getProperties().name));
+
+            List<Pair<RelativeCapability, String>> withRemoval = children.stream()
                     .filter(e -> ! locsToRemove.contains(e.capability.getLocation()))
-                    .map(c -> ourPointer.relativise(c.capability))
+                    .map(c -> new Pair<>(ourPointer.relativise(c.capability), c.getProperties().name))
                     .collect(Collectors.toList());
 
-            List<RelativeCapability> toAdd = childCasPairs.stream()
+            List<Pair<RelativeCapability, String>> toAdd = childCasPairs.stream()
                     .filter(p -> existingChildLocs.contains(p.left.getLocation()))
-                    .map(p -> ourPointer.relativise(p.right))
+                    .map(p -> new Pair<>(ourPointer.relativise(p.right), names.get(p.left.getLocation())))
                     .collect(Collectors.toList());
 
             Collection<Pair<AbsoluteCapability, AbsoluteCapability>> remaining = childCasPairs.stream()
@@ -907,8 +1184,9 @@ public class CryptreeNode implements Cborable {
 
             return (! toAdd.isEmpty() ?
                     IpfsTransaction.call(ourPointer.owner,
-                            tid -> withChildren(ourPointer.rBaseKey, new ChildrenLinks(Stream.concat(withRemoval.stream(), toAdd.stream())
-                                    .collect(Collectors.toList())), hasher)
+                            tid -> tagByName(Stream.concat(withRemoval.stream(), toAdd.stream())
+                                    .collect(Collectors.toList()), ourPointer.rBaseKey, hasher)
+                                    .thenCompose(tagged -> withChildren(ourPointer.rBaseKey, ChildrenLinks.fromTagged(tagged), hasher))
                                     .thenCompose(d -> d.commit(base, committer, ourPointer, signer, network, tid)),
                             network.dhtClient) :
                     CompletableFuture.completedFuture(base)).thenCompose(
@@ -939,13 +1217,14 @@ public class CryptreeNode implements Cborable {
                 .map(r -> r.getLocation())
                 .collect(Collectors.toSet());
         return getDirectChildren(network, ourPointer, current).thenCompose(children -> {
-            List<RelativeCapability> withRemoval = children.stream()
+            List<Pair<RelativeCapability, String>> withRemoval = children.stream()
                     .filter(e -> ! locsToRemove.contains(e.capability.getLocation()))
-                    .map(c -> ourPointer.relativise(c.capability))
+                    .map(c -> new Pair<>(ourPointer.relativise(c.capability), c.getProperties().name))
                     .collect(Collectors.toList());
 
             return IpfsTransaction.call(ourPointer.owner,
-                    tid -> withChildren(ourPointer.rBaseKey, new ChildrenLinks(withRemoval), hasher)
+                    tid -> tagByName(withRemoval, ourPointer.rBaseKey, hasher)
+                            .thenCompose(tagged -> withChildren(ourPointer.rBaseKey, ChildrenLinks.fromTagged(tagged), hasher))
                             .thenCompose(d -> d.commit(current, committer, ourPointer, entryWriter, network, tid)),
                     network.dhtClient);
         });
@@ -0,0 +1,81 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** This class limits the number of concurrent asynchronous requests. The limit grows by one for each window of
+ * successful requests, and halves whenever a request fails (additive increase, multiplicative decrease).
+ */
+public class AdaptiveWindow {
+
+    private final int min, max;
+    private double size;
+    private int active = 0;
+    private final LinkedList<Runnable> waiting = new LinkedList<>();
+
+    public AdaptiveWindow(int initial, int min, int max) {
+        if (min < 1 || initial < min || max < initial)
+            throw new IllegalArgumentException("Invalid window sizes: " + min + " <= " + initial + " <= " + max);
+        this.min = min;
+        this.max = max;
+        this.size = initial;
+    }
+
+    /**
+     *
+     * @param request is only called once the window has room for it
+     * @return A future completed with the result of the request
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        Runnable start = () -> {
+            CompletableFuture<T> started;
+            try {
+                started = request.get();
+            } catch (Throwable t) {
+                started = Futures.errored(t);
+            }
+            started.thenApply(r -> {
+                finished(true);
+                return res.complete(r);
+            }).exceptionally(t -> {
+                finished(false);
+                return res.completeExceptionally(t);
+            });
+        };
+        synchronized (this) {
+            waiting.add(start);
+        }
+        startReady();
+        return res;
+    }
+
+    public synchronized int size() {
+        return (int) size;
+    }
+
+    private void finished(boolean success) {
+        synchronized (this) {
+            active--;
+            if (success)
+                size = Math.min(max, size + 1 / size);
+            else
+                size = Math.max(min, size / 2);
+        }
+        startReady();
+    }
+
+    private void startReady() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            while (active < (int) size && ! waiting.isEmpty()) {
+                active++;
+                ready.add(waiting.poll());
+            }
+        }
+        // start requests outside the lock as they may complete synchronously
+        for (Runnable r : ready)
+            r.run();
+    }
+}